@@ -0,0 +1,68 @@
+/* This defines the AnimationClock class, which turns the time passed
+ * between frames into whole animation steps of STEP_NANOS each, so the
+ * sculpture moves at the same speed whatever the frame rate. Time left
+ * over after the last whole step carries into the next frame, and
+ * alpha tells how far the frame is between the last two steps, for
+ * drawing the scene in between (see SceneNode.interpolate).
+ *
+ * Time is read from System.nanoTime, which never runs backwards. After
+ * a stall, such as a drag of the window, only MAX_STEPS steps are run
+ * and the rest of the time is dropped, so the sculpture pauses instead
+ * of spinning ahead or slowing every later frame down to catch up.
+ */
+class AnimationClock {
+
+	/* the sculpture's speeds were tuned at one step per frame of the
+	 * original 30 fps animator
+	 */
+	public static final long STEP_NANOS = 1000000000L / 30;
+	public static final int MAX_STEPS = 5;		// steps run in one frame at most
+
+	private boolean running;
+	private long last;			// time of the last advance
+	private long pending;		// nanoseconds not yet taken as a step
+	private long dropped;		// nanoseconds dropped after stalls
+
+	public void start() {
+		if (running)
+			return;
+		running = true;
+		last = System.nanoTime();
+	}
+
+	/* freezes the animation; the time until start is not counted */
+	public void stop() {
+		running = false;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/* moves the clock to now and returns the number of whole steps to
+	 * run for the time since the last call
+	 */
+	public int advance() {
+		if (!running)
+			return 0;
+		long now = System.nanoTime();
+		pending += now - last;
+		last = now;
+		long steps = pending / STEP_NANOS;
+		pending -= steps * STEP_NANOS;
+		if (steps > MAX_STEPS) {
+			dropped += (steps - MAX_STEPS) * STEP_NANOS;
+			steps = MAX_STEPS;
+		}
+		return (int) steps;
+	}
+
+	/* how far now is past the last step, from 0 up to 1 */
+	public float alpha() {
+		return pending / (float) STEP_NANOS;
+	}
+
+	public long getDroppedNanos() {
+		return dropped;
+	}
+}
@@ -0,0 +1,97 @@
+import javax.vecmath.Matrix4f;
+
+/* This defines the Bounds class, an axis aligned bounding box that
+ * may be empty. Meshes keep theirs in model coordinates; scene nodes
+ * keep the box of their shape and of their whole subtree in world
+ * coordinates for frustum culling.
+ */
+class Bounds {
+	public float minX, minY, minZ;
+	public float maxX, maxY, maxZ;
+
+	public Bounds() {
+		setEmpty();
+	}
+
+	public Bounds(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+	}
+
+	public void setEmpty() {
+		minX = minY = minZ = Float.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+	}
+
+	public boolean isEmpty() {
+		return minX > maxX;
+	}
+
+	public void set(Bounds b) {
+		minX = b.minX; minY = b.minY; minZ = b.minZ;
+		maxX = b.maxX; maxY = b.maxY; maxZ = b.maxZ;
+	}
+
+	public void include(float x, float y, float z) {
+		minX = Math.min(minX, x); minY = Math.min(minY, y); minZ = Math.min(minZ, z);
+		maxX = Math.max(maxX, x); maxY = Math.max(maxY, y); maxZ = Math.max(maxZ, z);
+	}
+
+	public void include(Bounds b) {
+		if (b.isEmpty())
+			return;
+		minX = Math.min(minX, b.minX); minY = Math.min(minY, b.minY); minZ = Math.min(minZ, b.minZ);
+		maxX = Math.max(maxX, b.maxX); maxY = Math.max(maxY, b.maxY); maxZ = Math.max(maxZ, b.maxZ);
+	}
+
+	/* sets this to the box around b transformed by m, using Arvo's
+	 * method: each output extent is the sum over the input axes of the
+	 * smaller and larger product with the matrix entry
+	 */
+	public void setTransformed(Bounds b, Matrix4f m) {
+		if (b.isEmpty()) {
+			setEmpty();
+			return;
+		}
+		float x0 = m.m03, y0 = m.m13, z0 = m.m23;
+		float x1 = m.m03, y1 = m.m13, z1 = m.m23;
+		float e, f;
+		e = m.m00 * b.minX; f = m.m00 * b.maxX; x0 += Math.min(e, f); x1 += Math.max(e, f);
+		e = m.m01 * b.minY; f = m.m01 * b.maxY; x0 += Math.min(e, f); x1 += Math.max(e, f);
+		e = m.m02 * b.minZ; f = m.m02 * b.maxZ; x0 += Math.min(e, f); x1 += Math.max(e, f);
+		e = m.m10 * b.minX; f = m.m10 * b.maxX; y0 += Math.min(e, f); y1 += Math.max(e, f);
+		e = m.m11 * b.minY; f = m.m11 * b.maxY; y0 += Math.min(e, f); y1 += Math.max(e, f);
+		e = m.m12 * b.minZ; f = m.m12 * b.maxZ; y0 += Math.min(e, f); y1 += Math.max(e, f);
+		e = m.m20 * b.minX; f = m.m20 * b.maxX; z0 += Math.min(e, f); z1 += Math.max(e, f);
+		e = m.m21 * b.minY; f = m.m21 * b.maxY; z0 += Math.min(e, f); z1 += Math.max(e, f);
+		e = m.m22 * b.minZ; f = m.m22 * b.maxZ; z0 += Math.min(e, f); z1 += Math.max(e, f);
+		minX = x0; minY = y0; minZ = z0;
+		maxX = x1; maxY = y1; maxZ = z1;
+	}
+
+	public float centerX() {
+		return (minX + maxX) / 2;
+	}
+
+	public float centerY() {
+		return (minY + maxY) / 2;
+	}
+
+	public float centerZ() {
+		return (minZ + maxZ) / 2;
+	}
+
+	/* radius of the sphere through the corners of the box */
+	public float radius() {
+		float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		return (float) Math.sqrt(dx*dx + dy*dy + dz*dz) / 2;
+	}
+
+	public String toString() {
+		return "[" + minX + ", " + minY + ", " + minZ + "] - [" + maxX + ", " + maxY + ", " + maxZ + "]";
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/* This defines the CameraPath class, a sequence of camera keys for
+ * replaying the same view of the sculpture frame after frame. A key
+ * holds the camera fields of Hierarchical: roth, rotv, xpos, ypos and
+ * zpos. sample stretches the keys over any number of frames, blending
+ * linearly between neighbouring keys.
+ *
+ * Paths are scripted (orbit) or recorded from the interactive view, and
+ * are stored as text with one key per line:
+ *
+ *   # roth rotv xpos ypos zpos
+ *   0 0 0 0 4.4
+ */
+class CameraPath {
+
+	public static final int FIELDS = 5;		// roth, rotv, xpos, ypos, zpos
+
+	public final String name;
+	private float[] keys = new float[FIELDS * 64];
+	private int count;
+
+	public CameraPath(String name) {
+		this.name = name;
+	}
+
+	public void add(float roth, float rotv, float xpos, float ypos, float zpos) {
+		if ((count + 1) * FIELDS > keys.length)
+			keys = Arrays.copyOf(keys, keys.length * 2);
+		int i = count * FIELDS;
+		keys[i] = roth;
+		keys[i+1] = rotv;
+		keys[i+2] = xpos;
+		keys[i+3] = ypos;
+		keys[i+4] = zpos;
+		count ++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/* writes to out the camera fields at frame of frames, the first
+	 * frame at the first key and the last one at the last key
+	 */
+	public void sample(int frame, int frames, float[] out) {
+		if (count == 1 || frames < 2) {
+			System.arraycopy(keys, 0, out, 0, FIELDS);
+			return;
+		}
+		float t = frame * (count - 1) / (float) (frames - 1);
+		int k = Math.min((int) t, count - 2);
+		float f = t - k;
+		for (int i = 0; i < FIELDS; i ++) {
+			float a = keys[k * FIELDS + i], b = keys[(k + 1) * FIELDS + i];
+			out[i] = a + (b - a) * f;
+		}
+	}
+
+	/* one turn around the center of the view, tilting up and down while
+	 * moving in to half the distance and back out again
+	 */
+	public static CameraPath orbit(float xpos, float ypos, float zpos, float distance) {
+		CameraPath path = new CameraPath("orbit");
+		for (int i = 0; i <= 72; i ++) {
+			double a = Math.toRadians(i * 5);
+			float dolly = (float) (distance * 0.25 * (1 - Math.cos(a)));
+			path.add(i * 5, (float) (20 * Math.sin(a)), xpos, ypos, zpos - dolly);
+		}
+		return path;
+	}
+
+	public static CameraPath read(String filename) throws IOException {
+		CameraPath path = new CameraPath(filename);
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] f = line.split("\\s+");
+				if (f.length < FIELDS)
+					throw new IOException("bad camera key in " + filename + ": " + line);
+				path.add(Float.parseFloat(f[0]), Float.parseFloat(f[1]), Float.parseFloat(f[2]),
+						Float.parseFloat(f[3]), Float.parseFloat(f[4]));
+			}
+		} finally {
+			in.close();
+		}
+		if (path.count == 0)
+			throw new IOException("no camera keys in " + filename);
+		return path;
+	}
+
+	public void write(String filename) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(filename));
+		try {
+			out.println("# roth rotv xpos ypos zpos");
+			for (int i = 0; i < count * FIELDS; i += FIELDS)
+				out.println(String.format(Locale.ROOT, "%g %g %g %g %g",
+						keys[i], keys[i+1], keys[i+2], keys[i+3], keys[i+4]));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/* This defines the CullStats class, the per frame counts of shapes
+ * and triangles drawn and skipped by frustum culling.
+ */
+class CullStats {
+	public int draws, triangles;
+	public int culledDraws, culledTriangles;
+
+	public void reset() {
+		draws = triangles = culledDraws = culledTriangles = 0;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof CullStats))
+			return false;
+		CullStats s = (CullStats) o;
+		return draws == s.draws && triangles == s.triangles
+				&& culledDraws == s.culledDraws && culledTriangles == s.culledTriangles;
+	}
+
+	public int hashCode() {
+		return ((draws * 31 + triangles) * 31 + culledDraws) * 31 + culledTriangles;
+	}
+
+	public void set(CullStats s) {
+		draws = s.draws;
+		triangles = s.triangles;
+		culledDraws = s.culledDraws;
+		culledTriangles = s.culledTriangles;
+	}
+
+	public String toString() {
+		return "Drew " + draws + " shapes (" + triangles + " triangles), culled " + culledDraws
+				+ " shapes (" + culledTriangles + " triangles).";
+	}
+}
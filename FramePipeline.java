@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/* This defines the FramePipeline class, which prepares frames on a
+ * thread of its own while the GL thread draws the one before. A frame
+ * is whatever the Preparer fills in, such as the animated scene's
+ * RenderQueue; preparing it must not call GL.
+ *
+ * The frames are handed over through a triple buffer: the preparing
+ * thread fills the back frame, the GL thread draws the front frame, and
+ * the middle one is swapped with either of them by a single atomic
+ * getAndSet, so neither thread ever waits on a lock or sees a frame
+ * being filled. The preparing thread stays one frame ahead: once it has
+ * published a frame it parks until take has picked it up.
+ *
+ * Input for the next frame, such as the camera, is passed to take as
+ * floats. The preparing thread copies it only after take has picked up
+ * its last frame, and take writes it only once the next frame is done,
+ * so the copy never races with a write. A frame is therefore prepared
+ * with the input of the take before the one that returns it.
+ *
+ * If preparing a frame throws, the thread stops and the next take
+ * throws in its place, so the GL thread finds out and can prepare the
+ * frames itself.
+ */
+class FramePipeline<F> {
+
+	/* fills frame from input; runs on the pipeline's thread */
+	interface Preparer<F> {
+		void prepare(F frame, float[] input);
+	}
+
+	private static final int FRESH = 4;		// set in middle while it holds a frame not yet taken
+
+	private final ArrayList<F> frames = new ArrayList<F>();
+	private final AtomicInteger middle = new AtomicInteger(1);
+	private int back = 0;		// filled by the preparing thread
+	private int front = 2;		// drawn by the GL thread
+	private final Preparer<F> preparer;
+	private final float[] input;			// written by take
+	private final float[] preparing;		// copied from input by the preparing thread
+
+	private volatile boolean running;
+	private volatile RuntimeException failure;	// what stopped the preparing thread, if anything
+	private volatile Thread worker;
+	private volatile Thread consumer;
+
+	public FramePipeline(F a, F b, F c, int inputs, Preparer<F> preparer) {
+		frames.add(a);
+		frames.add(b);
+		frames.add(c);
+		this.preparer = preparer;
+		input = new float[inputs];
+		preparing = new float[inputs];
+	}
+
+	/* starts preparing frames, the first one from input */
+	public synchronized void start(float[] input) {
+		if (running)
+			return;
+		System.arraycopy(input, 0, preparing, 0, preparing.length);
+		middle.set(1);
+		failure = null;
+		back = 0;
+		front = 2;
+		running = true;
+		worker = new Thread(new Runnable() {
+			public void run() {
+				prepareFrames();
+			}
+		}, "frame preparation");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/* stops preparing and waits for the thread to finish the frame it
+	 * is on, after which the preparer's state may be used again
+	 */
+	public synchronized void stop() {
+		Thread t = worker;
+		running = false;
+		if (t == null)
+			return;
+		LockSupport.unpark(t);
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		worker = null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/* the newest prepared frame, waiting for it if need be; input is
+	 * what the frame after next is prepared from. Returns null when the
+	 * pipeline has been stopped, and throws an IllegalStateException
+	 * caused by the preparer's exception when that stopped it.
+	 */
+	public F take(float[] input) {
+		consumer = Thread.currentThread();
+		while ((middle.get() & FRESH) == 0) {
+			if (!running) {
+				if (failure != null)
+					throw new IllegalStateException("Frame preparation failed", failure);
+				return null;
+			}
+			LockSupport.park(this);
+		}
+		System.arraycopy(input, 0, this.input, 0, this.input.length);
+		front = middle.getAndSet(front) & ~FRESH;
+		LockSupport.unpark(worker);
+		return frames.get(front);
+	}
+
+	private void prepareFrames() {
+		try {
+			while (running) {
+				preparer.prepare(frames.get(back), preparing);
+				back = middle.getAndSet(back | FRESH) & ~FRESH;
+				LockSupport.unpark(consumer);
+				while (running && (middle.get() & FRESH) != 0)
+					LockSupport.park(this);
+				if (!running)
+					break;
+				System.arraycopy(input, 0, preparing, 0, preparing.length);
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+		} finally {
+			running = false;
+			LockSupport.unpark(consumer);
+		}
+	}
+}
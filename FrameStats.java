@@ -0,0 +1,337 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.ObjectName;
+
+/* This defines the FrameStats class, which counts what each frame asks
+ * of GL: draw calls, triangles, glMaterialfv and glLightfv calls, and
+ * bytes of vertex data sent from client arrays or uploaded into buffer
+ * objects. It also times the whole of display(), the interval between
+ * frames and named blocks inside a frame (one per hierarchy). The times
+ * are CPU times of submitting the work; GL may run it later.
+ *
+ * Each finished frame is stored in ring buffers holding the last FRAMES
+ * frames, which the overlay, the MBean and the CSV dump read. Counting
+ * allocates nothing; only the overlay text and the CSV rows (once every
+ * FRAMES frames) are formatted into new strings. While disabled every
+ * call returns at once, without even reading the clock.
+ *
+ * The ring is written by the thread drawing the frames and read by
+ * others without locking, so a reader may see a frame that is being
+ * replaced. That is fine for watching trends, and it keeps display free
+ * of locks.
+ */
+class FrameStats implements FrameStatsMBean {
+
+	public static final int FRAMES = 256;		// frames kept in the ring buffers
+
+	private static final FrameStats shared = new FrameStats();
+
+	public static FrameStats getShared() {
+		return shared;
+	}
+
+	private volatile boolean enabled = false;
+
+	/* counts of the frame being drawn */
+	private int drawCalls, triangles, materialChanges, lightChanges;
+	private long vertexBytes, uploadBytes;
+	private long frameStart, lastFrameStart;
+	private String[] blockNames = new String[0];
+	private long[] blockNanos = new long[0];
+
+	/* the finished frames; frame i is at index i % FRAMES */
+	private final long[] ringFrameNanos = new long[FRAMES];
+	private final long[] ringIntervalNanos = new long[FRAMES];
+	private final int[] ringDrawCalls = new int[FRAMES];
+	private final int[] ringTriangles = new int[FRAMES];
+	private final int[] ringMaterialChanges = new int[FRAMES];
+	private final int[] ringLightChanges = new int[FRAMES];
+	private final long[] ringVertexBytes = new long[FRAMES];
+	private final long[] ringUploadBytes = new long[FRAMES];
+	private long[][] ringBlockNanos = new long[0][FRAMES];
+	private volatile long frames;		// frames finished so far
+
+	private String csvFile;
+	private ExecutorService csvWriter;
+
+	/* publishes this as sculpture:type=FrameStats on the platform MBean server */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("sculpture:type=FrameStats"));
+		} catch (Exception e) {
+			System.out.println("Could not register the frame statistics MBean: " + e);
+		}
+	}
+
+	/* names the blocks timed by blockEnd, one per index */
+	public synchronized void setBlockNames(String[] names) {
+		blockNames = names.clone();
+		blockNanos = new long[names.length];
+		ringBlockNanos = new long[names.length][FRAMES];
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		lastFrameStart = 0;
+		this.enabled = enabled;
+	}
+
+	/* one glDrawElements of triangles triangles reading bytes of client
+	 * array data; 0 bytes when drawing from buffer objects
+	 */
+	public void draw(int triangles, long bytes) {
+		if (!enabled)
+			return;
+		drawCalls ++;
+		this.triangles += triangles;
+		vertexBytes += bytes;
+	}
+
+	public void materialChanges(int calls) {
+		if (enabled)
+			materialChanges += calls;
+	}
+
+	public void lightChanges(int calls) {
+		if (enabled)
+			lightChanges += calls;
+	}
+
+	/* bytes copied into buffer objects */
+	public void upload(long bytes) {
+		if (enabled)
+			uploadBytes += bytes;
+	}
+
+	public void beginFrame() {
+		if (!enabled)
+			return;
+		frameStart = System.nanoTime();
+	}
+
+	/* the start time to pass to blockEnd */
+	public long blockStart() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	public void blockEnd(int block, long start) {
+		if (enabled && start != 0 && block < blockNanos.length)
+			blockNanos[block] += System.nanoTime() - start;
+	}
+
+	/* time spent on block elsewhere, such as on the thread preparing frames */
+	public void block(int block, long nanos) {
+		if (enabled && block < blockNanos.length)
+			blockNanos[block] += nanos;
+	}
+
+	/* stores the frame begun by beginFrame in the rings and starts
+	 * counting the next one
+	 */
+	public void endFrame() {
+		if (!enabled || frameStart == 0)
+			return;
+		long now = System.nanoTime();
+		int slot = (int) (frames % FRAMES);
+		ringFrameNanos[slot] = now - frameStart;
+		ringIntervalNanos[slot] = lastFrameStart == 0 ? 0 : frameStart - lastFrameStart;
+		ringDrawCalls[slot] = drawCalls;
+		ringTriangles[slot] = triangles;
+		ringMaterialChanges[slot] = materialChanges;
+		ringLightChanges[slot] = lightChanges;
+		ringVertexBytes[slot] = vertexBytes;
+		ringUploadBytes[slot] = uploadBytes;
+		for (int b = 0; b < blockNanos.length; b ++) {
+			ringBlockNanos[b][slot] = blockNanos[b];
+			blockNanos[b] = 0;
+		}
+		lastFrameStart = frameStart;
+		frameStart = 0;
+		drawCalls = triangles = materialChanges = lightChanges = 0;
+		vertexBytes = uploadBytes = 0;
+		frames ++;
+		if (csvFile != null && frames % FRAMES == 0)
+			dumpCsv();
+	}
+
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/* frames held in the rings */
+	private int held() {
+		return (int) Math.min(frames, FRAMES);
+	}
+
+	private double mean(long[] ring) {
+		int n = held();
+		long sum = 0;
+		for (int i = 0; i < n; i ++)
+			sum += ring[i];
+		return n == 0 ? 0 : sum / (double) n;
+	}
+
+	private double mean(int[] ring) {
+		int n = held();
+		long sum = 0;
+		for (int i = 0; i < n; i ++)
+			sum += ring[i];
+		return n == 0 ? 0 : sum / (double) n;
+	}
+
+	private long max(long[] ring) {
+		int n = held();
+		long max = 0;
+		for (int i = 0; i < n; i ++)
+			max = Math.max(max, ring[i]);
+		return max;
+	}
+
+	public double getLastFrameMillis() {
+		return frames == 0 ? 0 : ringFrameNanos[(int) ((frames - 1) % FRAMES)] / 1e6;
+	}
+
+	public double getMeanFrameMillis() {
+		return mean(ringFrameNanos) / 1e6;
+	}
+
+	public double getMaxFrameMillis() {
+		return max(ringFrameNanos) / 1e6;
+	}
+
+	public double getMeanIntervalMillis() {
+		return mean(ringIntervalNanos) / 1e6;
+	}
+
+	public double getMaxIntervalMillis() {
+		return max(ringIntervalNanos) / 1e6;
+	}
+
+	public double getMeanDrawCalls() {
+		return mean(ringDrawCalls);
+	}
+
+	public double getMeanTriangles() {
+		return mean(ringTriangles);
+	}
+
+	public double getMeanMaterialChanges() {
+		return mean(ringMaterialChanges);
+	}
+
+	public double getMeanLightChanges() {
+		return mean(ringLightChanges);
+	}
+
+	public double getMeanVertexBytes() {
+		return mean(ringVertexBytes);
+	}
+
+	public synchronized String[] getBlockNames() {
+		return blockNames.clone();
+	}
+
+	public synchronized double[] getMeanBlockMillis() {
+		double[] ms = new double[ringBlockNanos.length];
+		for (int b = 0; b < ms.length; b ++)
+			ms[b] = mean(ringBlockNanos[b]) / 1e6;
+		return ms;
+	}
+
+	/* the text of the on-screen overlay */
+	public String[] overlayLines() {
+		String[] names = getBlockNames();
+		double[] blocks = getMeanBlockMillis();
+		String[] lines = new String[4 + names.length];
+		lines[0] = String.format(Locale.ROOT, "frame %.2fms, mean %.2fms, max %.2fms over %d frames",
+				getLastFrameMillis(), getMeanFrameMillis(), getMaxFrameMillis(), held());
+		lines[1] = String.format(Locale.ROOT, "interval mean %.2fms (%.1f fps), max %.2fms",
+				getMeanIntervalMillis(), getMeanIntervalMillis() > 0 ? 1000 / getMeanIntervalMillis() : 0,
+				getMaxIntervalMillis());
+		lines[2] = String.format(Locale.ROOT, "%.0f draws, %.0f triangles, %.1f KB vertex data, %.1f KB uploaded",
+				getMeanDrawCalls(), getMeanTriangles(), getMeanVertexBytes() / 1024, mean(ringUploadBytes) / 1024);
+		lines[3] = String.format(Locale.ROOT, "%.0f glMaterialfv, %.0f glLightfv", getMeanMaterialChanges(),
+				getMeanLightChanges());
+		for (int b = 0; b < names.length; b ++)
+			lines[4 + b] = String.format(Locale.ROOT, "%-12s %.3fms", names[b], blocks[b]);
+		return lines;
+	}
+
+	public synchronized String getCsvFile() {
+		return csvFile;
+	}
+
+	/* appends the rings to filename every FRAMES frames, starting with
+	 * a header row; null stops
+	 */
+	public synchronized void setCsvFile(String filename) {
+		csvFile = filename;
+		if (filename == null)
+			return;
+		if (csvWriter == null)
+			csvWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "frame stats writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		final String file = filename;
+		final String header = csvHeader();
+		csvWriter.execute(new Runnable() {
+			public void run() {
+				append(file, header);
+			}
+		});
+	}
+
+	private String csvHeader() {
+		StringBuilder s = new StringBuilder("frame,interval_ms,frame_ms,draws,triangles,materials,lights,vertex_bytes,upload_bytes");
+		for (String name : blockNames)
+			s.append(',').append(name.replace(',', ' ').replace(' ', '_')).append("_ms");
+		return s.append('\n').toString();
+	}
+
+	/* formats the ring as CSV rows on the drawing thread and leaves the
+	 * file writing to the writer thread
+	 */
+	private synchronized void dumpCsv() {
+		StringBuilder s = new StringBuilder();
+		long first = frames - FRAMES;
+		for (long f = first; f < frames; f ++) {
+			int i = (int) (f % FRAMES);
+			s.append(String.format(Locale.ROOT, "%d,%.3f,%.3f,%d,%d,%d,%d,%d,%d", f, ringIntervalNanos[i] / 1e6,
+					ringFrameNanos[i] / 1e6, ringDrawCalls[i], ringTriangles[i], ringMaterialChanges[i],
+					ringLightChanges[i], ringVertexBytes[i], ringUploadBytes[i]));
+			for (int b = 0; b < ringBlockNanos.length; b ++)
+				s.append(String.format(Locale.ROOT, ",%.3f", ringBlockNanos[b][i] / 1e6));
+			s.append('\n');
+		}
+		final String file = csvFile, rows = s.toString();
+		csvWriter.execute(new Runnable() {
+			public void run() {
+				append(file, rows);
+			}
+		});
+	}
+
+	private static void append(String filename, String text) {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(filename, true));
+			out.print(text);
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Could not write frame statistics to " + filename + ": " + e.getMessage());
+		}
+	}
+}
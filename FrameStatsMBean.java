@@ -0,0 +1,42 @@
+/* This defines the FrameStatsMBean interface, the JMX view of
+ * FrameStats: the averages over its last FrameStats.FRAMES frames, and
+ * switches for collecting them and dumping them to CSV. It is published
+ * as sculpture:type=FrameStats, so jconsole can watch a running
+ * sculpture.
+ */
+public interface FrameStatsMBean {
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getFrameCount();
+
+	double getLastFrameMillis();
+
+	double getMeanFrameMillis();
+
+	double getMaxFrameMillis();
+
+	double getMeanIntervalMillis();
+
+	double getMaxIntervalMillis();
+
+	double getMeanDrawCalls();
+
+	double getMeanTriangles();
+
+	double getMeanMaterialChanges();
+
+	double getMeanLightChanges();
+
+	double getMeanVertexBytes();
+
+	String[] getBlockNames();
+
+	double[] getMeanBlockMillis();
+
+	/* the file every FRAMES frames are appended to, or null for none */
+	String getCsvFile();
+
+	void setCsvFile(String filename);
+}
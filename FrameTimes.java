@@ -0,0 +1,106 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/* This defines the FrameTimes class, the durations of a run of frames
+ * with their percentiles and a histogram, as text for people and as
+ * JSON for scripts comparing one run against another.
+ */
+class FrameTimes {
+
+	/* upper bounds in milliseconds of the histogram buckets; the last
+	 * bucket holds everything slower
+	 */
+	private static final double[] BUCKETS = { 1, 2, 4, 8, 16.7, 33.3, 66.7, 100 };
+
+	private long[] nanos;
+	private int count;
+
+	public FrameTimes(int capacity) {
+		nanos = new long[Math.max(capacity, 1)];
+	}
+
+	public void add(long frameNanos) {
+		if (count == nanos.length)
+			nanos = Arrays.copyOf(nanos, count * 2);
+		nanos[count ++] = frameNanos;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/* the frame time in milliseconds that p percent of the frames do
+	 * not exceed (nearest rank)
+	 */
+	public double percentile(double p) {
+		if (count == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(nanos, count);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(p / 100 * count);
+		return sorted[Math.max(rank, 1) - 1] / 1e6;
+	}
+
+	public double mean() {
+		long sum = 0;
+		for (int i = 0; i < count; i ++)
+			sum += nanos[i];
+		return count == 0 ? 0 : sum / 1e6 / count;
+	}
+
+	public double max() {
+		return percentile(100);
+	}
+
+	/* the number of frames in each bucket of BUCKETS, plus one for the
+	 * frames slower than the last bound
+	 */
+	public int[] histogram() {
+		int[] counts = new int[BUCKETS.length + 1];
+		for (int i = 0; i < count; i ++) {
+			double ms = nanos[i] / 1e6;
+			int b = 0;
+			while (b < BUCKETS.length && ms > BUCKETS[b])
+				b ++;
+			counts[b] ++;
+		}
+		return counts;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format(Locale.ROOT, "%d frames, mean %.2fms (%.1f fps), p50 %.2fms, p95 %.2fms, p99 %.2fms, max %.2fms%n",
+				count, mean(), mean() > 0 ? 1000 / mean() : 0, percentile(50), percentile(95), percentile(99), max()));
+		int[] counts = histogram();
+		int most = 1;
+		for (int c : counts)
+			most = Math.max(most, c);
+		for (int b = 0; b < counts.length; b ++) {
+			String label = b < BUCKETS.length ? String.format(Locale.ROOT, "<= %5.1fms", BUCKETS[b])
+					: String.format(Locale.ROOT, " > %5.1fms", BUCKETS[b - 1]);
+			char[] bar = new char[(int) Math.round(40.0 * counts[b] / most)];
+			Arrays.fill(bar, '#');
+			s.append(String.format(Locale.ROOT, "%s %7d %s%n", label, counts[b], new String(bar)));
+		}
+		return s.toString();
+	}
+
+	/* the statistics as the fields of a JSON object, without braces */
+	public String toJsonFields() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format(Locale.ROOT, "\"frames\": %d, \"meanMs\": %.4f, \"p50Ms\": %.4f, \"p95Ms\": %.4f, \"p99Ms\": %.4f, \"maxMs\": %.4f",
+				count, mean(), percentile(50), percentile(95), percentile(99), max()));
+		s.append(", \"histogram\": [");
+		int[] counts = histogram();
+		for (int b = 0; b < counts.length; b ++) {
+			if (b > 0)
+				s.append(", ");
+			if (b < BUCKETS.length)
+				s.append(String.format(Locale.ROOT, "{\"upToMs\": %s, \"frames\": %d}", BUCKETS[b], counts[b]));
+			else
+				s.append(String.format(Locale.ROOT, "{\"upToMs\": null, \"frames\": %d}", counts[b]));
+		}
+		s.append("]");
+		return s.toString();
+	}
+}
@@ -0,0 +1,58 @@
+import javax.vecmath.Matrix4f;
+
+/* This defines the Frustum class, the six clipping planes of the
+ * camera in world coordinates. The planes are read off the rows of
+ * projection * view (Gribb and Hartmann), with the projection built
+ * the same way gluPerspective builds it.
+ */
+class Frustum {
+	public static final int OUTSIDE = 0, INTERSECTS = 1, INSIDE = 2;
+
+	/* a, b, c, d of each plane; points with ax + by + cz + d >= 0 are inside */
+	private final float[] planes = new float[6 * 4];
+	private final Matrix4f clip = new Matrix4f();
+
+	/* fovy in degrees, view the camera transform from world to eye coordinates */
+	public void set(float fovy, float aspect, float znear, float zfar, Matrix4f view) {
+		float f = (float) (1.0 / Math.tan(Math.toRadians(fovy) / 2));
+		clip.setZero();
+		clip.m00 = f / aspect;
+		clip.m11 = f;
+		clip.m22 = (zfar + znear) / (znear - zfar);
+		clip.m23 = 2 * zfar * znear / (znear - zfar);
+		clip.m32 = -1;
+		clip.mul(view);
+
+		setPlane(0, clip.m30 + clip.m00, clip.m31 + clip.m01, clip.m32 + clip.m02, clip.m33 + clip.m03);	// left
+		setPlane(1, clip.m30 - clip.m00, clip.m31 - clip.m01, clip.m32 - clip.m02, clip.m33 - clip.m03);	// right
+		setPlane(2, clip.m30 + clip.m10, clip.m31 + clip.m11, clip.m32 + clip.m12, clip.m33 + clip.m13);	// bottom
+		setPlane(3, clip.m30 - clip.m10, clip.m31 - clip.m11, clip.m32 - clip.m12, clip.m33 - clip.m13);	// top
+		setPlane(4, clip.m30 + clip.m20, clip.m31 + clip.m21, clip.m32 + clip.m22, clip.m33 + clip.m23);	// near
+		setPlane(5, clip.m30 - clip.m20, clip.m31 - clip.m21, clip.m32 - clip.m22, clip.m33 - clip.m23);	// far
+	}
+
+	private void setPlane(int i, float a, float b, float c, float d) {
+		float len = (float) Math.sqrt(a*a + b*b + c*c);
+		planes[i*4+0] = a / len;
+		planes[i*4+1] = b / len;
+		planes[i*4+2] = c / len;
+		planes[i*4+3] = d / len;
+	}
+
+	/* OUTSIDE, INTERSECTS or INSIDE; tests the box corner farthest
+	 * along and the one farthest against each plane normal
+	 */
+	public int test(Bounds b) {
+		int result = INSIDE;
+		for (int i = 0; i < 24; i += 4) {
+			float a = planes[i], bb = planes[i+1], c = planes[i+2], d = planes[i+3];
+			float far = a * (a > 0 ? b.maxX : b.minX) + bb * (bb > 0 ? b.maxY : b.minY) + c * (c > 0 ? b.maxZ : b.minZ) + d;
+			if (far < 0)
+				return OUTSIDE;
+			float near = a * (a > 0 ? b.minX : b.maxX) + bb * (bb > 0 ? b.minY : b.maxY) + c * (c > 0 ? b.minZ : b.maxZ) + d;
+			if (near < 0)
+				result = INTERSECTS;
+		}
+		return result;
+	}
+}
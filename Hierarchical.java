@@ -5,186 +5,341 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.io.*;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.media.opengl.*;
 import javax.media.opengl.glu.*;
 import javax.swing.JFrame;
+import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
-import javax.vecmath.Vector3f;
 
-import com.sun.opengl.util.BufferUtil;
+import com.sun.opengl.util.Animator;
 import com.sun.opengl.util.FPSAnimator;
 import com.sun.opengl.util.GLUT;
 
-import java.util.ArrayList;
-
 class Hierarchical extends JFrame implements GLEventListener, KeyListener, MouseListener, MouseMotionListener, ActionListener {
 
-	/* This defines the objModel class, which takes care
-	 * of loading a triangular mesh from an obj file,
-	 * estimating per vertex average normal,
-	 * and displaying the mesh.
+	/* This defines the objModel class, which draws a triangular
+	 * mesh loaded from an obj file. The geometry itself (positions,
+	 * per vertex average normals and faces) comes from the shared
+	 * MeshCache, so objModels of the same file share one Mesh.
+	 * The mesh is loaded in the background; until it is ready
+	 * Draw does nothing. Once loaded it draws whichever level of
+	 * detail of the mesh selectLevel last picked, from the float or
+	 * the compact form of the mesh.
 	 */
-	class objModel {
-		public FloatBuffer vertexBuffer;
-		public IntBuffer faceBuffer;
-		public FloatBuffer normalBuffer;
+	class objModel implements Detailed, Picker.Pickable {
+		public final String filename;
+		public volatile Mesh mesh;	// read by the frame pipeline's thread, changed by isLoaded
 		public Point3f center;
 		public int num_verts;		// number of vertices
 		public int num_faces;		// number of triangle faces
+		public int level;			// level of detail drawn, 0 is the full mesh
+		public boolean compact;		// whether mesh is (or is being replaced by) the compact form
+		private Mesh drawn;
+		private Future<Mesh> pending;	// null until requested, when loading lazily
+		private volatile Mesh placeholder;	// drawn until mesh has loaded, when loading lazily
+		private boolean failed;
 
 		public void Draw() {
-			vertexBuffer.rewind();
-			normalBuffer.rewind();
-			faceBuffer.rewind();
+			if (!isLoaded()) {
+				request();
+				if (placeholder == null)
+					return;
+			} else
+				touch();
+			if (useBufferObjects) {
+				vboOf(drawn).Draw(gl);
+				return;
+			}
 			gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
 			gl.glEnableClientState(GL.GL_NORMAL_ARRAY);
 			
-			gl.glVertexPointer(3, GL.GL_FLOAT, 0, vertexBuffer);
-			gl.glNormalPointer(GL.GL_FLOAT, 0, normalBuffer);
-			
-			gl.glDrawElements(GL.GL_TRIANGLES, num_faces*3, GL.GL_UNSIGNED_INT, faceBuffer);
+			drawn.setArrays(gl);
+			drawn.drawElements(gl);
 			
 			gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
 			gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
 		}
 		
 		public objModel(String filename) {
-			/* load a triangular mesh model from a .obj file */
-			BufferedReader in = null;
-			try {
-				in = new BufferedReader(new FileReader(filename));
-			} catch (IOException e) {
-				System.out.println("Error reading from file " + filename);
-				System.exit(0);
-			}
-
-			center = new Point3f();			
-			float x, y, z;
-			int v1, v2, v3;
-			float minx, miny, minz;
-			float maxx, maxy, maxz;
-			float bbx, bby, bbz;
-			minx = miny = minz = 10000.f;
-			maxx = maxy = maxz = -10000.f;
-			
-			String line;
-			String[] tokens;
-			ArrayList<Point3f> input_verts = new ArrayList<Point3f> ();
-			ArrayList<Integer> input_faces = new ArrayList<Integer> ();
-			ArrayList<Vector3f> input_norms = new ArrayList<Vector3f> ();
-			try {
-			while ((line = in.readLine()) != null) {
-				if (line.length() == 0)
-					continue;
-				switch(line.charAt(0)) {
-				case 'v':
-					tokens = line.split("[ ]+");
-					x = Float.valueOf(tokens[1]);
-					y = Float.valueOf(tokens[2]);
-					z = Float.valueOf(tokens[3]);
-					minx = Math.min(minx, x);
-					miny = Math.min(miny, y);
-					minz = Math.min(minz, z);
-					maxx = Math.max(maxx, x);
-					maxy = Math.max(maxy, y);
-					maxz = Math.max(maxz, z);
-					input_verts.add(new Point3f(x, y, z));
-					center.add(new Point3f(x, y, z));
-					break;
-				case 'f':
-					tokens = line.split("[ ]+");
-					v1 = Integer.valueOf(tokens[1])-1;
-					v2 = Integer.valueOf(tokens[2])-1;
-					v3 = Integer.valueOf(tokens[3])-1;
-					input_faces.add(v1);
-					input_faces.add(v2);
-					input_faces.add(v3);				
-					break;
-				default:
-					continue;
+			this(filename, false);
+		}
+		
+		public objModel(String filename, boolean compact) {
+			/* share the mesh of a .obj file, loading it in the background on
+			 * first use, or when it is first drawn when loading lazily; a lazy
+			 * model stands in with what its cache file has until then
+			 */
+			this.filename = filename;
+			this.compact = compact;
+			if (lazyLoading) {
+				placeholder = MeshFile.readPlaceholder(filename);
+				if (placeholder != null)
+					show(placeholder);
+			} else
+				request();
+			center = new Point3f();
+			models.add(this);
+		}
+		
+		/* starts loading the mesh unless that has been done already */
+		public void request() {
+			if (pending == null)
+				pending = MeshCache.getShared().acquireAsync(filename, compact);
+		}
+		
+		/* true once a mesh has finished loading; never blocks */
+		public boolean isLoaded() {
+			dropIfEvicted();
+			if (!failed && pending != null && pending.isDone() && (mesh == null || mesh.compact != compact)) {
+				Mesh loaded;
+				try {
+					loaded = pending.get();
+				} catch (Exception e) {
+					System.out.println("Error loading model " + filename + ": " + e.getCause());
+					failed = true;
+					return mesh != null;
+				}
+				Mesh old = mesh;
+				mesh = loaded;
+				show(mesh.getLevel(level));
+				if (old != null)
+					forgetMesh(old);
+				if (placeholder != null) {
+					forgetPlaceholder(placeholder);
+					placeholder = null;
 				}
 			}
-			in.close();	
-			} catch(IOException e) {
-				System.out.println("Unhandled error while reading input file.");
-			}
-
-			System.out.println("Read " + input_verts.size() +
-						   	" vertices and " + input_faces.size() + " faces.");
-			
-			center.scale(1.f / (float) input_verts.size());
-			
-			bbx = maxx - minx;
-			bby = maxy - miny;
-			bbz = maxz - minz;
-			float bbmax = Math.max(bbx, Math.max(bby, bbz));
-			
-			for (Point3f p : input_verts) {
-				
-				p.x = (p.x - center.x) / bbmax;
-				p.y = (p.y - center.y) / bbmax;
-				p.z = (p.z - center.z) / bbmax;
-			}
-			center.x = center.y = center.z = 0.f;
-			
-			/* estimate per vertex average normal */
-			int i;
-			for (i = 0; i < input_verts.size(); i ++) {
-				input_norms.add(new Vector3f());
-			}
-			
-			Vector3f e1 = new Vector3f();
-			Vector3f e2 = new Vector3f();
-			Vector3f tn = new Vector3f();
-			for (i = 0; i < input_faces.size(); i += 3) {
-				v1 = input_faces.get(i+0);
-				v2 = input_faces.get(i+1);
-				v3 = input_faces.get(i+2);
-				
-				e1.sub(input_verts.get(v2), input_verts.get(v1));
-				e2.sub(input_verts.get(v3), input_verts.get(v1));
-				tn.cross(e1, e2);
-				input_norms.get(v1).add(tn);
-				
-				e1.sub(input_verts.get(v3), input_verts.get(v2));
-				e2.sub(input_verts.get(v1), input_verts.get(v2));
-				tn.cross(e1, e2);
-				input_norms.get(v2).add(tn);
-				
-				e1.sub(input_verts.get(v1), input_verts.get(v3));
-				e2.sub(input_verts.get(v2), input_verts.get(v3));
-				tn.cross(e1, e2);
-				input_norms.get(v3).add(tn);			
+			return mesh != null;
+		}
+		
+		/* tells the cache the mesh was just drawn, so the budget evicts
+		 * other meshes before it
+		 */
+		public void touch() {
+			Future<Mesh> p = pending;
+			if (p != null)
+				MeshCache.getShared().touch(p);
+		}
+		
+		/* lets go of the mesh once the cache evicted it to keep within its
+		 * budget. The model then stands in with a placeholder as a lazy one
+		 * does, and loads the mesh again the next time it is drawn. The
+		 * instances of its group are dropped too, as they hold the mesh;
+		 * a StaticBatch lets go of its members' meshes once built.
+		 */
+		public void dropIfEvicted() {
+			Mesh old = mesh;
+			if (pending == null || old == null || !MeshCache.getShared().isEvicted(pending))
+				return;
+			Mesh stand_in = MeshFile.readPlaceholder(filename);
+			if (stand_in == null)
+				stand_in = Mesh.box(filename, old.centerX, old.centerY, old.centerZ, old.extent, old.bounds);
+			placeholder = stand_in;
+			show(stand_in);
+			pending = null;
+			mesh = null;
+			for (int i = 0; i < instanceGroups.size(); i ++) {
+				InstanceGroup group = instanceGroups.get(i);
+				if (group.instances != null && group.instances[0].mesh == old)
+					group.instances = null;
 			}
-
-			/* convert to buffers to improve display speed */
-			for (i = 0; i < input_verts.size(); i ++) {
-				input_norms.get(i).normalize();
+			forgetMesh(old);
+		}
+		
+		/* true once the mesh in the form asked for is loaded, or failed to;
+		 * a lazy model that was never requested has nothing to wait for
+		 */
+		public boolean isSettled() {
+			return failed || pending == null || (isLoaded() && mesh.compact == compact);
+		}
+		
+		/* switches to the compact or the float form of the mesh; the
+		 * current form is drawn until the other one has loaded
+		 */
+		public void setCompact(boolean on) {
+			if (on == compact)
+				return;
+			compact = on;
+			if (pending == null)
+				return;
+			MeshCache.getShared().release(pending);
+			failed = false;
+			pending = MeshCache.getShared().acquireAsync(filename, on);
+		}
+		
+		/* picks the level of detail for a model that appears pixels tall.
+		 * It only moves to a coarser level once the model is clearly below
+		 * the size of the current one, and back once it is clearly above,
+		 * so a model hovering around a threshold does not keep popping.
+		 */
+		public void selectLevel(float pixels) {
+			if (!isLoaded())
+				return;
+			int next = pickLevel(level, mesh.getLevelCount(), pixels);
+			if (next != level) {
+				level = next;
+				show(mesh.getLevel(level));
 			}
-			
-			vertexBuffer = BufferUtil.newFloatBuffer(input_verts.size()*3);
-			normalBuffer = BufferUtil.newFloatBuffer(input_verts.size()*3);
-			faceBuffer = BufferUtil.newIntBuffer(input_faces.size());
-			
-			for (i = 0; i < input_verts.size(); i ++) {
-				vertexBuffer.put(input_verts.get(i).x);
-				vertexBuffer.put(input_verts.get(i).y);
-				vertexBuffer.put(input_verts.get(i).z);
-				normalBuffer.put(input_norms.get(i).x);
-				normalBuffer.put(input_norms.get(i).y);
-				normalBuffer.put(input_norms.get(i).z);			
+		}
+		
+		private void show(Mesh m) {
+			drawn = m;
+			num_verts = m.num_verts;
+			num_faces = m.num_faces;
+		}
+		
+		/* does not call isLoaded, so frames can be prepared on another
+		 * thread. A placeholder has the bounds of the full mesh, so a lazy
+		 * model is culled, and not loaded, for as long as it is out of view.
+		 */
+		public Bounds getBounds() {
+			Mesh m = mesh;
+			if (m == null)
+				m = placeholder;
+			return m != null ? m.bounds : null;
+		}
+		
+		/* the full mesh's, so picking does not depend on the level drawn */
+		public MeshBVH getBVH() {
+			Mesh m = mesh;
+			return m != null ? m.getBVH() : null;
+		}
+		
+		public int getTriangleCount() {
+			return num_faces;
+		}
+		
+		/* hand the mesh back to the cache once this model is no longer drawn */
+		public void release() {
+			if (pending != null)
+				MeshCache.getShared().release(pending);
+			models.remove(this);
+		}
+	}
+	
+	/* makes the shapes buildScene puts in the sculpture */
+	interface Shapes {
+		SceneNode.Shape model(String filename);
+		
+		/* a sphere around the origin, as glutSolidSphere draws it */
+		SceneNode.Shape sphere(float radius, int slices, int stacks);
+	}
+	
+	/* a shape with levels of detail, picked by how tall it appears */
+	interface Detailed extends SceneNode.Shape {
+		void selectLevel(float pixels);
+	}
+	
+	/* the level to move to from level, out of levels, for a shape that
+	 * appears pixels tall. It only moves to a coarser level once the shape
+	 * is clearly below the size of the current one, and back once it is
+	 * clearly above, so a shape hovering around a threshold does not keep
+	 * popping.
+	 */
+	private static int pickLevel(int level, int levels, float pixels) {
+		int last = Math.min(levels - 1, LEVEL_PIXELS.length);
+		int next = Math.min(level, last);
+		while (next < last && pixels < LEVEL_PIXELS[next] * (1 - LEVEL_HYSTERESIS))
+			next ++;
+		while (next > 0 && pixels > LEVEL_PIXELS[next - 1] * (1 + LEVEL_HYSTERESIS))
+			next --;
+		return next;
+	}
+	
+	/* This defines the batchModel class, which draws the models of a
+	 * rigid group (see findBatches) that share a back color as one
+	 * StaticBatch. Its node hangs below the group's moving node with no
+	 * transform of its own; while the batch is shown the member nodes
+	 * are hidden, and the other way around.
+	 */
+	class batchModel implements Detailed {
+		final SceneNode node;
+		final ArrayList<SceneNode> members = new ArrayList<SceneNode>();
+		final ArrayList<Matrix4f> transforms = new ArrayList<Matrix4f>();	// member to node
+		volatile StaticBatch batch;		// set once built
+		boolean shown;
+		int level;
+		
+		batchModel(String name, float[] backColor) {
+			node = new SceneNode(name).shape(this).material(new Material(name, new float[] {1, 1, 1}, backColor));
+			node.hidden = true;
+		}
+		
+		/* merges the members' meshes as they are now; runs in the
+		 * background. Members a lazy scene has not loaded yet are loaded
+		 * here, since the batch hides them all once it is shown.
+		 */
+		void build() {
+			StaticBatch b = new StaticBatch(node.name);
+			ArrayList<Future<Mesh>> loads = new ArrayList<Future<Mesh>>();
+			for (int i = 0; i < members.size(); i ++) {
+				SceneNode member = members.get(i);
+				objModel model = (objModel) member.shape;
+				Mesh mesh = model.mesh;
+				if (mesh == null) {
+					Future<Mesh> load = MeshCache.getShared().acquireAsync(model.filename, model.compact);
+					loads.add(load);
+					try {
+						mesh = load.get();
+					} catch (Exception e) {
+						System.out.println("Error loading model " + model.filename + " for " + node.name + ": " + e);
+					}
+				}
+				if (mesh != null)
+					b.add(mesh, transforms.get(i), member.material.frontDiffuse);
 			}
-			
-			for (i = 0; i < input_faces.size(); i ++) {
-				faceBuffer.put(input_faces.get(i));	
-			}			
-			num_verts = input_verts.size();
-			num_faces = input_faces.size()/3;
-		}		
+			b.build();
+			for (Future<Mesh> load : loads)
+				MeshCache.getShared().release(load);
+			/* the batch holds merged copies, not the meshes, so its
+			 * memory counts against the cache's budget on its own
+			 */
+			MeshCache.getShared().charge(b.sizeInBytes());
+			batch = b;
+		}
+		
+		/* shows the batch instead of its members, or the other way around */
+		void show(boolean on) {
+			on &= batch != null;
+			if (on == shown)
+				return;
+			shown = on;
+			node.hidden = !on;
+			for (int i = 0; i < members.size(); i ++)
+				members.get(i).hidden = on;
+		}
+		
+		public void Draw() {
+			StaticBatch b = batch;
+			if (b != null)
+				b.Draw(gl, level, useBufferObjects);
+		}
+		
+		public void selectLevel(float pixels) {
+			StaticBatch b = batch;
+			if (b != null)
+				level = pickLevel(level, b.getLevelCount(), pixels);
+		}
+		
+		public Bounds getBounds() {
+			StaticBatch b = batch;
+			return b != null ? b.getBounds() : null;
+		}
+		
+		public int getTriangleCount() {
+			StaticBatch b = batch;
+			return b != null ? b.getTriangleCount(level) : 0;
+		}
 	}
 
 
@@ -212,10 +367,13 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 			break;
 		case 'a':
 		case 'A':
-			if (animator.isAnimating())
+			if (clock.isRunning()) {
+				clock.stop();
 				animator.stop();
-			else 
+			} else {
+				clock.start();
 				animator.start();
+			}
 			break;
 		case '+':
 		case '=':
@@ -225,6 +383,74 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 		case '_':
 			animation_speed /= 1.2;
 			break;
+		case 'c':
+		case 'C':
+			useCulling = !useCulling;
+			System.out.println(useCulling ? "Frustum culling on." : "Frustum culling off.");
+			break;
+		case 'i':
+		case 'I':
+			if (usePipeline) {
+				System.out.println("Instancing stays off while frames are prepared on their own thread.");
+				break;
+			}
+			setInstancing(!useInstancing);
+			System.out.println(useInstancing ? "Instancing repeated meshes." : "Drawing every model separately.");
+			break;
+		case 'v':
+		case 'V':
+			useBufferObjects = !useBufferObjects && bufferObjectsSupported;
+			System.out.println(useBufferObjects ? "Drawing from buffer objects." : "Drawing from client arrays.");
+			break;
+		case 'l':
+		case 'L':
+			useLevels = !useLevels;
+			System.out.println(useLevels ? "Levels of detail on." : "Levels of detail off.");
+			break;
+		case 'm':
+		case 'M':
+			useCompact = !useCompact;
+			for (objModel model : models)
+				model.setCompact(useCompact);
+			modelsLoaded = false;		// report the memory again once switched
+			System.out.println(useCompact ? "Switching to compact meshes." : "Switching to float meshes.");
+			break;
+		case 's':
+		case 'S':
+			useRenderQueue = !useRenderQueue;
+			System.out.println(useRenderQueue ? "Drawing sorted by material." : "Drawing in scene graph order.");
+			break;
+		case 'g':
+		case 'G':
+			useBatching = !useBatching;
+			System.out.println(useBatching ? "Drawing rigid groups as static batches." : "Drawing every model separately.");
+			break;
+		case 't':
+		case 'T':
+			usePipeline = !usePipeline;
+			System.out.println(usePipeline ? "Preparing frames on a thread of their own." : "Preparing frames on the GL thread.");
+			break;
+		case 'o':
+		case 'O':
+			showStats = !showStats;
+			overlayLines = null;
+			FrameStats.getShared().setEnabled(showStats || FrameStats.getShared().getCsvFile() != null);
+			break;
+		case 'p':
+		case 'P':
+			if (recording == null) {
+				recording = new CameraPath(CAMERA_PATH_FILE);
+				System.out.println("Recording the camera path.");
+			} else {
+				try {
+					recording.write(CAMERA_PATH_FILE);
+					System.out.println("Wrote " + recording.size() + " camera keys to " + CAMERA_PATH_FILE + ".");
+				} catch (IOException ex) {
+					System.out.println("Could not write " + CAMERA_PATH_FILE + ": " + ex.getMessage());
+				}
+				recording = null;
+			}
+			break;
 		default:
 			break;
 		}
@@ -236,12 +462,92 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 	private GL gl;
 	private final GLU glu = new GLU();	
 	private final GLUT glut = new GLUT();
-	private FPSAnimator animator;
+	private Animator animator;
+	
+	/* frames per second the animator aims for; 0 draws a frame every
+	 * vertical retrace. The sculpture moves at the speed of clock either way.
+	 */
+	private static int targetFps = 30;
+	
+	/* whether models load only once they are first drawn, showing a
+	 * placeholder from their cache file until then (see objModel)
+	 */
+	private static boolean lazyLoading = false;
+	private final AnimationClock clock = new AnimationClock();
 
 	private int winW = 1000, winH = 800;
 	private boolean wireframe = false;
 	private boolean cullface = true;
 	private boolean flatshade = false;
+	private String renderer = "";
+	private boolean bufferObjectsSupported = false;
+	private boolean useBufferObjects = false;
+	private boolean useInstancing = false;
+	private boolean useCulling = true;
+	private boolean useLevels = true;
+	private boolean useCompact = false;
+	private boolean useRenderQueue = true;
+	private boolean useBatching = true;
+	private boolean batchesStarted = false;
+	
+	/* display prepares frame itself, or while pipelining takes the frames
+	 * the pipeline prepares on its own thread; see prepareFrame
+	 */
+	private class PreparedFrame {
+		final float[] camera = new float[CAMERA_INPUTS];
+		final Matrix4f view = new Matrix4f();
+		final Matrix4f viewStep = new Matrix4f();
+		final Frustum frustum = new Frustum();
+		final CullStats cullStats = new CullStats();
+		final RenderQueue queue = new RenderQueue();
+		final float[] levelPixels = new float[modelNodes.size()];
+		boolean queued;			// queue holds the scene, or it is drawn walking the scene graph
+		final Picker picker = new Picker();
+		final Picker.Hit pick = new Picker.Hit();
+		boolean picked;			// a click was picked while preparing this frame
+		long pickNanos;
+		long prepareNanos;
+	}
+	private PreparedFrame frame;
+	private FramePipeline<PreparedFrame> pipeline;
+	private boolean usePipeline = false;
+	private final float[] camera = new float[CAMERA_INPUTS];
+	
+	/* what a frame is prepared from: the camera as CameraPath keeps it,
+	 * the window's aspect ratio and height, culling and levels on or off,
+	 * and the window point last clicked, or -1 when there is none to pick
+	 */
+	private static final int CAMERA_INPUTS = CameraPath.FIELDS + 6;
+	private static final int ASPECT = CameraPath.FIELDS, HEIGHT = ASPECT + 1;
+	private static final int CULLING = HEIGHT + 1, LEVELS = CULLING + 1;
+	private static final int PICK_X = LEVELS + 1, PICK_Y = PICK_X + 1;
+	
+	/* set by mouseClicked, taken by the next cameraInputs */
+	private volatile int clickX = -1, clickY;
+	
+	/* set while a benchmark drives display: the scene animates every
+	 * frame and every frame is finished before display returns
+	 */
+	private boolean benchmarking = false;
+	
+	/* camera keys recorded once a frame while 'p' is on */
+	private CameraPath recording;
+	private static final String CAMERA_PATH_FILE = "camera.path";
+	
+	/* frame statistics overlay, toggled with 'o' */
+	private boolean showStats = false;
+	private String[] overlayLines;
+	private int overlayAge;
+	private static final int OVERLAY_FRAMES = 10;
+	
+	/* the projected height in pixels down to which level 0, 1 and 2 of a
+	 * mesh are drawn, and how far past it a model has to get to switch
+	 */
+	private static final float[] LEVEL_PIXELS = { 300, 150, 75 };
+	private static final float LEVEL_HYSTERESIS = 0.15f;
+	
+	/* what culling saved in the last frame reported */
+	private final CullStats lastCullStats = new CullStats();
 	
 	private float xpos = 0, ypos = 0, zpos = 0;
 	private float centerx, centery, centerz;
@@ -253,34 +559,32 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 	
 	
 	
-	/* === YOUR WORK HERE === */
-	/* Define more models you need for constructing your scene */
-	private objModel femModel = new objModel("female.obj");
-	//private objModel bunModel = new objModel("bunny.obj");
-	private objModel botModel = new objModel("bottle.obj");
-	private objModel treeModel = new objModel("tree_aspen.obj");
+	/* every objModel of the scene, to tell when all of them are loaded */
+	private final ArrayList<objModel> models = new ArrayList<objModel>();
+	private boolean modelsLoaded = false;
+	
+	/* the scene nodes drawing an objModel or a batchModel, to pick their levels of detail */
+	private final ArrayList<SceneNode> modelNodes = new ArrayList<SceneNode>();
 	
-	private objModel bunMod = new objModel("bunny.obj");
-	private objModel teaMod = new objModel("teapot_chinese.obj");
-	private objModel maleMod = new objModel("male.obj");
-	private objModel femMod2 = new objModel("female.obj");
-	private objModel axeMod = new objModel("axe.obj");
+	/* the static batches of the rigid groups, built once every model is loaded */
+	private final ArrayList<batchModel> batches = new ArrayList<batchModel>();
 	
-	//Hierarchy 3
-	private objModel treeMod2 = new objModel("tree_conical.obj");
-	private objModel treeMod3 = new objModel("tree_conical.obj");
-	private objModel treeMod4 = new objModel("tree_conical.obj");
+	/* the scene nodes sharing one mesh, drawn together as instances */
+	private class InstanceGroup {
+		final objModel model;
+		final ArrayList<SceneNode> nodes = new ArrayList<SceneNode>();
+		InstancedMesh[] instances;		// one per level of detail
+		
+		InstanceGroup(objModel model) {
+			this.model = model;
+		}
+	}
+	private final ArrayList<InstanceGroup> instanceGroups = new ArrayList<InstanceGroup>();
 	
-	//Hierarchy 4
-	private objModel birdMod = new objModel("bird.obj");
-	private objModel birdMod2 = new objModel("bird.obj");
-	private objModel birdMod3 = new objModel("bird.obj");
+	/* buffer objects of each loaded mesh in the current GL context */
+	private final HashMap<Mesh, MeshVBO> vbos = new HashMap<Mesh, MeshVBO>();
 	
-	private float rotateT =0.0f;
-	private float rotateT2 = 0.0f;
-	private float rotateT3 = 0.0f;
-	private float rotateT4 = 0.0f;
-	private float rotateT5 = 0.0f;
+	private final SceneNode scene;
 	
 	//Hierarchy Color 1
 	float hColorR1 = 0.1f;
@@ -303,6 +607,8 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
    
 
 	public void display(GLAutoDrawable drawable) {
+		FrameStats stats = FrameStats.getShared();
+		stats.beginFrame();
 		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
 		
 		gl.glPolygonMode(GL.GL_FRONT_AND_BACK, wireframe ? GL.GL_LINE : GL.GL_FILL);	
@@ -312,275 +618,842 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 		else
 			gl.glDisable(GL.GL_CULL_FACE);		
 		
+		/* models out of view are not drawn, so let go here of the meshes
+		 * the cache evicted from them
+		 */
+		for (int i = 0; i < models.size(); i ++)
+			models.get(i).dropIfEvicted();
+		
+		/* the sculpture is the scene graph built by buildScene: animate
+		 * it and collect what it draws from the camera, here or, while
+		 * pipelining, on the pipeline's thread during the last frame
+		 */
+		cameraInputs(camera);
+		PreparedFrame drawn = null;
+		if (usePipeline != (pipeline != null))
+			setPipelining(usePipeline);
+		if (pipeline != null) {
+			try {
+				drawn = pipeline.take(camera);
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage() + ": " + e.getCause());
+			}
+			if (drawn == null) {
+				System.out.println("Preparing frames on the GL thread again.");
+				usePipeline = false;
+				setPipelining(false);
+			}
+		}
+		if (drawn == null) {
+			prepareFrame(frame, camera, useRenderQueue);
+			drawn = frame;
+		}
+		float[] c = drawn.camera;
+		
 		gl.glLoadIdentity();
 	
 		/* this is the transformation of the entire scene */
-		gl.glTranslatef(-xpos, -ypos, -zpos);
+		gl.glTranslatef(-c[2], -c[3], -c[4]);
 		gl.glTranslatef(centerx, centery, centerz);
-		gl.glRotatef(360.f - roth, 0, 1.0f, 0);
-		gl.glRotatef(rotv, 1.0f, 0, 0);
+		gl.glRotatef(360.f - c[0], 0, 1.0f, 0);
+		gl.glRotatef(c[1], 1.0f, 0, 0);
 		gl.glTranslatef(-centerx, -centery, -centerz);	
 		
 		/* === YOUR WORK HERE === */
 		
-		/* Below is an example of a rotating bunny
-		 * It rotates the bunny with example_rotateT degrees around the bunny's gravity center  
-		 */
-		/****Hierarchy 1****/
-		//This is the 1st Hierarchy of the object, which will have 
-		gl.glPushMatrix();	// push the current matrix to stack
-		 float[] violetDiffuse = {1.0f, 0.1f, 0.58f};
-
-		/* call objModel::Draw function to draw the model */
-			
-			
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, violetDiffuse, 0);
-
-			  
-		
-				gl.glTranslatef(-0.5f,-0.5f,-0.1f);
-				gl.glScalef(0.6f,0.6f,0.6f);
-				gl.glRotatef(rotateT, 0, 1, 0);
-
-				
-				femModel.Draw();
-		
-			
-				gl.glPushMatrix();
-				 
-
-					/* call objModel::Draw function to draw the model */
-					
-						
-						float[] cyanDiffuse = {0.0f, 1.0f, 1.0f};
-					     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, cyanDiffuse, 0);
-						
-					gl.glTranslatef(0.3f,0.65f,-0.25f);
-					gl.glScalef(0.35f, 0.35f, 0.35f);
-				   
-
-					botModel.Draw();
-				gl.glPopMatrix();
-						gl.glPushMatrix();
-						 float[] greenDiffuse = {0.0f, 1.0f, 0.5f};
-
-							/* call objModel::Draw function to draw the model */
-								
-						 	gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, greenDiffuse, 0);
-						 	
-							float[] lightGDiffuse = {0.56f, 0.93f, 0.56f};
-						    gl.glMaterialfv( GL.GL_BACK, GL.GL_DIFFUSE, lightGDiffuse, 0);
-
-							gl.glTranslatef(-0.6f, 0.4f,0.8f);
-							gl.glScalef(2.7f,2.6f,2.0f);
-
-							
-							treeModel.Draw();
-						gl.glPopMatrix();
-				
+		selectLevels(drawn.levelPixels);
+		if (drawn.queued) {
+			drawn.queue.submit(gl);
+		} else {
+			/* one hierarchy at a time, so each can be timed */
+			for (int i = 0; i < scene.children.size(); i ++) {
+				long start = stats.blockStart();
+				scene.children.get(i).Draw(gl, c[CULLING] != 0 ? drawn.frustum : null, drawn.cullStats);
+				stats.blockEnd(i, start);
+			}
+		}
+		if (useInstancing && pipeline == null) {
+			long start = stats.blockStart();
+			drawInstances();
+			stats.blockEnd(scene.children.size(), start);
+		}
+		stats.block(scene.children.size() + 1, drawn.prepareNanos);
+		if (drawn.picked)
+			reportPick(drawn);
+		if (!benchmarking && !drawn.cullStats.equals(lastCullStats)) {
+			lastCullStats.set(drawn.cullStats);
+			System.out.println(drawn.cullStats);
+		}
 		
-		gl.glPopMatrix();
+		if (!modelsLoaded)
+			reportWhenLoaded();
 		
+		if (recording != null)
+			recording.add(roth, rotv, xpos, ypos, zpos);
 		
-		/*****Hierarchy 2*****/
+		stats.endFrame();
+		if (showStats)
+			drawStatsOverlay();
+		if (benchmarking)
+			gl.glFinish();
+	}	
+	
+	/* draws the frame statistics over the top left corner, refreshing
+	 * the text every OVERLAY_FRAMES frames so it can be read
+	 */
+	private void drawStatsOverlay() {
+		if (overlayLines == null || ++ overlayAge >= OVERLAY_FRAMES) {
+			overlayLines = FrameStats.getShared().overlayLines();
+			overlayAge = 0;
+		}
+		gl.glPushAttrib(GL.GL_ENABLE_BIT | GL.GL_CURRENT_BIT);
+		gl.glDisable(GL.GL_LIGHTING);
+		gl.glDisable(GL.GL_DEPTH_TEST);
+		gl.glMatrixMode(GL.GL_PROJECTION);
 		gl.glPushMatrix();
-
-			gl.glTranslatef(0.45f, 0.2f, -0.3f);
-			gl.glScalef(0.3f, 0.3f, 0.3f);
-			gl.glRotatef(90, 0, 1, 0);
-			gl.glRotatef(rotateT2, 0, 1, 0);
-
-				
-				/* call objModel::Draw function to draw the model */
-					
-				 float[] brownDiffuse = {.545f, 0.27f,0.1f};
-
-				     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, brownDiffuse, 0);
-				    
-				     bunMod.Draw();
-			gl.glPushMatrix();
-			   
-				gl.glPushMatrix();
-				
-				
-				gl.glTranslatef(1.5f, 1.0f, 1.25f);
-				gl.glScalef(2.0f,2.0f, 2.0f);
-				
-	
-			 float[] purpleDiffuse = {0.5f, 0.0f, 0.5f};
-
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, purpleDiffuse, 0);
-
-				femMod2.Draw();
-				gl.glPopMatrix();
-			gl.glPopMatrix();
-			
-			gl.glPushMatrix();
-				gl.glTranslatef(1.5f, 1.1f, -1.25f);
-				gl.glScalef(2.0f, 2.0f, 2.0f);
-				gl.glRotatef(180, 0,1,0);
-				
-				 float[] slateBlueDiffuse = {0.4f, 0.35f, 0.8f};
-				  gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, slateBlueDiffuse, 0);
-				maleMod.Draw();
-			gl.glPopMatrix();
-			
-			gl.glPushMatrix();
-				gl.glTranslatef(1.25f, 1.1f, 1.55f);
-				gl.glScalef(0.75f, 0.75f, 0.75f);
-				gl.glRotatef(90, 0.0f, 1.0f, 0.1f);
-				
-				 float[] grayDiffuse = {0.5f, 0.5f, 0.5f};
-
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, grayDiffuse, 0);
-			     
-				axeMod.Draw();
-			gl.glPopMatrix();
-			
-			gl.glPushMatrix();
-				gl.glTranslatef(1.5f, 0.9f, -1.53f);
-				gl.glScalef(0.75f, 0.75f, 0.75f);
-				gl.glRotatef(45, -0.1f, 0.0f, 0.0f);
-				
-				 float[] salmonDiffuse = {0.98f, 0.5f, 0.45f};
-
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, salmonDiffuse, 0);
-			     
-				teaMod.Draw();
-			gl.glPopMatrix();
-			
+		gl.glLoadIdentity();
+		gl.glOrtho(0, winW, winH, 0, -1, 1);
+		gl.glMatrixMode(GL.GL_MODELVIEW);
+		gl.glPushMatrix();
+		gl.glLoadIdentity();
+		gl.glColor3f(1.0f, 1.0f, 0.6f);
+		for (int i = 0; i < overlayLines.length; i ++) {
+			gl.glRasterPos2i(10, 20 + i * 15);
+			glut.glutBitmapString(GLUT.BITMAP_8_BY_13, overlayLines[i]);
+		}
 		gl.glPopMatrix();
+		gl.glMatrixMode(GL.GL_PROJECTION);
+		gl.glPopMatrix();
+		gl.glMatrixMode(GL.GL_MODELVIEW);
+		gl.glPopAttrib();
+	}
 	
-		/****Hierarchy 3 ****/
-		gl.glPushMatrix();
-			gl.glTranslatef(-1.0f, 0.7f, -0.8f);
-			gl.glScalef(0.6f,0.6f,0.6f);
-			
-			gl.glRotatef(rotateT3, 0, 1, 0);
-			
-			 float[] oliveGDiffuse = {0.33f, 0.42f, 0.18f};
-
-		     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, oliveGDiffuse, 0);
-			
-		     float[] oliveDiffuse = {0.5f, 0.5f, 0.0f};
-			    gl.glMaterialfv( GL.GL_BACK, GL.GL_DIFFUSE, oliveDiffuse, 0);
-
-		     treeMod2.Draw();
+	/* the buffer objects of mesh, uploading it on first use */
+	private MeshVBO vboOf(Mesh mesh) {
+		MeshVBO vbo = vbos.get(mesh);
+		if (vbo == null) {
+			vbo = new MeshVBO(gl, mesh);
+			vbos.put(mesh, vbo);
+		}
+		return vbo;
+	}
+	
+	/* frees the buffer objects of mesh and its levels of detail once
+	 * no model draws it any more
+	 */
+	private void forgetMesh(Mesh mesh) {
+		for (objModel model : models)
+			if (model.mesh == mesh)
+				return;
+		for (int i = 0; i < mesh.getLevelCount(); i ++) {
+			MeshVBO vbo = vbos.remove(mesh.getLevel(i));
+			if (vbo != null)
+				vbo.delete(gl);
+		}
+	}
+	
+	/* frees the buffer objects of a placeholder once its model has loaded */
+	private void forgetPlaceholder(Mesh placeholder) {
+		MeshVBO vbo = vbos.remove(placeholder);
+		if (vbo != null)
+			vbo.delete(gl);
+	}
+	
+	/* the current camera and switches, as prepareFrame takes them */
+	private void cameraInputs(float[] c) {
+		c[0] = roth;
+		c[1] = rotv;
+		c[2] = xpos;
+		c[3] = ypos;
+		c[4] = zpos;
+		c[ASPECT] = (float) winW / (float) winH;
+		c[HEIGHT] = winH;
+		c[CULLING] = useCulling ? 1 : 0;
+		c[LEVELS] = useLevels ? 1 : 0;
+		c[PICK_X] = clickX;
+		c[PICK_Y] = clickY;
+		clickX = -1;
+	}
+	
+	/* animates the scene and prepares frame for drawing it from camera:
+	 * the view, the frustum and the sizes that pick the levels of detail,
+	 * and when queued the sorted lights and shapes. This touches no GL,
+	 * and while pipelining only the pipeline's thread calls it, so it is
+	 * the only code that changes the scene graph.
+	 */
+	private void prepareFrame(PreparedFrame frame, float[] camera, boolean queued) {
+		long start = System.nanoTime();
+		System.arraycopy(camera, 0, frame.camera, 0, CAMERA_INPUTS);
+		if (benchmarking) {
+			scene.animate(animation_speed);
+		} else {
+			int steps = clock.advance();
+			for (int i = 0; i < steps; i ++)
+				scene.animate(animation_speed);
+			scene.interpolate(clock.alpha());
+		}
+		for (int i = 0; i < batches.size(); i ++)
+			batches.get(i).show(useBatching);
+		scene.update();
+		updateView(frame);
+		pick(frame);
+		measureLevels(frame);
+		boolean culling = camera[CULLING] != 0;
+		if (culling)
+			frame.frustum.set(45.f, camera[ASPECT], znear, zfar, frame.view);
+		frame.cullStats.reset();
+		frame.queue.clear();
+		frame.queued = queued;
+		if (queued) {
+			for (int i = 0; i < scene.children.size(); i ++) {
+				frame.queue.setBlock(i);
+				scene.children.get(i).Draw(null, culling ? frame.frustum : null, frame.cullStats, frame.queue);
+			}
+			frame.queue.sort();
+		}
+		frame.prepareNanos = System.nanoTime() - start;
+	}
+	
+	/* casts a ray from the eye through the point clicked, if any, at the
+	 * scene as this frame shows it
+	 */
+	private void pick(PreparedFrame frame) {
+		float[] c = frame.camera;
+		frame.picked = c[PICK_X] >= 0;
+		if (!frame.picked)
+			return;
+		long start = System.nanoTime();
+		float x = 2 * (c[PICK_X] + 0.5f) / (c[HEIGHT] * c[ASPECT]) - 1;
+		float y = 1 - 2 * (c[PICK_Y] + 0.5f) / c[HEIGHT];
+		frame.picker.pick(scene, frame.view, 45.f, c[ASPECT], x, y, frame.pick);
+		frame.pickNanos = System.nanoTime() - start;
+	}
+	
+	/* prints what the last click hit */
+	private void reportPick(PreparedFrame frame) {
+		Picker.Hit hit = frame.pick;
+		if (hit.node == null) {
+			System.out.println(String.format("Picked nothing (%d meshes tested, %.3fms)",
+					hit.shapesTested, frame.pickNanos / 1e6));
+			return;
+		}
+		String model = hit.node.shape instanceof objModel ? ((objModel) hit.node.shape).filename : "";
+		System.out.println(String.format("Picked %s in %s (%s), triangle %d at distance %.3f (%d meshes tested, %.3fms)",
+				hit.node.name, hit.hierarchy.name, model, hit.triangle, hit.t, hit.shapesTested, frame.pickNanos / 1e6));
+	}
+	
+	/* starts or stops preparing frames on the pipeline's thread. The
+	 * instanced nodes are drawn from the GL thread's view of the scene
+	 * graph, so instancing is off while pipelining.
+	 */
+	private void setPipelining(boolean on) {
+		if (on && pipeline == null) {
+			setInstancing(false);
+			pipeline = new FramePipeline<PreparedFrame>(new PreparedFrame(), new PreparedFrame(),
+					new PreparedFrame(), CAMERA_INPUTS, new FramePipeline.Preparer<PreparedFrame>() {
+						public void prepare(PreparedFrame frame, float[] camera) {
+							prepareFrame(frame, camera, true);
+						}
+					});
+			pipeline.start(camera);
+		} else if (!on && pipeline != null) {
+			pipeline.stop();
+			pipeline = null;
+			setInstancing(true);
+		}
+	}
+	
+	/* rebuilds frame's view, the camera transform of display(), for
+	 * frustum culling and level of detail selection
+	 */
+	private void updateView(PreparedFrame frame) {
+		viewOf(frame.camera, centerx, centery, centerz, frame.view, frame.viewStep);
+	}
+	
+	/* sets view to the camera transform of display() for camera c (roth,
+	 * rotv, xpos, ypos, zpos) turning about the center; step is scratch
+	 */
+	static void viewOf(float[] c, float centerx, float centery, float centerz, Matrix4f view, Matrix4f step) {
+		view.setIdentity();
+		view.m03 = -c[2] + centerx;
+		view.m13 = -c[3] + centery;
+		view.m23 = -c[4] + centerz;
+		step.rotY((float) Math.toRadians(360.f - c[0]));
+		view.mul(step);
+		step.rotX((float) Math.toRadians(c[1]));
+		view.mul(step);
+		step.setIdentity();
+		step.m03 = -centerx;
+		step.m13 = -centery;
+		step.m23 = -centerz;
+		view.mul(step);
+	}
+	
+	/* how tall every model's bounding sphere appears in the window: the
+	 * diameter over the distance from the eye, times the window height
+	 * over the height of the view at unit distance. With levels off
+	 * every model is taken as big enough to draw at level 0.
+	 */
+	private void measureLevels(PreparedFrame frame) {
+		Matrix4f view = frame.view;
+		float pixelsPerUnit = frame.camera[HEIGHT] / (2 * (float) Math.tan(Math.toRadians(45.f / 2)));
+		for (int i = 0; i < modelNodes.size(); i ++) {
+			Bounds b = modelNodes.get(i).getShapeBounds();
+			float pixels = 0;
+			if (frame.camera[LEVELS] == 0)
+				pixels = Float.MAX_VALUE;
+			else if (!b.isEmpty()) {
+				float depth = -(view.m20 * b.centerX() + view.m21 * b.centerY() + view.m22 * b.centerZ() + view.m23);
+				pixels = 2 * b.radius() / Math.max(depth, znear) * pixelsPerUnit;
+			}
+			frame.levelPixels[i] = pixels;
+		}
+	}
+	
+	/* picks every model's level of detail from the sizes measureLevels
+	 * found; models of unknown size keep their level
+	 */
+	private void selectLevels(float[] levelPixels) {
+		for (int i = 0; i < modelNodes.size(); i ++)
+			if (levelPixels[i] > 0)
+				((Detailed) modelNodes.get(i).shape).selectLevel(levelPixels[i]);
+	}
+	
+	/* collects the scene nodes that draw an objModel and groups those
+	 * that draw the same obj file, such as the three conical trees and
+	 * the three birds
+	 */
+	private void findInstances(SceneNode node, HashMap<String, InstanceGroup> groups) {
+		if (node.shape instanceof objModel)
+			modelNodes.add(node);
+		if (node.shape instanceof objModel && node.material != null) {
+			objModel model = (objModel) node.shape;
+			InstanceGroup group = groups.get(model.filename);
+			if (group == null) {
+				group = new InstanceGroup(model);
+				groups.put(model.filename, group);
+				instanceGroups.add(group);
+			}
+			group.nodes.add(node);
+		}
+		for (SceneNode child : node.children)
+			findInstances(child, groups);
+	}
+	
+	private void setInstancing(boolean on) {
+		useInstancing = on;
+		for (InstanceGroup group : instanceGroups)
+			for (SceneNode node : group.nodes)
+				node.instanced = on;
+	}
+	
+	/* draws each group of nodes sharing a mesh in one submission per
+	 * level of detail, with the world matrices and materials of the
+	 * current frame
+	 */
+	private void drawInstances() {
+		for (int g = 0; g < instanceGroups.size(); g ++) {
+			InstanceGroup group = instanceGroups.get(g);
+			if (!group.model.isLoaded()) {
+				drawPlaceholders(group);
+				continue;
+			}
+			group.model.touch();
+			Mesh mesh = group.model.mesh;
+			if (group.instances == null || group.instances[0].mesh != mesh) {
+				group.instances = new InstancedMesh[mesh.getLevelCount()];
+				for (int i = 0; i < group.instances.length; i ++)
+					group.instances[i] = new InstancedMesh(mesh.getLevel(i));
+			}
+			for (int i = 0; i < group.instances.length; i ++)
+				group.instances[i].clear();
+			for (int i = 0; i < group.nodes.size(); i ++) {
+				SceneNode node = group.nodes.get(i);
+				objModel model = (objModel) node.shape;
+				if (!node.culled && !node.hidden && model.isLoaded())
+					group.instances[model.level].add(node.getWorldGL(), 0, node.material);
+			}
+			for (int i = 0; i < group.instances.length; i ++) {
+				InstancedMesh instances = group.instances[i];
+				if (instances.size() > 0)
+					instances.Draw(gl, useBufferObjects ? vboOf(instances.mesh) : null);
+			}
+		}
+	}
+	
+	/* draws the visible nodes of a group whose mesh has not loaded yet
+	 * one by one, which shows their placeholders and requests the mesh
+	 */
+	private void drawPlaceholders(InstanceGroup group) {
+		for (int i = 0; i < group.nodes.size(); i ++) {
+			SceneNode node = group.nodes.get(i);
+			if (node.culled || node.hidden)
+				continue;
 			gl.glPushMatrix();
-				gl.glTranslatef(-0.8f, 0.3f, -0.6f);
-				gl.glScalef(1.2f, 1.2f, 0.8f);
-				
-				 float[] forestGDiffuse = {0.13f, 0.54f, 0.13f};
-
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, forestGDiffuse, 0);
-				treeMod3.Draw();
+			gl.glMultMatrixf(node.getWorldGL(), 0);
+			node.material.apply(gl);
+			group.model.Draw();
 			gl.glPopMatrix();
-				gl.glPushMatrix();
-					gl.glTranslatef(0.2f, 0.3f,-0.6f);
-					gl.glScalef(1.2f, 1.2f,0.8f);
-					
-					 float[] darkGDiffuse = {0.0f, 0.39f, 0.0f};
-
-				     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, darkGDiffuse, 0);
-					treeMod4.Draw();
-				gl.glPopMatrix();
-			
-		gl.glPopMatrix();
+		}
+	}
+	
+	/* prints the startup timing report once every model has been loaded */
+	private void reportWhenLoaded() {
+		for (objModel model : models)
+			if (!model.isSettled())
+				return;
+		modelsLoaded = true;
+		System.out.print(MeshCache.getShared().loadReport());
+		System.out.println(MeshCache.getShared().report());
+		if (!batchesStarted)
+			buildBatches();
+	}
+	
+	/* true once every batch is built, so the frames are the ones batching draws */
+	private boolean batchesBuilt() {
+		for (int i = 0; i < batches.size(); i ++)
+			if (batches.get(i).batch == null)
+				return false;
+		return true;
+	}
+	
+	/* finds the rigid groups below node: a moving node (one that spins,
+	 * or a hierarchy) together with every node hanging from it through
+	 * nodes that never move relative to their parents, like the woman,
+	 * bottle and aspen of hierarchy 1. The models of a group sharing a
+	 * back color become one batchModel, and the moving nodes further
+	 * down start groups of their own.
+	 */
+	private void findBatches(SceneNode node) {
+		ArrayList<SceneNode> members = new ArrayList<SceneNode>();
+		ArrayList<Matrix4f> transforms = new ArrayList<Matrix4f>();
+		ArrayList<SceneNode> moving = new ArrayList<SceneNode>();
+		Matrix4f identity = new Matrix4f();
+		identity.setIdentity();
+		collectRigid(node, identity, members, transforms, moving);
 		
-		/*****Hierarchy 4***/
-		gl.glPushMatrix();
+		ArrayList<batchModel> groups = new ArrayList<batchModel>();
+		for (int i = 0; i < members.size(); i ++) {
+			float[] back = members.get(i).material.backDiffuse;
+			batchModel group = null;
+			for (batchModel g : groups)
+				if (Arrays.equals(g.node.material.backDiffuse, back))
+					group = g;
+			if (group == null) {
+				group = new batchModel(node.name + " batch " + (groups.size() + 1), back);
+				groups.add(group);
+			}
+			group.members.add(members.get(i));
+			group.transforms.add(transforms.get(i));
+		}
+		for (batchModel group : groups) {
+			if (group.members.size() < 2)
+				continue;		// nothing to save
+			node.add(group.node);
+			modelNodes.add(group.node);
+			batches.add(group);
+		}
+		for (SceneNode child : moving)
+			findBatches(child);
+	}
+	
+	private void collectRigid(SceneNode node, Matrix4f toGroup, ArrayList<SceneNode> members,
+			ArrayList<Matrix4f> transforms, ArrayList<SceneNode> moving) {
+		if (node.shape instanceof objModel && node.material != null) {
+			members.add(node);
+			transforms.add(toGroup);
+		}
+		for (SceneNode child : node.children) {
+			if (!child.isRigid()) {
+				moving.add(child);
+				continue;
+			}
+			Matrix4f m = new Matrix4f();
+			m.mul(toGroup, child.getFixed());
+			collectRigid(child, m, members, transforms, moving);
+		}
+	}
+	
+	/* merges the batches in the background from the meshes loaded now */
+	private void buildBatches() {
+		batchesStarted = true;
+		for (final batchModel group : batches) {
+			ForkJoinPool.commonPool().execute(new Runnable() {
+				public void run() {
+					long t0 = System.nanoTime();
+					group.build();
+					StaticBatch b = group.batch;
+					System.out.println(String.format(Locale.ROOT, "Batched %d models into %s: %d triangles, %.1f MB in %d levels, %.0fms.",
+							b.getMemberCount(), b.name, b.getTriangleCount(0), b.sizeInBytes() / 1048576.0,
+							b.getLevelCount(), (System.nanoTime() - t0) / 1e6));
+				}
+			});
+		}
+	}
+	
+	/* Builds the scene graph of the sculpture. Each hierarchy spins about
+	 * its own y axis at its own speed and carries its children along;
+	 * the sun at the top also carries the two lights that move with it.
+	 *
+	 * Back face colors are given explicitly: glMaterialfv state carries
+	 * over from one model to the next, so these are the back colors each
+	 * model has always been drawn with.
+	 *
+	 * The shapes come from shapes, so the same sculpture can be drawn
+	 * with GL or, without a display, by SoftwareRenderer.
+	 */
+	static SceneNode buildScene(Shapes shapes) {
+		float[] oliveBack = {0.5f, 0.5f, 0.0f};
+		float[] lightGreenBack = {0.56f, 0.93f, 0.56f};
 		
+		/****Hierarchy 1****/
+		SceneNode h1 = new SceneNode("hierarchy 1")
+			.translate(-0.5f,-0.5f,-0.1f).scale(0.6f).spin(1.0f, 0, 1, 0)
+			.shape(shapes.model("female.obj")).material(new Material("violet", new float[] {1.0f, 0.1f, 0.58f}, oliveBack));
+		h1.add(new SceneNode("bottle")
+			.translate(0.3f,0.65f,-0.25f).scale(0.35f)
+			.shape(shapes.model("bottle.obj")).material(new Material("cyan", new float[] {0.0f, 1.0f, 1.0f}, oliveBack)));
+		h1.add(new SceneNode("aspen")
+			.translate(-0.6f, 0.4f,0.8f).scale(2.7f,2.6f,2.0f)
+			.shape(shapes.model("tree_aspen.obj")).material(new Material("green", new float[] {0.0f, 1.0f, 0.5f}, lightGreenBack)));
 		
-			gl.glTranslatef(0.3f,1.0f, 0.0f);
-			gl.glScalef(0.2f,0.2f,0.2f);
-			
-			gl.glRotatef(rotateT4, 0, 1, 0);
-			
-			 float[] yellowDiffuse = {1.0f, 1.0f, 0.18f};
-
-		     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, yellowDiffuse, 0);
-			birdMod.Draw();
-			gl.glPushMatrix();
-				gl.glTranslatef(-1.5f, 0.0f, 0.3f);
-				 float[] orangeDiffuse = {1.0f, 0.45f, 0.18f};
-
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, orangeDiffuse, 0);
-				birdMod2.Draw();
-			gl.glPopMatrix();
-			
-			gl.glPushMatrix();
-				gl.glTranslatef(1.5f, 0.0f, -0.3f);
-				float[] indigoDiffuse = {0.294f, 0.45f, 0.510f};
-
-			     gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, indigoDiffuse, 0);
-				birdMod3.Draw();
-			gl.glPopMatrix();
-		gl.glPopMatrix();
+		/*****Hierarchy 2*****/
+		SceneNode h2 = new SceneNode("hierarchy 2")
+			.translate(0.45f, 0.2f, -0.3f).scale(0.3f).rotate(90, 0, 1, 0).spin(1.3f, 0, 1, 0)
+			.shape(shapes.model("bunny.obj")).material(new Material("brown", new float[] {.545f, 0.27f,0.1f}, lightGreenBack));
+		h2.add(new SceneNode("woman")
+			.translate(1.5f, 1.0f, 1.25f).scale(2.0f)
+			.shape(shapes.model("female.obj")).material(new Material("purple", new float[] {0.5f, 0.0f, 0.5f}, lightGreenBack)));
+		h2.add(new SceneNode("man")
+			.translate(1.5f, 1.1f, -1.25f).scale(2.0f).rotate(180, 0,1,0)
+			.shape(shapes.model("male.obj")).material(new Material("slate blue", new float[] {0.4f, 0.35f, 0.8f}, lightGreenBack)));
+		h2.add(new SceneNode("axe")
+			.translate(1.25f, 1.1f, 1.55f).scale(0.75f).rotate(90, 0.0f, 1.0f, 0.1f)
+			.shape(shapes.model("axe.obj")).material(new Material("gray", new float[] {0.5f, 0.5f, 0.5f}, lightGreenBack)));
+		h2.add(new SceneNode("teapot")
+			.translate(1.5f, 0.9f, -1.53f).scale(0.75f).rotate(45, -0.1f, 0.0f, 0.0f)
+			.shape(shapes.model("teapot_chinese.obj")).material(new Material("salmon", new float[] {0.98f, 0.5f, 0.45f}, lightGreenBack)));
 		
-		gl.glPushMatrix();
-			gl.glTranslatef(-0.25f, 1.4f, -0.3f);
-			gl.glScalef(0.45f,0.45f,0.45f);
-			gl.glRotatef(rotateT5, 0, 1, 0);
-			
-			float[] lightPos = {-0.1f,-0.3f, 0.6f, 0};
-			float[] lightDif = {1,1,1,1};
-			float[] lightSpec = {0.5f, 0.8f,0.3f, 1};
-			gl.glLightfv( GL.GL_LIGHT0, GL.GL_POSITION, lightPos, 0);
-			gl.glLightfv( GL.GL_LIGHT0, GL.GL_SPECULAR, lightDif, 0);
-		    gl.glLightfv( GL.GL_LIGHT0, GL.GL_SPECULAR, lightSpec, 0);
-
-			
-		    //red light
-		    float light1_position[] = { -.5f, .6f, 0, 0 };
-		    float light1_diffuse[] = { .6f, .05f, .05f, 1 };
-		    float light1_specular[] = { .6f, .05f, .05f, 1 };
-		    gl.glLightfv( GL.GL_LIGHT1, GL.GL_POSITION, light1_position, 0);
-		    gl.glLightfv( GL.GL_LIGHT1, GL.GL_DIFFUSE, light1_diffuse, 0);
-		    gl.glLightfv( GL.GL_LIGHT1, GL.GL_SPECULAR, light1_specular, 0);
-		   
-			 float[] sunDiffuse = {1.0f, 1.0f, .50f};
-			 gl.glMaterialfv( GL.GL_FRONT, GL.GL_DIFFUSE, sunDiffuse, 0);
-			glut.glutSolidSphere(0.2, 20, 22);
-		gl.glPopMatrix();
-		/* increment example_rotateT */
-		if (animator.isAnimating())
-			rotateT += 1.0f * animation_speed;
-			rotateT2 += 1.3f * animation_speed;
-			rotateT3 += 1.6f * animation_speed;
-			rotateT4 += 1.9f * animation_speed;
-			rotateT5 += 2.1f * animation_speed;
-	}	
+		/****Hierarchy 3 ****/
+		SceneNode h3 = new SceneNode("hierarchy 3")
+			.translate(-1.0f, 0.7f, -0.8f).scale(0.6f).spin(1.6f, 0, 1, 0)
+			.shape(shapes.model("tree_conical.obj")).material(new Material("olive green", new float[] {0.33f, 0.42f, 0.18f}, oliveBack));
+		h3.add(new SceneNode("left tree")
+			.translate(-0.8f, 0.3f, -0.6f).scale(1.2f, 1.2f, 0.8f)
+			.shape(shapes.model("tree_conical.obj")).material(new Material("forest green", new float[] {0.13f, 0.54f, 0.13f}, oliveBack)));
+		h3.add(new SceneNode("right tree")
+			.translate(0.2f, 0.3f,-0.6f).scale(1.2f, 1.2f,0.8f)
+			.shape(shapes.model("tree_conical.obj")).material(new Material("dark green", new float[] {0.0f, 0.39f, 0.0f}, oliveBack)));
+		
+		/*****Hierarchy 4***/
+		SceneNode h4 = new SceneNode("hierarchy 4")
+			.translate(0.3f,1.0f, 0.0f).scale(0.2f).spin(1.9f, 0, 1, 0)
+			.shape(shapes.model("bird.obj")).material(new Material("yellow", new float[] {1.0f, 1.0f, 0.18f}, oliveBack));
+		h4.add(new SceneNode("left bird")
+			.translate(-1.5f, 0.0f, 0.3f)
+			.shape(shapes.model("bird.obj")).material(new Material("orange", new float[] {1.0f, 0.45f, 0.18f}, oliveBack)));
+		h4.add(new SceneNode("right bird")
+			.translate(1.5f, 0.0f, -0.3f)
+			.shape(shapes.model("bird.obj")).material(new Material("indigo", new float[] {0.294f, 0.45f, 0.510f}, oliveBack)));
+		
+		/*****Sun and its lights*****/
+		SceneNode sun = new SceneNode("sun")
+			.translate(-0.25f, 1.4f, -0.3f).scale(0.45f).spin(2.1f, 0, 1, 0)
+			.light(new Light(GL.GL_LIGHT0, new float[] {-0.1f,-0.3f, 0.6f, 0},
+					new float[] {1,1,1,1}, new float[] {0.5f, 0.8f,0.3f, 1}))
+			//red light
+			.light(new Light(GL.GL_LIGHT1, new float[] { -.5f, .6f, 0, 0 },
+					new float[] { .6f, .05f, .05f, 1 }, new float[] { .6f, .05f, .05f, 1 }))
+			.shape(shapes.sphere(0.2f, 20, 22))
+			.material(new Material("sun", new float[] {1.0f, 1.0f, .50f}, oliveBack));
+		
+		return new SceneNode("scene").add(h1).add(h2).add(h3).add(h4).add(sun);
+	}
 	
 	public static void Hierarchy1(){
 		
 	}
 	
 	public Hierarchical() {
+		this(true);
+	}
+	
+	/* without a window the sculpture is drawn by whoever adds it as the
+	 * GLEventListener of their drawable, as benchmark does
+	 */
+	private Hierarchical(boolean windowed) {
 		super("Assignment 3 -- Hierarchical Modeling");
+		scene = buildScene(new Shapes() {
+			public SceneNode.Shape model(String filename) {
+				return new objModel(filename);
+			}
+			
+			public SceneNode.Shape sphere(final float radius, final int slices, final int stacks) {
+				return new SceneNode.Shape() {
+					private final Bounds bounds = new Bounds(-radius, -radius, -radius, radius, radius, radius);
+					
+					public void Draw() {
+						glut.glutSolidSphere(radius, slices, stacks);
+						FrameStats.getShared().draw(getTriangleCount(), 0);	// glut sends its vertices one by one
+					}
+					
+					public Bounds getBounds() {
+						return bounds;
+					}
+					
+					public int getTriangleCount() {
+						return slices * stacks * 2;
+					}
+				};
+			}
+		});
+		findInstances(scene, new HashMap<String, InstanceGroup>());
+		for (int i = 0; i < scene.children.size(); i ++)
+			findBatches(scene.children.get(i));
+		for (int i = instanceGroups.size() - 1; i >= 0; i --)
+			if (instanceGroups.get(i).nodes.size() < 2)
+				instanceGroups.remove(i);
+		setInstancing(true);
+		frame = new PreparedFrame();
+		String[] blocks = new String[scene.children.size() + 2];
+		for (int i = 0; i < scene.children.size(); i ++)
+			blocks[i] = scene.children.get(i).name;
+		blocks[blocks.length - 2] = "instances";
+		blocks[blocks.length - 1] = "prepare";
+		FrameStats.getShared().setBlockNames(blocks);
+		if (!windowed) {
+			canvas = null;
+			return;
+		}
 		canvas = new GLCanvas();
 		canvas.addGLEventListener(this);
 		canvas.addKeyListener(this);
 		canvas.addMouseListener(this);
 		canvas.addMouseMotionListener(this);
-		animator = new FPSAnimator(canvas, 30);	// create a 30 fps animator
+		FrameStats.getShared().register();
+		MeshCache.getShared().register();
+		if (targetFps > 0) {
+			animator = new FPSAnimator(canvas, targetFps);
+		} else {
+			animator = new Animator(canvas);
+			animator.setRunAsFastAsPossible(true);	// paced by the swap interval set in init
+		}
 		getContentPane().add(canvas);
 		setSize(winW, winH);
 		setLocationRelativeTo(null);
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
 		setVisible(true);
 		animator.start();
+		clock.start();
 		canvas.requestFocus();
 	}
 	
 	public static void main(String[] args) {
-
+		if (args.length > 0 && args[0].equals("-benchmark")) {
+			benchmark(args);
+			return;
+		}
+		for (int i = 0; i < args.length; i ++) {
+			if (args[i].equals("-lazy")) {
+				/* load the models as they come into view */
+				lazyLoading = true;
+			} else if (i + 1 == args.length) {
+				break;
+			} else if (args[i].equals("-stats")) {
+				/* collect frame statistics from the start, appending them to a CSV file */
+				FrameStats.getShared().setCsvFile(args[++ i]);
+				FrameStats.getShared().setEnabled(true);
+			} else if (args[i].equals("-fps")) {
+				/* a frame rate to aim for, or "vsync" */
+				i ++;
+				targetFps = args[i].equals("vsync") ? 0 : Integer.parseInt(args[i]);
+			} else if (args[i].equals("-loads")) {
+				/* the most models to load at the same time */
+				MeshCache.getShared().setMaxLoads(Integer.parseInt(args[++ i]));
+			} else if (args[i].equals("-budget")) {
+				/* the most megabytes of meshes to keep loaded */
+				MeshCache.getShared().setBudget(Long.parseLong(args[++ i]) << 20);
+			} else
+				i ++;
+		}
 		new Hierarchical();
 	}
 	
+	/* Draws the sculpture offscreen into a pbuffer as fast as it can
+	 * for a number of frames, with the camera following a path, and
+	 * prints the frame times and their histogram:
+	 *
+	 *   java Hierarchical -benchmark [-frames N] [-warmup N] [-size WxH]
+	 *        [-path camera.path] [-json result.json] [-pipeline] [-nobatch]
+	 *        [-lazy] [-loads N] [-budget MB]
+	 *
+	 * Without -path the camera orbits the sculpture once. The path is
+	 * stretched over the frames, and the hierarchies advance one
+	 * animation step per frame, so every run draws the same frames.
+	 * With -pipeline the frames are prepared on a thread of their own,
+	 * each from the camera of the frame before. With -nobatch every
+	 * model is drawn on its own instead of in static batches. With -lazy
+	 * the models load as they come into view, at most -loads at a time,
+	 * so models first seen along the path load during the timed frames;
+	 * the time to the first frame shows what that saves. With -budget
+	 * the cache keeps at most that many megabytes of meshes, evicting
+	 * those drawn least recently, and the evictions and reloads it took
+	 * are printed as well. On
+	 * a machine without a display run it under Xvfb, where Mesa draws in
+	 * software.
+	 */
+	static void benchmark(String[] args) {
+		int frames = 1000, warmup = 100;
+		int width = 1000, height = 800;
+		String pathFile = null, jsonFile = null;
+		boolean pipelined = false, batching = true;
+		for (int i = 1; i < args.length; i ++) {
+			String arg = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : "";
+			if (arg.equals("-frames"))
+				frames = Integer.parseInt(value);
+			else if (arg.equals("-warmup"))
+				warmup = Integer.parseInt(value);
+			else if (arg.equals("-size")) {
+				String[] size = value.split("x");
+				width = Integer.parseInt(size[0]);
+				height = Integer.parseInt(size[1]);
+			} else if (arg.equals("-path"))
+				pathFile = value;
+			else if (arg.equals("-json"))
+				jsonFile = value;
+			else if (arg.equals("-pipeline")) {
+				pipelined = true;
+				continue;
+			} else if (arg.equals("-nobatch")) {
+				batching = false;
+				continue;
+			} else if (arg.equals("-lazy")) {
+				lazyLoading = true;
+				continue;
+			} else if (arg.equals("-loads"))
+				MeshCache.getShared().setMaxLoads(Integer.parseInt(value));
+			else if (arg.equals("-budget"))
+				MeshCache.getShared().setBudget(Long.parseLong(value) << 20);
+			else {
+				System.out.println("Unknown benchmark option " + arg);
+				System.exit(1);
+			}
+			i ++;
+		}
+		
+		if (!GLDrawableFactory.getFactory().canCreateGLPbuffer()) {
+			System.out.println("This GL cannot draw offscreen into a pbuffer.");
+			System.exit(1);
+		}
+		GLCapabilities caps = new GLCapabilities();
+		caps.setDoubleBuffered(false);
+		GLPbuffer pbuffer = GLDrawableFactory.getFactory().createGLPbuffer(caps, null, width, height, null);
+		long constructStart = System.nanoTime();
+		Hierarchical sculpture = new Hierarchical(false);
+		sculpture.benchmarking = true;
+		sculpture.usePipeline = pipelined;
+		sculpture.useBatching = batching;
+		pbuffer.addGLEventListener(sculpture);
+		pbuffer.display();
+		double firstFrameMs = (System.nanoTime() - constructStart) / 1e6;
+		
+		/* wait for the meshes and batches, drawing the frames they arrive in */
+		long loadStart = System.nanoTime();
+		while (!sculpture.modelsLoaded || (batching && !sculpture.batchesBuilt())) {
+			pbuffer.display();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		double loadMs = (System.nanoTime() - loadStart) / 1e6;
+		
+		CameraPath path;
+		if (pathFile == null) {
+			sculpture.initViewParameters();
+			path = CameraPath.orbit(sculpture.xpos, sculpture.ypos, sculpture.zpos, sculpture.zpos - sculpture.centerz);
+		} else {
+			try {
+				path = CameraPath.read(pathFile);
+			} catch (IOException e) {
+				System.out.println("Could not read camera path " + pathFile + ": " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+		}
+		
+		float[] camera = new float[CameraPath.FIELDS];
+		for (int i = 0; i < warmup; i ++) {
+			path.sample(i, warmup, camera);
+			sculpture.setCamera(camera);
+			pbuffer.display();
+		}
+		sculpture.setPipelining(false);		// display starts it again once the scene is reset
+		sculpture.scene.setSpinAngles(0);
+		FrameTimes times = new FrameTimes(frames);
+		for (int i = 0; i < frames; i ++) {
+			path.sample(i, frames, camera);
+			sculpture.setCamera(camera);
+			long start = System.nanoTime();
+			pbuffer.display();
+			times.add(System.nanoTime() - start);
+		}
+		
+		System.out.println("Benchmark of " + width + "x" + height + " frames along the " + path.name + " path on "
+				+ sculpture.renderer + ", first frame after " + String.format(Locale.ROOT, "%.0fms", firstFrameMs)
+				+ ", meshes loaded in " + String.format(Locale.ROOT, "%.0fms", loadMs) + ":");
+		System.out.print(times);
+		MeshCache cache = MeshCache.getShared();
+		if (cache.getBudget() != Long.MAX_VALUE)
+			System.out.println(cache.report());
+		String json = String.format(Locale.ROOT, "{\"benchmark\": \"sculpture\", \"path\": \"%s\", \"width\": %d, \"height\": %d, "
+				+ "\"renderer\": \"%s\", \"bufferObjects\": %b, \"instancing\": %b, \"culling\": %b, \"levels\": %b, "
+				+ "\"compact\": %b, \"pipeline\": %b, \"batching\": %b, \"lazy\": %b, \"maxLoads\": %d, "
+				+ "\"budget\": %d, \"evictions\": %d, \"reloads\": %d, \"peakResidentBytes\": %d, "
+				+ "\"firstFrameMs\": %.1f, \"loadMs\": %.1f, %s}",
+				jsonString(path.name), width, height, jsonString(sculpture.renderer), sculpture.useBufferObjects,
+				sculpture.useInstancing, sculpture.useCulling, sculpture.useLevels, sculpture.useCompact, pipelined, batching, lazyLoading,
+				cache.getMaxLoads(), cache.getBudget() != Long.MAX_VALUE ? cache.getBudget() : -1, cache.getEvictions(),
+				cache.getReloads(), cache.getPeakResidentBytes(), firstFrameMs, loadMs,
+				times.toJsonFields());
+		if (jsonFile == null)
+			System.out.println(json);
+		else {
+			try {
+				PrintWriter out = new PrintWriter(new FileWriter(jsonFile));
+				out.println(json);
+				out.close();
+				System.out.println("Wrote " + jsonFile + ".");
+			} catch (IOException e) {
+				System.out.println("Could not write " + jsonFile + ": " + e.getMessage());
+			}
+		}
+		pbuffer.destroy();
+		System.exit(0);
+	}
+	
+	/* s with the characters JSON strings cannot hold escaped */
+	private static String jsonString(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+	
+	/* moves the camera to roth, rotv, xpos, ypos, zpos */
+	private void setCamera(float[] camera) {
+		roth = camera[0];
+		rotv = camera[1];
+		xpos = camera[2];
+		ypos = camera[3];
+		zpos = camera[4];
+	}
+	
 	public void init(GLAutoDrawable drawable) {
 		gl = drawable.getGL();
 
 		initViewParameters();
+		if (!benchmarking)
+			gl.setSwapInterval(targetFps > 0 ? 0 : 1);	// wait for the retrace only when pacing by it
 		gl.glClearColor(.1f, .1f, .1f, 1f);
 		gl.glClearDepth(1.0f);
 
@@ -607,6 +1480,7 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 	    gl.glLightfv( GL.GL_LIGHT2, GL.GL_POSITION, light2_position, 0);
 	    gl.glLightfv( GL.GL_LIGHT2, GL.GL_DIFFUSE, light2_diffuse, 0);
 	    gl.glLightfv( GL.GL_LIGHT2, GL.GL_SPECULAR, light2_specular, 0);
+	    scene.invalidateLights();		// the scene's lights set their colors again
 
 	    //material
 	    /**
@@ -645,6 +1519,22 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 		gl.glCullFace(GL.GL_BACK);
 		gl.glEnable(GL.GL_CULL_FACE);
 		gl.glShadeModel(GL.GL_SMOOTH);		
+		
+		/* upload the models loaded so far into buffer objects; the rest
+		 * are uploaded as they arrive. A new context starts without any.
+		 */
+		vbos.clear();
+		for (batchModel group : batches)
+			if (group.batch != null)
+				group.batch.forgetBuffers();
+		renderer = gl.glGetString(GL.GL_RENDERER) + " " + gl.glGetString(GL.GL_VERSION);
+		bufferObjectsSupported = MeshVBO.isSupported(gl);
+		useBufferObjects = bufferObjectsSupported;
+		System.out.println(useBufferObjects ? "Drawing from buffer objects." : "Drawing from client arrays.");
+		if (useBufferObjects)
+			for (objModel model : models)
+				if (model.isLoaded())
+					vboOf(model.mesh);
 	}
 	
 	public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
@@ -665,6 +1555,15 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 		canvas.display();
 	}
 	
+	/* picks the part of the sculpture clicked, in the next frame */
+	public void mouseClicked(MouseEvent e) {
+		if (e.getButton() != MouseEvent.BUTTON1)
+			return;
+		clickY = e.getY();
+		clickX = e.getX();
+		canvas.display();
+	}
+	
 	public void mouseReleased(MouseEvent e) {
 		mouseButton = MouseEvent.NOBUTTON;
 		canvas.display();
@@ -726,7 +1625,6 @@ class Hierarchical extends JFrame implements GLEventListener, KeyListener, Mouse
 	public void keyReleased(KeyEvent e) { }
 	public void mouseMoved(MouseEvent e) { }
 	public void actionPerformed(ActionEvent e) { }
-	public void mouseClicked(MouseEvent e) { }
 	public void mouseEntered(MouseEvent e) { }
 	public void mouseExited(MouseEvent e) {	}	
 }
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+
+/* This defines the InstancedMesh class, which draws many copies of one
+ * mesh with one bind and array setup followed by one draw per copy.
+ * The per-instance model matrices (16 floats each, column major) and
+ * front/back diffuse colors (4 floats each) are kept in flat arrays.
+ * Draw binds the mesh and sets up the vertex arrays once, then for each
+ * instance only loads its matrix, updates the material when the color
+ * differs from the previous instance and issues glDrawElements.
+ *
+ * The fixed function pipeline of OpenGL 1.x/2.0 that JOGL 1.1 exposes
+ * has no instanced draw call, so this is the "pseudo instancing" form:
+ * it removes the per-copy buffer binding and state setup, which is what
+ * the separate objModel.Draw calls spend most of their time on.
+ */
+class InstancedMesh {
+	public final Mesh mesh;
+
+	private float[] transforms = new float[16 * 4];
+	private float[] fronts = new float[4 * 4];
+	private float[] backs = new float[4 * 4];
+	private int count;
+
+	public InstancedMesh(Mesh mesh) {
+		this.mesh = mesh;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	/* adds an instance drawn with the 16 floats of matrix starting at
+	 * offset (column major, as for glMultMatrixf) and the given material
+	 */
+	public void add(float[] matrix, int offset, Material material) {
+		add(matrix, offset, material.frontDiffuse, material.backDiffuse);
+	}
+
+	public void add(float[] matrix, int offset, float[] frontDiffuse, float[] backDiffuse) {
+		add(matrix, offset, frontDiffuse, 0, backDiffuse, 0);
+	}
+
+	private void add(float[] matrix, int offset, float[] frontDiffuse, int frontOffset,
+			float[] backDiffuse, int backOffset) {
+		if (count * 16 == transforms.length) {
+			transforms = Arrays.copyOf(transforms, transforms.length * 2);
+			fronts = Arrays.copyOf(fronts, fronts.length * 2);
+			backs = Arrays.copyOf(backs, backs.length * 2);
+		}
+		System.arraycopy(matrix, offset, transforms, count * 16, 16);
+		System.arraycopy(frontDiffuse, frontOffset, fronts, count * 4, 4);
+		System.arraycopy(backDiffuse, backOffset, backs, count * 4, 4);
+		count ++;
+	}
+
+	/* the matrices of the instances, 16 floats each; valid until the next add */
+	public float[] getTransforms() {
+		return transforms;
+	}
+
+	/* draws every instance relative to the current modelview matrix,
+	 * from vbo when given and from client arrays otherwise
+	 */
+	public void Draw(GL gl, MeshVBO vbo) {
+		if (count == 0)
+			return;
+		if (vbo != null) {
+			vbo.bind(gl);
+		} else {
+			gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+			gl.glEnableClientState(GL.GL_NORMAL_ARRAY);
+			mesh.setArrays(gl);
+		}
+
+		FrameStats stats = FrameStats.getShared();
+		for (int i = 0; i < count; i ++) {
+			if (i == 0 || !sameColor(fronts, i)) {
+				gl.glMaterialfv(GL.GL_FRONT, GL.GL_DIFFUSE, fronts, i * 4);
+				stats.materialChanges(1);
+			}
+			if (i == 0 || !sameColor(backs, i)) {
+				gl.glMaterialfv(GL.GL_BACK, GL.GL_DIFFUSE, backs, i * 4);
+				stats.materialChanges(1);
+			}
+			gl.glPushMatrix();
+			gl.glMultMatrixf(transforms, i * 16);
+			if (vbo != null)
+				vbo.drawElements(gl);
+			else
+				mesh.drawElements(gl);
+			gl.glPopMatrix();
+		}
+
+		if (vbo != null) {
+			vbo.unbind(gl);
+		} else {
+			gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+			gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
+		}
+	}
+
+	/* whether instance i has the same color as instance i - 1 */
+	private static boolean sameColor(float[] colors, int i) {
+		int a = i * 4, b = a - 4;
+		return colors[a] == colors[b] && colors[a+1] == colors[b+1]
+				&& colors[a+2] == colors[b+2] && colors[a+3] == colors[b+3];
+	}
+}
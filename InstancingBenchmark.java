@@ -0,0 +1,177 @@
+import java.util.Random;
+
+import javax.media.opengl.*;
+import javax.media.opengl.glu.GLU;
+import javax.swing.JFrame;
+
+/* This defines the InstancingBenchmark program, which draws N copies
+ * of one mesh, for N from 3 to 10,000, once the way the scene graph
+ * draws a model on its own (SceneNode.Draw applying the node's matrix
+ * and Material, then objModel.Draw) and once through InstancedMesh,
+ * and prints the average frame time of both. Each count is timed with
+ * a random color per copy, the worst case for InstancedMesh, which
+ * then sets the material for every copy, and with one color for all,
+ * as each group of the sculpture has.
+ *
+ *   java InstancingBenchmark [model.obj] [max instances]
+ */
+class InstancingBenchmark extends JFrame implements GLEventListener {
+
+	private static final int[] COUNTS = { 3, 10, 100, 1000, 10000 };
+	private static final long MIN_NANOS = 1000000000L;		// time each case for at least a second
+	private static final int MIN_FRAMES = 5;
+
+	private final GLCanvas canvas;
+	private final GLU glu = new GLU();
+	private final Mesh mesh;
+	private final int maxInstances;
+	private boolean done = false;
+
+	public InstancingBenchmark(Mesh mesh, int maxInstances) {
+		super("Instancing benchmark");
+		this.mesh = mesh;
+		this.maxInstances = maxInstances;
+		canvas = new GLCanvas();
+		canvas.addGLEventListener(this);
+		getContentPane().add(canvas);
+		setSize(800, 600);
+		setDefaultCloseOperation(EXIT_ON_CLOSE);
+		setVisible(true);
+	}
+
+	public static void main(String[] args) {
+		String filename = args.length > 0 ? args[0] : "bird.obj";
+		int maxInstances = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		new InstancingBenchmark(MeshCache.getShared().acquire(filename), maxInstances);
+	}
+
+	public void init(GLAutoDrawable drawable) {
+		GL gl = drawable.getGL();
+		gl.glEnable(GL.GL_DEPTH_TEST);
+		gl.glEnable(GL.GL_LIGHTING);
+		gl.glEnable(GL.GL_LIGHT0);
+		gl.glEnable(GL.GL_NORMALIZE);
+		gl.glLightModeli(GL.GL_LIGHT_MODEL_TWO_SIDE, 1);
+	}
+
+	public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+		GL gl = drawable.getGL();
+		gl.glViewport(0, 0, width, height);
+		gl.glMatrixMode(GL.GL_PROJECTION);
+		gl.glLoadIdentity();
+		glu.gluPerspective(45.f, (float) width / (float) height, 0.01f, 1000.f);
+		gl.glMatrixMode(GL.GL_MODELVIEW);
+	}
+
+	public void display(GLAutoDrawable drawable) {
+		if (done)
+			return;
+		done = true;
+		GL gl = drawable.getGL();
+		MeshVBO vbo = MeshVBO.isSupported(gl) ? new MeshVBO(gl, mesh) : null;
+		System.out.println("Mesh " + mesh.filename + ": " + mesh.num_faces + " triangles, "
+				+ (vbo != null ? "buffer objects" : "client arrays"));
+		System.out.println(String.format("%9s %7s %14s %14s %8s", "instances", "colors", "separate", "instanced", "speedup"));
+		for (int count : COUNTS) {
+			if (count > maxInstances)
+				break;
+			for (int colors = 0; colors < 2; colors ++) {
+				boolean random = colors == 0;
+				Material[] materials = materials(count, random);
+				InstancedMesh instances = instances(count, materials);
+				double separate = time(gl, instances, materials, vbo, false);
+				double instanced = time(gl, instances, materials, vbo, true);
+				System.out.println(String.format("%9d %7s %12.2fms %12.2fms %7.2fx", count, random ? "random" : "one",
+						separate, instanced, separate / instanced));
+			}
+		}
+		if (vbo != null)
+			vbo.delete(gl);
+		System.exit(0);
+	}
+
+	/* a material for each copy: a random color each, or one color for all */
+	private static Material[] materials(int count, boolean random) {
+		Random colors = new Random(count);
+		Material[] materials = new Material[count];
+		Material one = new Material("one", new float[] {0.8f, 0.6f, 0.2f}, new float[] {0.4f, 0.3f, 0.1f});
+		for (int i = 0; i < count; i ++) {
+			if (random) {
+				float[] color = { colors.nextFloat(), colors.nextFloat(), colors.nextFloat() };
+				materials[i] = new Material("copy" + i, color, color);
+			} else
+				materials[i] = one;
+		}
+		return materials;
+	}
+
+	/* copies of the mesh on a square grid in front of the camera */
+	private InstancedMesh instances(int count, Material[] materials) {
+		InstancedMesh instances = new InstancedMesh(mesh);
+		int side = (int) Math.ceil(Math.sqrt(count));
+		float spacing = 2.f / side;
+		float[] matrix = new float[16];
+		for (int i = 0; i < count; i ++) {
+			matrix[0] = matrix[5] = matrix[10] = spacing * 0.9f;
+			matrix[12] = -1 + spacing * (i % side + 0.5f);
+			matrix[13] = -1 + spacing * (i / side + 0.5f);
+			matrix[14] = -2.5f;
+			matrix[15] = 1;
+			instances.add(matrix, 0, materials[i]);
+		}
+		return instances;
+	}
+
+	/* average milliseconds per frame of drawing all instances */
+	private double time(GL gl, InstancedMesh instances, Material[] materials, MeshVBO vbo, boolean instanced) {
+		float[] matrices = instances.getTransforms();
+		drawFrame(gl, instances, matrices, materials, vbo, instanced);	// warm up
+		gl.glFinish();
+		int frames = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			drawFrame(gl, instances, matrices, materials, vbo, instanced);
+			gl.glFinish();
+			frames ++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MIN_NANOS || frames < MIN_FRAMES);
+		return elapsed / 1e6 / frames;
+	}
+
+	private void drawFrame(GL gl, InstancedMesh instances, float[] matrices, Material[] materials, MeshVBO vbo,
+			boolean instanced) {
+		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+		gl.glLoadIdentity();
+		if (instanced) {
+			instances.Draw(gl, vbo);
+			return;
+		}
+		/* one node at a time, as SceneNode.Draw does without instancing */
+		for (int i = 0; i < instances.size(); i ++) {
+			gl.glPushMatrix();
+			gl.glMultMatrixf(matrices, i * 16);
+			materials[i].apply(gl);
+			drawModel(gl, vbo);
+			gl.glPopMatrix();
+		}
+	}
+
+	/* what objModel.Draw does for a loaded mesh */
+	private void drawModel(GL gl, MeshVBO vbo) {
+		if (vbo != null) {
+			vbo.Draw(gl);
+			return;
+		}
+		gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL.GL_NORMAL_ARRAY);
+
+		mesh.setArrays(gl);
+		mesh.drawElements(gl);
+
+		gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+		gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
+	}
+
+	public void displayChanged(GLAutoDrawable drawable, boolean modeChanged, boolean deviceChanged) { }
+}
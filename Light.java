@@ -0,0 +1,40 @@
+import javax.media.opengl.GL;
+
+/* This defines the Light class, one of the OpenGL lights attached to a
+ * scene node. Its position is given in the node's coordinates, so the
+ * light moves with the node and is set again every frame. The colors
+ * never change, so they are set once for each GL context.
+ */
+class Light {
+	public final int id;		// GL.GL_LIGHT0 ...
+	public final float[] position;
+	public final float[] diffuse;
+	public final float[] specular;
+	private GL colorsSetIn;		// the GL the colors were last set in
+
+	public Light(int id, float[] position, float[] diffuse, float[] specular) {
+		this.id = id;
+		this.position = position;
+		this.diffuse = diffuse;
+		this.specular = specular;
+	}
+
+	/* sets the light with the node's transform on the modelview matrix */
+	public void apply(GL gl) {
+		gl.glLightfv(id, GL.GL_POSITION, position, 0);
+		FrameStats.getShared().lightChanges(1);
+		if (gl != colorsSetIn) {
+			gl.glLightfv(id, GL.GL_DIFFUSE, diffuse, 0);
+			gl.glLightfv(id, GL.GL_SPECULAR, specular, 0);
+			FrameStats.getShared().lightChanges(2);
+			colorsSetIn = gl;
+		}
+	}
+	
+	/* sets the colors again on the next apply, for after something
+	 * else changed them or the context was made anew
+	 */
+	public void invalidate() {
+		colorsSetIn = null;
+	}
+}
@@ -0,0 +1,125 @@
+import javax.media.opengl.*;
+import javax.media.opengl.glu.GLU;
+import javax.swing.JFrame;
+
+/* This defines the LodBenchmark program, which draws a grid of copies
+ * of one mesh at each of its levels of detail in turn and prints the
+ * triangles and average frame time of every level against the full
+ * mesh.
+ *
+ *   java LodBenchmark [model.obj] [copies]
+ */
+class LodBenchmark extends JFrame implements GLEventListener {
+
+	private static final long MIN_NANOS = 1000000000L;		// time each level for at least a second
+	private static final int MIN_FRAMES = 5;
+
+	private final GLCanvas canvas;
+	private final GLU glu = new GLU();
+	private final Mesh mesh;
+	private final int copies;
+	private boolean done = false;
+
+	public LodBenchmark(Mesh mesh, int copies) {
+		super("Level of detail benchmark");
+		this.mesh = mesh;
+		this.copies = copies;
+		canvas = new GLCanvas();
+		canvas.addGLEventListener(this);
+		getContentPane().add(canvas);
+		setSize(800, 600);
+		setDefaultCloseOperation(EXIT_ON_CLOSE);
+		setVisible(true);
+	}
+
+	public static void main(String[] args) {
+		String filename = args.length > 0 ? args[0] : "bird.obj";
+		int copies = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		new LodBenchmark(MeshCache.getShared().acquire(filename), copies);
+	}
+
+	public void init(GLAutoDrawable drawable) {
+		GL gl = drawable.getGL();
+		gl.glEnable(GL.GL_DEPTH_TEST);
+		gl.glEnable(GL.GL_LIGHTING);
+		gl.glEnable(GL.GL_LIGHT0);
+		gl.glEnable(GL.GL_NORMALIZE);
+		gl.glLightModeli(GL.GL_LIGHT_MODEL_TWO_SIDE, 1);
+	}
+
+	public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+		GL gl = drawable.getGL();
+		gl.glViewport(0, 0, width, height);
+		gl.glMatrixMode(GL.GL_PROJECTION);
+		gl.glLoadIdentity();
+		glu.gluPerspective(45.f, (float) width / (float) height, 0.01f, 1000.f);
+		gl.glMatrixMode(GL.GL_MODELVIEW);
+	}
+
+	public void display(GLAutoDrawable drawable) {
+		if (done)
+			return;
+		done = true;
+		GL gl = drawable.getGL();
+		boolean vbos = MeshVBO.isSupported(gl);
+		System.out.println("Mesh " + mesh.filename + ": " + mesh.getLevelCount() + " levels, " + copies + " copies, "
+				+ (vbos ? "buffer objects" : "client arrays"));
+		System.out.println(String.format("%5s %9s %12s %12s %8s", "level", "triangles", "per frame", "frame", "speedup"));
+		double full = 0;
+		for (int level = 0; level < mesh.getLevelCount(); level ++) {
+			Mesh lod = mesh.getLevel(level);
+			MeshVBO vbo = vbos ? new MeshVBO(gl, lod) : null;
+			InstancedMesh instances = grid(lod);
+			double ms = time(gl, instances, vbo);
+			if (level == 0)
+				full = ms;
+			System.out.println(String.format("%5d %9d %12d %10.2fms %7.2fx", level, lod.num_faces,
+					(long) lod.num_faces * copies, ms, full / ms));
+			if (vbo != null)
+				vbo.delete(gl);
+		}
+		System.exit(0);
+	}
+
+	/* copies of the mesh on a square grid in front of the camera */
+	private InstancedMesh grid(Mesh lod) {
+		InstancedMesh instances = new InstancedMesh(lod);
+		int side = (int) Math.ceil(Math.sqrt(copies));
+		float spacing = 2.f / side;
+		float[] matrix = new float[16];
+		float[] color = { 0.8f, 0.7f, 0.3f, 1 };
+		for (int i = 0; i < copies; i ++) {
+			matrix[0] = matrix[5] = matrix[10] = spacing * 0.9f;
+			matrix[12] = -1 + spacing * (i % side + 0.5f);
+			matrix[13] = -1 + spacing * (i / side + 0.5f);
+			matrix[14] = -2.5f;
+			matrix[15] = 1;
+			instances.add(matrix, 0, color, color);
+		}
+		return instances;
+	}
+
+	/* average milliseconds per frame of drawing all copies */
+	private double time(GL gl, InstancedMesh instances, MeshVBO vbo) {
+		drawFrame(gl, instances, vbo);	// warm up
+		gl.glFinish();
+		int frames = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			drawFrame(gl, instances, vbo);
+			gl.glFinish();
+			frames ++;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < MIN_NANOS || frames < MIN_FRAMES);
+		return elapsed / 1e6 / frames;
+	}
+
+	private void drawFrame(GL gl, InstancedMesh instances, MeshVBO vbo) {
+		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+		gl.glLoadIdentity();
+		instances.Draw(gl, vbo);
+	}
+
+	public void displayChanged(GLAutoDrawable drawable, boolean modeChanged, boolean deviceChanged) { }
+}
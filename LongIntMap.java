@@ -0,0 +1,44 @@
+/* This defines the LongIntMap class, a hash map from long keys to
+ * non-negative int values kept in flat arrays with open addressing, so
+ * the loaders can look up millions of cells, triangles or corners
+ * without boxing a Long for each. Its size is fixed when it is made,
+ * at least twice the keys expected, which must not be exceeded.
+ */
+class LongIntMap {
+	private final long[] keys;
+	private final int[] values;
+	private final boolean[] used;
+	private final int mask;
+
+	LongIntMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int i = (int) (h >>> 32) & mask;
+		while (used[i] && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	/* the value of key, or -1 */
+	int get(long key) {
+		int i = slot(key);
+		return used[i] ? values[i] : -1;
+	}
+
+	/* sets key to value and returns its old value, or -1 */
+	int put(long key, int value) {
+		int i = slot(key);
+		int old = used[i] ? values[i] : -1;
+		keys[i] = key;
+		values[i] = value;
+		used[i] = true;
+		return old;
+	}
+}
@@ -0,0 +1,49 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+
+/* This defines the Material class, the diffuse colors of the front
+ * and back faces of a scene node. The color arrays are allocated once
+ * and handed to glMaterialfv as they are.
+ *
+ * Materials with the same colors share a key, so RenderQueue can sort
+ * by it and skip setting a material that is already set.
+ */
+class Material {
+	public final String name;
+	public final float[] frontDiffuse;
+	public final float[] backDiffuse;
+	public final int key;
+
+	/* one material for each distinct pair of colors, indexed by key */
+	private static final ArrayList<Material> distinct = new ArrayList<Material>();
+
+	public Material(String name, float[] frontDiffuse, float[] backDiffuse) {
+		this.name = name;
+		this.frontDiffuse = rgba(frontDiffuse);
+		this.backDiffuse = rgba(backDiffuse);
+		this.key = keyOf(this);
+	}
+
+	private static synchronized int keyOf(Material m) {
+		for (int i = 0; i < distinct.size(); i ++) {
+			Material d = distinct.get(i);
+			if (Arrays.equals(d.frontDiffuse, m.frontDiffuse) && Arrays.equals(d.backDiffuse, m.backDiffuse))
+				return i;
+		}
+		distinct.add(m);
+		return distinct.size() - 1;
+	}
+
+	public void apply(GL gl) {
+		gl.glMaterialfv(GL.GL_FRONT, GL.GL_DIFFUSE, frontDiffuse, 0);
+		gl.glMaterialfv(GL.GL_BACK, GL.GL_DIFFUSE, backDiffuse, 0);
+		FrameStats.getShared().materialChanges(2);
+	}
+
+	/* glMaterialfv always reads four values, so pad rgb colors with alpha 1 */
+	private static float[] rgba(float[] color) {
+		return color.length == 4 ? color : new float[] { color[0], color[1], color[2], 1 };
+	}
+}
@@ -0,0 +1,613 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+
+import com.sun.opengl.util.BufferUtil;
+
+/* This defines the Mesh class, which holds the geometry of a
+ * triangular mesh loaded from an obj file: the normalized vertex
+ * positions, the per vertex average normals and the triangle indices.
+ * A Mesh never changes after loading, so one instance can be shared
+ * by any number of objModels (see MeshCache).
+ *
+ * A compact mesh (see compact) holds the same geometry in less than
+ * half the memory: positions as 16 bit integers scaled by positionScale,
+ * normals as three signed bytes padded to four, and 16 bit indices when
+ * there are at most 65536 vertices. setArrays and drawElements draw
+ * either kind.
+ */
+class Mesh {
+	public final String filename;
+	public final int num_verts;		// number of vertices
+	public final int num_faces;		// number of triangle faces
+
+	/* center and largest bounding box side of the model in file
+	 * coordinates, which normalization moved to the origin and unit size
+	 */
+	public final float centerX, centerY, centerZ, extent;
+
+	/* bounding box of the normalized positions */
+	public final Bounds bounds;
+
+	/* how long each stage of load took, for the startup report;
+	 * a mesh read back from its binary cache file only has parseNanos
+	 * (and lodNanos, for reading or building its levels of detail, and
+	 * bvhNanos, for building its MeshBVH)
+	 */
+	long parseNanos, boundsNanos, cleanNanos, normalNanos, orderNanos, bufferNanos, lodNanos, bvhNanos;
+	boolean fromMeshFile;
+
+	public final boolean compact;
+	public final float positionScale;	// model units per step of a compact position, 1 otherwise
+
+	private final Buffer vertexBuffer;		// FloatBuffer, or ShortBuffer when compact
+	private final Buffer normalBuffer;		// FloatBuffer, or ByteBuffer when compact
+	private final Buffer faceBuffer;		// IntBuffer, or ShortBuffer when compact and small enough
+
+	/* this mesh followed by ever coarser versions of it (see MeshSimplifier) */
+	private Mesh[] levels = { this };
+
+	/* the triangles of the full mesh for casting rays at, or null */
+	private MeshBVH bvh;
+
+	Mesh(String filename, FloatBuffer vertexBuffer, FloatBuffer normalBuffer, IntBuffer faceBuffer,
+			int num_verts, int num_faces, float centerX, float centerY, float centerZ, float extent, Bounds bounds) {
+		this(filename, vertexBuffer, normalBuffer, faceBuffer, num_verts, num_faces,
+				centerX, centerY, centerZ, extent, bounds, false, 1);
+	}
+
+	private Mesh(String filename, Buffer vertexBuffer, Buffer normalBuffer, Buffer faceBuffer,
+			int num_verts, int num_faces, float centerX, float centerY, float centerZ, float extent, Bounds bounds,
+			boolean compact, float positionScale) {
+		this.filename = filename;
+		this.compact = compact;
+		this.positionScale = positionScale;
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.centerZ = centerZ;
+		this.extent = extent;
+		this.bounds = bounds;
+		this.vertexBuffer = vertexBuffer;
+		this.normalBuffer = normalBuffer;
+		this.faceBuffer = faceBuffer;
+		this.num_verts = num_verts;
+		this.num_faces = num_faces;
+	}
+
+	/* the returned buffers are independent views on the shared data,
+	 * so callers may rewind them freely but must not write to them.
+	 * Only meshes that are not compact have float buffers.
+	 */
+	public FloatBuffer getVertexBuffer() {
+		checkNotCompact();
+		return ((FloatBuffer) vertexBuffer).duplicate();
+	}
+
+	public FloatBuffer getNormalBuffer() {
+		checkNotCompact();
+		return ((FloatBuffer) normalBuffer).duplicate();
+	}
+
+	public IntBuffer getFaceBuffer() {
+		checkNotCompact();
+		return ((IntBuffer) faceBuffer).duplicate();
+	}
+
+	private void checkNotCompact() {
+		if (compact)
+			throw new IllegalStateException("Compact mesh " + filename + " has no float buffers");
+	}
+
+	/* the same for either kind of mesh, for uploading as is */
+	public Buffer getVertexData() {
+		return duplicate(vertexBuffer);
+	}
+
+	public Buffer getNormalData() {
+		return duplicate(normalBuffer);
+	}
+
+	public Buffer getFaceData() {
+		return duplicate(faceBuffer);
+	}
+
+	private static Buffer duplicate(Buffer b) {
+		if (b instanceof FloatBuffer)
+			return ((FloatBuffer) b).duplicate();
+		if (b instanceof IntBuffer)
+			return ((IntBuffer) b).duplicate();
+		if (b instanceof ShortBuffer)
+			return ((ShortBuffer) b).duplicate();
+		return ((ByteBuffer) b).duplicate();
+	}
+
+	/* copies of the positions (in model units), normals and face
+	 * indices, whichever kind of mesh this is
+	 */
+	public float[] positions() {
+		float[] out = new float[num_verts * 3];
+		if (compact) {
+			ShortBuffer b = (ShortBuffer) vertexBuffer;
+			for (int i = 0; i < out.length; i ++)
+				out[i] = b.get(i) * positionScale;
+		} else
+			((FloatBuffer) vertexBuffer).duplicate().get(out);
+		return out;
+	}
+
+	public float[] normals() {
+		float[] out = new float[num_verts * 3];
+		if (compact) {
+			ByteBuffer b = (ByteBuffer) normalBuffer;
+			for (int v = 0; v < num_verts; v ++)
+				for (int j = 0; j < 3; j ++)
+					out[v*3+j] = b.get(v*4+j) / (float) Byte.MAX_VALUE;
+		} else
+			((FloatBuffer) normalBuffer).duplicate().get(out);
+		return out;
+	}
+
+	public int[] faces() {
+		int[] out = new int[num_faces * 3];
+		if (faceBuffer instanceof ShortBuffer) {
+			ShortBuffer b = (ShortBuffer) faceBuffer;
+			for (int i = 0; i < out.length; i ++)
+				out[i] = b.get(i) & 0xffff;
+		} else
+			((IntBuffer) faceBuffer).duplicate().get(out);
+		return out;
+	}
+
+	/* GL types, strides and sizes of the three buffers */
+	public int vertexType() {
+		return compact ? GL.GL_SHORT : GL.GL_FLOAT;
+	}
+
+	public int normalType() {
+		return compact ? GL.GL_BYTE : GL.GL_FLOAT;
+	}
+
+	public int normalStride() {
+		return compact ? 4 : 0;
+	}
+
+	public int faceType() {
+		return faceBuffer instanceof ShortBuffer ? GL.GL_UNSIGNED_SHORT : GL.GL_UNSIGNED_INT;
+	}
+
+	public int vertexBytes() {
+		return num_verts * 3 * (compact ? BufferUtil.SIZEOF_SHORT : BufferUtil.SIZEOF_FLOAT);
+	}
+
+	public int normalBytes() {
+		return num_verts * (compact ? 4 : 3 * BufferUtil.SIZEOF_FLOAT);
+	}
+
+	public int faceBytes() {
+		return num_faces * 3 * (faceBuffer instanceof ShortBuffer ? BufferUtil.SIZEOF_SHORT : BufferUtil.SIZEOF_INT);
+	}
+
+	/* points the vertex and normal arrays at this mesh's buffers;
+	 * both client states must be enabled and no buffer object bound
+	 */
+	public void setArrays(GL gl) {
+		gl.glVertexPointer(3, vertexType(), 0, vertexBuffer);
+		gl.glNormalPointer(normalType(), normalStride(), normalBuffer);
+	}
+
+	/* draws the mesh from the arrays setArrays set, with the current
+	 * matrix and material
+	 */
+	public void drawElements(GL gl) {
+		if (compact) {
+			gl.glPushMatrix();
+			gl.glScalef(positionScale, positionScale, positionScale);
+		}
+		gl.glDrawElements(GL.GL_TRIANGLES, num_faces*3, faceType(), faceBuffer);
+		FrameStats.getShared().draw(num_faces, vertexBytes() + normalBytes() + faceBytes());
+		if (compact)
+			gl.glPopMatrix();
+	}
+
+	public long loadNanos() {
+		return parseNanos + boundsNanos + cleanNanos + normalNanos + orderNanos + bufferNanos + lodNanos + bvhNanos;
+	}
+
+	/* the bounding volume hierarchy of this mesh, built when it loaded */
+	public MeshBVH getBVH() {
+		return bvh;
+	}
+
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/* level of detail level, 0 being this mesh; past the coarsest
+	 * level this returns the coarsest
+	 */
+	public Mesh getLevel(int level) {
+		return levels[Math.min(level, levels.length - 1)];
+	}
+
+	/* bytes of direct memory held by the vertex, normal and face buffers */
+	public long sizeInBytes() {
+		return (long) vertexBytes() + normalBytes() + faceBytes();
+	}
+
+	/* the same, for this mesh and all of its levels of detail */
+	public long totalSizeInBytes() {
+		long bytes = 0;
+		for (Mesh level : levels)
+			bytes += level.sizeInBytes();
+		return bytes;
+	}
+
+	/* a compact copy of this mesh and its levels of detail. Positions
+	 * are quantized over the largest coordinate, so they are off by at
+	 * most 1/65534 of the model size, and normals by under a degree.
+	 */
+	public Mesh compact() {
+		if (compact)
+			return this;
+		long t0 = System.nanoTime();
+		Mesh[] compacted = new Mesh[levels.length];
+		for (int i = 0; i < levels.length; i ++)
+			compacted[i] = levels[i].compactLevel();
+		Mesh mesh = compacted[0];
+		mesh.levels = compacted;
+		mesh.fromMeshFile = fromMeshFile;
+		mesh.parseNanos = parseNanos;
+		mesh.boundsNanos = boundsNanos;
+		mesh.cleanNanos = cleanNanos;
+		mesh.normalNanos = normalNanos;
+		mesh.orderNanos = orderNanos;
+		mesh.lodNanos = lodNanos;
+		mesh.bvh = bvh;		// a compact mesh is only off by a fraction of a pixel
+		mesh.bvhNanos = bvhNanos;
+		mesh.bufferNanos = bufferNanos + System.nanoTime() - t0;
+		return mesh;
+	}
+
+	private Mesh compactLevel() {
+		float max = Math.max(Math.max(Math.max(-bounds.minX, bounds.maxX), Math.max(-bounds.minY, bounds.maxY)),
+				Math.max(-bounds.minZ, bounds.maxZ));
+		float scale = max > 0 ? max / Short.MAX_VALUE : 1;
+		FloatBuffer verts = (FloatBuffer) vertexBuffer;
+		ShortBuffer positions = BufferUtil.newShortBuffer(num_verts * 3);
+		for (int i = 0; i < num_verts * 3; i ++)
+			positions.put(i, (short) Math.round(verts.get(i) / scale));
+
+		FloatBuffer norms = (FloatBuffer) normalBuffer;
+		ByteBuffer normals = BufferUtil.newByteBuffer(num_verts * 4);
+		for (int v = 0; v < num_verts; v ++)
+			for (int j = 0; j < 3; j ++)
+				normals.put(v*4+j, (byte) Math.round(norms.get(v*3+j) * Byte.MAX_VALUE));
+
+		Buffer faces = faceBuffer;
+		if (num_verts <= 65536) {
+			IntBuffer indices = (IntBuffer) faceBuffer;
+			ShortBuffer shorts = BufferUtil.newShortBuffer(num_faces * 3);
+			for (int i = 0; i < num_faces * 3; i ++)
+				shorts.put(i, (short) indices.get(i));
+			faces = shorts;
+		}
+		return new Mesh(filename, positions, normals, faces, num_verts, num_faces,
+				centerX, centerY, centerZ, extent, bounds, true, scale);
+	}
+
+	/* load a triangular mesh model, from its binary cache file when
+	 * that is up to date and otherwise from the .obj file, refreshing
+	 * the cache file afterwards, along with its levels of detail and
+	 * its MeshBVH
+	 */
+	public static Mesh load(String filename) {
+		/* read the obj file once for the checksum all its cache files share */
+		long start = System.nanoTime();
+		long checksum = MeshFile.checksumOf(filename);
+		Mesh mesh = MeshFile.read(filename, 0, checksum);
+		if (mesh != null)
+			mesh.parseNanos = System.nanoTime() - start;
+		else {
+			mesh = loadObj(filename);
+			MeshFile.write(mesh, 0, checksum);
+		}
+		if (MeshSimplifier.enabled) {
+			long t0 = System.nanoTime();
+			mesh.levels = MeshSimplifier.buildLevels(mesh, checksum);
+			mesh.lodNanos = System.nanoTime() - t0;
+		}
+		if (MeshBVH.enabled) {
+			long t0 = System.nanoTime();
+			mesh.bvh = MeshBVH.build(mesh);
+			mesh.bvhNanos = System.nanoTime() - t0;
+		}
+		return mesh;
+	}
+
+	/* load a triangular mesh model from a .obj file,
+	 * normalize it into the unit box around its center,
+	 * take out its redundant geometry (see MeshCleaner)
+	 * and estimate per vertex average normals, unless
+	 * the file gave normals for every face corner
+	 */
+	public static Mesh loadObj(String filename) {
+		long t0 = System.nanoTime();
+		ObjParser obj = null;
+		try {
+			obj = ObjParser.parse(filename);
+		} catch (FileNotFoundException e) {
+			System.out.println("Error reading from file " + filename);
+			System.exit(0);
+		} catch (IOException e) {
+			System.out.println("Unhandled error while reading input file.");
+			obj = new ObjParser();
+		}
+
+		int num_verts = obj.num_verts;
+		int num_indices = obj.num_indices;
+		float[] verts = obj.positions;
+		float[] norms = obj.normals;
+		int[] faces = obj.faces;
+		System.out.println("Read " + num_verts +
+					   	" vertices and " + num_indices + " faces.");
+
+		long t1 = System.nanoTime();
+		float[] frame = normalize(verts, num_verts);
+
+		if (norms != null)
+			unitNormals(norms, num_verts);
+
+		long t2 = System.nanoTime();
+		if (MeshCleaner.enabled) {
+			MeshCleaner.Result cleaned = MeshCleaner.clean(verts, norms, num_verts, faces, num_indices);
+			num_verts = cleaned.new_verts;
+			num_indices = cleaned.new_indices;
+			System.out.println("Cleaned " + new File(filename).getName() + ": " + cleaned);
+		}
+
+		long t3 = System.nanoTime();
+		if (norms == null) {
+			norms = NormalEstimator.compute(verts, num_verts, faces, num_indices);
+		} else {
+			/* the file's normals, but estimated ones where it has a zero normal */
+			float[] estimated = null;
+			for (int i = 0; i < num_verts * 3; i += 3) {
+				if (norms[i] != 0 || norms[i+1] != 0 || norms[i+2] != 0)
+					continue;
+				if (estimated == null)
+					estimated = NormalEstimator.compute(verts, num_verts, faces, num_indices);
+				System.arraycopy(estimated, i, norms, i, 3);
+			}
+		}
+
+		long t4 = System.nanoTime();
+		if (MeshOptimizer.enabled)
+			MeshOptimizer.optimize(verts, norms, num_verts, faces, num_indices);
+
+		long t5 = System.nanoTime();
+		Mesh mesh = build(filename, verts, norms, num_verts, faces, num_indices, frame);
+		long t6 = System.nanoTime();
+		mesh.parseNanos = t1 - t0;
+		mesh.boundsNanos = t2 - t1;
+		mesh.cleanNanos = t3 - t2;
+		mesh.normalNanos = t4 - t3;
+		mesh.orderNanos = t5 - t4;
+		mesh.bufferNanos = t6 - t5;
+		return mesh;
+	}
+
+	/* moves the num_verts positions of verts into the unit box around
+	 * their center. Returns { cx, cy, cz, bbmax, minx, miny, minz, maxx,
+	 * maxy, maxz }: the center and largest side of the box in file
+	 * coordinates, then the normalized box.
+	 */
+	static float[] normalize(float[] verts, int num_verts) {
+		float minx, miny, minz;
+		float maxx, maxy, maxz;
+		float cx, cy, cz;
+		minx = miny = minz = 10000.f;
+		maxx = maxy = maxz = -10000.f;
+		cx = cy = cz = 0.f;
+		int i;
+		for (i = 0; i < num_verts * 3; i += 3) {
+			float x = verts[i], y = verts[i+1], z = verts[i+2];
+			minx = Math.min(minx, x);
+			miny = Math.min(miny, y);
+			minz = Math.min(minz, z);
+			maxx = Math.max(maxx, x);
+			maxy = Math.max(maxy, y);
+			maxz = Math.max(maxz, z);
+			cx += x;
+			cy += y;
+			cz += z;
+		}
+		float scale = 1.f / (float) num_verts;
+		cx *= scale;
+		cy *= scale;
+		cz *= scale;
+
+		float bbmax = Math.max(maxx - minx, Math.max(maxy - miny, maxz - minz));
+		for (i = 0; i < num_verts * 3; i += 3) {
+			verts[i+0] = (verts[i+0] - cx) / bbmax;
+			verts[i+1] = (verts[i+1] - cy) / bbmax;
+			verts[i+2] = (verts[i+2] - cz) / bbmax;
+		}
+		return new float[] { cx, cy, cz, bbmax,
+				(minx - cx) / bbmax, (miny - cy) / bbmax, (minz - cz) / bbmax,
+				(maxx - cx) / bbmax, (maxy - cy) / bbmax, (maxz - cz) / bbmax };
+	}
+
+	/* scales the num_verts normals of norms to unit length, leaving
+	 * zero ones zero
+	 */
+	static void unitNormals(float[] norms, int num_verts) {
+		for (int i = 0; i < num_verts * 3; i += 3) {
+			float length = (float) Math.sqrt(norms[i] * norms[i] + norms[i+1] * norms[i+1] + norms[i+2] * norms[i+2]);
+			if (length > 0) {
+				norms[i] /= length;
+				norms[i+1] /= length;
+				norms[i+2] /= length;
+			}
+		}
+	}
+
+	/* copies normalized arrays into the direct buffers of a new mesh;
+	 * frame is what normalize returned for verts
+	 */
+	static Mesh build(String filename, float[] verts, float[] norms, int num_verts, int[] faces, int num_indices,
+			float[] frame) {
+		/* convert to buffers to improve display speed */
+		FloatBuffer vertexBuffer = BufferUtil.newFloatBuffer(num_verts*3);
+		FloatBuffer normalBuffer = BufferUtil.newFloatBuffer(num_verts*3);
+		IntBuffer faceBuffer = BufferUtil.newIntBuffer(num_indices);
+		vertexBuffer.put(verts, 0, num_verts*3).rewind();
+		normalBuffer.put(norms, 0, num_verts*3).rewind();
+		faceBuffer.put(faces, 0, num_indices).rewind();
+		return new Mesh(filename, vertexBuffer, normalBuffer, faceBuffer,
+				num_verts, num_indices/3, frame[0], frame[1], frame[2], frame[3],
+				new Bounds(frame[4], frame[5], frame[6], frame[7], frame[8], frame[9]));
+	}
+
+	/* a box filling bounds, with the frame of the mesh it stands in for;
+	 * each side has vertices of its own so it is lit flat
+	 */
+	static Mesh box(String filename, float centerX, float centerY, float centerZ, float extent, Bounds bounds) {
+		float[] x = { bounds.minX, bounds.maxX };
+		float[] y = { bounds.minY, bounds.maxY };
+		float[] z = { bounds.minZ, bounds.maxZ };
+		float[] verts = new float[24 * 3];
+		float[] norms = new float[24 * 3];
+		int[] faces = new int[12 * 3];
+		int v = 0, f = 0;
+		for (int axis = 0; axis < 3; axis ++) {
+			for (int side = 0; side < 2; side ++) {
+				/* the four corners of the side, counterclockwise seen from outside */
+				int u = (axis + 1) % 3, w = (axis + 2) % 3;
+				int[][] corners = side == 1 ? new int[][] { {0, 0}, {1, 0}, {1, 1}, {0, 1} }
+						: new int[][] { {0, 0}, {0, 1}, {1, 1}, {1, 0} };
+				for (int c = 0; c < 4; c ++) {
+					int[] at = new int[3];
+					at[axis] = side;
+					at[u] = corners[c][0];
+					at[w] = corners[c][1];
+					verts[(v + c) * 3] = x[at[0]];
+					verts[(v + c) * 3 + 1] = y[at[1]];
+					verts[(v + c) * 3 + 2] = z[at[2]];
+					norms[(v + c) * 3 + axis] = side == 1 ? 1 : -1;
+				}
+				faces[f ++] = v; faces[f ++] = v + 1; faces[f ++] = v + 2;
+				faces[f ++] = v; faces[f ++] = v + 2; faces[f ++] = v + 3;
+				v += 4;
+			}
+		}
+		FloatBuffer vertexBuffer = BufferUtil.newFloatBuffer(verts.length);
+		FloatBuffer normalBuffer = BufferUtil.newFloatBuffer(norms.length);
+		IntBuffer faceBuffer = BufferUtil.newIntBuffer(faces.length);
+		vertexBuffer.put(verts).rewind();
+		normalBuffer.put(norms).rewind();
+		faceBuffer.put(faces).rewind();
+		return new Mesh(filename, vertexBuffer, normalBuffer, faceBuffer, 24, 12,
+				centerX, centerY, centerZ, extent, bounds);
+	}
+
+	/* a sphere of radius around the origin, cut like glutSolidSphere
+	 * into slices around the z axis and stacks along it
+	 */
+	static Mesh sphere(String name, float radius, int slices, int stacks) {
+		int num_verts = (slices + 1) * (stacks + 1);
+		float[] verts = new float[num_verts * 3];
+		float[] norms = new float[num_verts * 3];
+		int v = 0;
+		for (int i = 0; i <= stacks; i ++) {
+			double phi = Math.PI * i / stacks - Math.PI / 2;
+			for (int j = 0; j <= slices; j ++) {
+				double lambda = 2 * Math.PI * j / slices;
+				norms[v] = (float) (Math.cos(phi) * Math.cos(lambda));
+				norms[v + 1] = (float) (Math.cos(phi) * Math.sin(lambda));
+				norms[v + 2] = (float) Math.sin(phi);
+				for (int k = 0; k < 3; k ++)
+					verts[v + k] = norms[v + k] * radius;
+				v += 3;
+			}
+		}
+		/* two triangles a quad, but only one at the poles */
+		int[] faces = new int[slices * stacks * 6];
+		int f = 0;
+		for (int i = 0; i < stacks; i ++) {
+			for (int j = 0; j < slices; j ++) {
+				int a = i * (slices + 1) + j, b = a + 1, c = b + slices + 1, d = a + slices + 1;
+				if (i > 0) {
+					faces[f ++] = a; faces[f ++] = b; faces[f ++] = c;
+				}
+				if (i < stacks - 1) {
+					faces[f ++] = a; faces[f ++] = c; faces[f ++] = d;
+				}
+			}
+		}
+		return build(name, verts, norms, num_verts, faces, f,
+				new float[] { 0, 0, 0, 2 * radius, -radius, -radius, -radius, radius, radius, radius });
+	}
+
+	/* prints the direct memory of each obj file given on the command
+	 * line (all in the current directory without arguments), with its
+	 * levels of detail, as floats and compact, and the largest position
+	 * and normal errors of the compact form
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			args = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(args);
+		}
+		System.out.println(String.format("%-22s %8s %8s %10s %10s %6s %9s %8s", "model", "vertices", "faces",
+				"float", "compact", "ratio", "position", "degrees"));
+		long before = 0, after = 0;
+		for (String filename : args) {
+			Mesh mesh;
+			try {
+				mesh = load(filename);
+			} catch (RuntimeException e) {
+				System.out.println(String.format("%-22s cannot be read: %s", filename, e));
+				continue;
+			}
+			Mesh small = mesh.compact();
+			float positionError = 0, normalError = 0;
+			for (int level = 0; level < mesh.getLevelCount(); level ++) {
+				Mesh m = mesh.getLevel(level), c = small.getLevel(level);
+				FloatBuffer verts = m.getVertexBuffer(), norms = m.getNormalBuffer();
+				ShortBuffer positions = (ShortBuffer) c.vertexBuffer;
+				ByteBuffer normals = (ByteBuffer) c.normalBuffer;
+				for (int v = 0; v < m.num_verts; v ++) {
+					float dot = 0, length = 0;
+					for (int j = 0; j < 3; j ++) {
+						positionError = Math.max(positionError, Math.abs(positions.get(v*3+j) * c.positionScale - verts.get(v*3+j)));
+						float n = normals.get(v*4+j);
+						dot += n * norms.get(v*3+j);
+						length += n * n;
+					}
+					if (length > 0 && dot == dot)
+						normalError = Math.max(normalError, (float) Math.toDegrees(Math.acos(Math.min(1, dot / Math.sqrt(length)))));
+				}
+			}
+			System.out.println(String.format("%-22s %8d %8d %8dKB %8dKB %5.2fx %9.6f %8.2f", filename, mesh.num_verts, mesh.num_faces,
+					mesh.totalSizeInBytes() / 1024, small.totalSizeInBytes() / 1024,
+					(double) mesh.totalSizeInBytes() / small.totalSizeInBytes(), positionError, normalError));
+			before += mesh.totalSizeInBytes();
+			after += small.totalSizeInBytes();
+		}
+		System.out.println(String.format("%-22s %8s %8s %8dKB %8dKB %5.2fx", "total", "", "", before / 1024, after / 1024,
+				(double) before / after));
+	}
+}
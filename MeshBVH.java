@@ -0,0 +1,454 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.Random;
+
+/* This defines the MeshBVH class, a bounding volume hierarchy over the
+ * triangles of a Mesh, for casting rays at it as picking does. A ray
+ * only visits the boxes it passes through, nearer child first, so it
+ * tests a few dozen of the bird's 61000 triangles instead of all.
+ *
+ * The tree is built top down. Each node is split where the surface
+ * area heuristic is lowest, tried at the borders of BINS buckets of the
+ * triangle centers along their longest axis, or made a leaf when that
+ * is cheaper. It is then kept flat: nodes in depth first order in two
+ * arrays, the left child of a node right after it, and the corners of
+ * the triangles copied in leaf order, so a ray walks through memory
+ * mostly forwards and never follows a reference.
+ *
+ * Meshes build theirs when they load (see Mesh.load), on the loader
+ * threads, so a click never waits for one.
+ */
+class MeshBVH {
+
+	/* set to false to load meshes without one */
+	public static boolean enabled = true;
+
+	private static final int BINS = 16;
+	private static final int LEAF_SIZE = 4;		// triangles below which a node is never split
+	private static final int MAX_LEAF = 16;		// triangles above which a node is always split
+	private static final int MAX_DEPTH = 60;
+	private static final float TRAVERSAL_COST = 1.0f;	// against 1 for testing a triangle
+
+	/* the nearest triangle a ray hit */
+	static class Hit {
+		public float t;			// along the ray, in units of its direction
+		public int triangle;	// face index in the mesh
+	}
+
+	public final int num_faces;
+	private final float[] bounds;	// minX, minY, minZ, maxX, maxY, maxZ per node
+	private final int[] nodes;		// per node: first triangle and count for a leaf,
+									// right child and -(split axis + 1) otherwise
+	private final float[] corners;	// nine floats per triangle, in leaf order
+	private final int[] ids;		// face index of each triangle, in leaf order
+	private int nodeCount;
+	private int depth;
+
+	/* scratch for the build */
+	private float[] boxes, centers;
+	private final int[] binCounts = new int[BINS];
+	private final float[] binBounds = new float[BINS * 6];
+	private final float[] rightAreas = new float[BINS];
+
+	public static MeshBVH build(Mesh mesh) {
+		return new MeshBVH(mesh.positions(), mesh.faces(), mesh.num_faces);
+	}
+
+	private MeshBVH(float[] positions, int[] faces, int num_faces) {
+		this.num_faces = num_faces;
+		boxes = new float[num_faces * 6];
+		centers = new float[num_faces * 3];
+		ids = new int[num_faces];
+		for (int f = 0; f < num_faces; f ++) {
+			ids[f] = f;
+			for (int axis = 0; axis < 3; axis ++) {
+				float a = positions[faces[f * 3] * 3 + axis];
+				float b = positions[faces[f * 3 + 1] * 3 + axis];
+				float c = positions[faces[f * 3 + 2] * 3 + axis];
+				boxes[f * 6 + axis] = Math.min(a, Math.min(b, c));
+				boxes[f * 6 + 3 + axis] = Math.max(a, Math.max(b, c));
+				centers[f * 3 + axis] = (boxes[f * 6 + axis] + boxes[f * 6 + 3 + axis]) / 2;
+			}
+		}
+		int maxNodes = Math.max(1, 2 * num_faces - 1);
+		bounds = new float[maxNodes * 6];
+		nodes = new int[maxNodes * 2];
+		if (num_faces > 0)
+			buildNode(0, num_faces, 0);
+
+		corners = new float[num_faces * 9];
+		for (int i = 0; i < num_faces; i ++)
+			for (int k = 0; k < 3; k ++)
+				System.arraycopy(positions, faces[ids[i] * 3 + k] * 3, corners, i * 9 + k * 3, 3);
+		boxes = centers = null;
+	}
+
+	private int buildNode(int start, int end, int level) {
+		int node = nodeCount ++;
+		depth = Math.max(depth, level + 1);
+		float[] box = bounds;
+		int o = node * 6;
+		box[o] = box[o + 1] = box[o + 2] = Float.MAX_VALUE;
+		box[o + 3] = box[o + 4] = box[o + 5] = -Float.MAX_VALUE;
+		float[] cmin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] cmax = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		for (int i = start; i < end; i ++) {
+			int f = ids[i];
+			for (int axis = 0; axis < 3; axis ++) {
+				box[o + axis] = Math.min(box[o + axis], boxes[f * 6 + axis]);
+				box[o + 3 + axis] = Math.max(box[o + 3 + axis], boxes[f * 6 + 3 + axis]);
+				cmin[axis] = Math.min(cmin[axis], centers[f * 3 + axis]);
+				cmax[axis] = Math.max(cmax[axis], centers[f * 3 + axis]);
+			}
+		}
+		int count = end - start;
+		int axis = 0;
+		for (int a = 1; a < 3; a ++)
+			if (cmax[a] - cmin[a] > cmax[axis] - cmin[axis])
+				axis = a;
+		float extent = cmax[axis] - cmin[axis];
+		if (count <= LEAF_SIZE || level >= MAX_DEPTH || (extent <= 0 && count <= MAX_LEAF)) {
+			nodes[node * 2] = start;
+			nodes[node * 2 + 1] = count;
+			return node;
+		}
+
+		int mid;
+		if (extent <= 0) {
+			mid = (start + end) / 2;		// all centers in one spot: any split will do
+		} else {
+			int split = bestSplit(start, end, axis, cmin[axis], extent, area(box, o), count);
+			if (split < 0) {
+				nodes[node * 2] = start;
+				nodes[node * 2 + 1] = count;
+				return node;
+			}
+			float scale = BINS / extent;
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (bin(centers[ids[i] * 3 + axis], cmin[axis], scale) < split)
+					i ++;
+				else {
+					int t = ids[i];
+					ids[i] = ids[j];
+					ids[j --] = t;
+				}
+			}
+			mid = i;
+			if (mid == start || mid == end)
+				mid = (start + end) / 2;
+		}
+		nodes[node * 2 + 1] = -(axis + 1);
+		buildNode(start, mid, level + 1);
+		nodes[node * 2] = buildNode(mid, end, level + 1);
+		return node;
+	}
+
+	/* the first bin right of the cheapest split along axis, or -1 when
+	 * a leaf is cheaper than any split (and small enough to be one)
+	 */
+	private int bestSplit(int start, int end, int axis, float min, float extent, float area, int count) {
+		Arrays.fill(binCounts, 0);
+		for (int i = 0; i < BINS; i ++) {
+			binBounds[i * 6] = binBounds[i * 6 + 1] = binBounds[i * 6 + 2] = Float.MAX_VALUE;
+			binBounds[i * 6 + 3] = binBounds[i * 6 + 4] = binBounds[i * 6 + 5] = -Float.MAX_VALUE;
+		}
+		float scale = BINS / extent;
+		for (int i = start; i < end; i ++) {
+			int f = ids[i];
+			int b = bin(centers[f * 3 + axis], min, scale);
+			binCounts[b] ++;
+			for (int k = 0; k < 3; k ++) {
+				binBounds[b * 6 + k] = Math.min(binBounds[b * 6 + k], boxes[f * 6 + k]);
+				binBounds[b * 6 + 3 + k] = Math.max(binBounds[b * 6 + 3 + k], boxes[f * 6 + 3 + k]);
+			}
+		}
+
+		float[] acc = new float[6];
+		reset(acc);
+		for (int i = BINS - 1; i > 0; i --) {
+			grow(acc, binBounds, i * 6);
+			rightAreas[i] = area(acc, 0);
+		}
+		reset(acc);
+		int left = 0, best = -1;
+		float bestCost = Float.MAX_VALUE;
+		for (int i = 1; i < BINS; i ++) {
+			grow(acc, binBounds, (i - 1) * 6);
+			left += binCounts[i - 1];
+			int right = count - left;
+			if (left == 0 || right == 0)
+				continue;
+			float cost = left * area(acc, 0) + right * rightAreas[i];
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = i;
+			}
+		}
+		float splitCost = TRAVERSAL_COST + bestCost / area;
+		if (best < 0 || (count <= MAX_LEAF && splitCost >= count))
+			return -1;
+		return best;
+	}
+
+	private static int bin(float center, float min, float scale) {
+		return Math.min(BINS - 1, (int) ((center - min) * scale));
+	}
+
+	private static void reset(float[] b) {
+		b[0] = b[1] = b[2] = Float.MAX_VALUE;
+		b[3] = b[4] = b[5] = -Float.MAX_VALUE;
+	}
+
+	private static void grow(float[] b, float[] with, int o) {
+		for (int k = 0; k < 3; k ++) {
+			b[k] = Math.min(b[k], with[o + k]);
+			b[3 + k] = Math.max(b[3 + k], with[o + 3 + k]);
+		}
+	}
+
+	/* half the surface area of a box, which is all the heuristic needs */
+	private static float area(float[] b, int o) {
+		float x = b[o + 3] - b[o], y = b[o + 4] - b[o + 1], z = b[o + 5] - b[o + 2];
+		if (x < 0)
+			return 0;
+		return x * y + y * z + z * x;
+	}
+
+	/* finds the nearest triangle hit by the ray o + t d with 0 < t <
+	 * maxT, from either side, and returns whether there is one
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxT, Hit hit) {
+		if (nodeCount == 0)
+			return false;
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		float best = maxT;
+		int found = -1;
+		int[] stack = new int[depth + 1];
+		int sp = 0;
+		int node = 0;
+		if (enter(0, ox, oy, oz, ix, iy, iz, best) == Float.POSITIVE_INFINITY)
+			return false;
+		while (true) {
+			int info = nodes[node * 2 + 1];
+			if (info >= 0) {
+				int first = nodes[node * 2];
+				for (int i = first; i < first + info; i ++) {
+					float t = triangle(corners, i * 9, ox, oy, oz, dx, dy, dz, best);
+					if (t < best) {
+						best = t;
+						found = i;
+					}
+				}
+			} else {
+				int left = node + 1, right = nodes[node * 2];
+				float tl = enter(left, ox, oy, oz, ix, iy, iz, best);
+				float tr = enter(right, ox, oy, oz, ix, iy, iz, best);
+				if (tl != Float.POSITIVE_INFINITY && tr != Float.POSITIVE_INFINITY) {
+					if (tl <= tr) {
+						stack[sp ++] = right;
+						node = left;
+					} else {
+						stack[sp ++] = left;
+						node = right;
+					}
+					continue;
+				}
+				if (tl != Float.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				}
+				if (tr != Float.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+			/* the next node still on the stack that is nearer than the best hit */
+			do {
+				if (sp == 0) {
+					if (found < 0)
+						return false;
+					hit.t = best;
+					hit.triangle = ids[found];
+					return true;
+				}
+				node = stack[-- sp];
+			} while (enter(node, ox, oy, oz, ix, iy, iz, best) == Float.POSITIVE_INFINITY);
+		}
+	}
+
+	/* where the ray enters the box of node, or infinity if it misses it
+	 * or enters it no nearer than maxT
+	 */
+	private float enter(int node, float ox, float oy, float oz, float ix, float iy, float iz, float maxT) {
+		int o = node * 6;
+		float t0 = (bounds[o] - ox) * ix, t1 = (bounds[o + 3] - ox) * ix;
+		float near = Math.min(t0, t1), far = Math.max(t0, t1);
+		t0 = (bounds[o + 1] - oy) * iy;
+		t1 = (bounds[o + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		t0 = (bounds[o + 2] - oz) * iz;
+		t1 = (bounds[o + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		if (near > far || far <= 0 || near >= maxT || near != near)
+			return Float.POSITIVE_INFINITY;
+		return near;
+	}
+
+	/* t of the ray's hit on the triangle of the nine corner coordinates
+	 * at c[o] (Moller and Trumbore), or infinity if it misses it or hits
+	 * no nearer than maxT
+	 */
+	private static float triangle(float[] c, int o, float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+		float e1x = c[o + 3] - c[o], e1y = c[o + 4] - c[o + 1], e1z = c[o + 5] - c[o + 2];
+		float e2x = c[o + 6] - c[o], e2y = c[o + 7] - c[o + 1], e2z = c[o + 8] - c[o + 2];
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			return Float.POSITIVE_INFINITY;
+		float inv = 1 / det;
+		float sx = ox - c[o], sy = oy - c[o + 1], sz = oz - c[o + 2];
+		float u = (sx * px + sy * py + sz * pz) * inv;
+		if (u < 0 || u > 1)
+			return Float.POSITIVE_INFINITY;
+		float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inv;
+		if (v < 0 || u + v > 1)
+			return Float.POSITIVE_INFINITY;
+		float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		return t > 0 && t < maxT ? t : Float.POSITIVE_INFINITY;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public long sizeInBytes() {
+		return (long) nodeCount * (6 * 4 + 2 * 4) + (long) num_faces * (9 * 4 + 4);
+	}
+
+	/* the nearest hit of every triangle, the slow way, for checking the tree */
+	static boolean intersectAll(float[] positions, int[] faces, int num_faces, float ox, float oy, float oz,
+			float dx, float dy, float dz, Hit hit) {
+		float best = Float.POSITIVE_INFINITY;
+		int found = -1;
+		float[] c = new float[9];
+		for (int f = 0; f < num_faces; f ++) {
+			for (int k = 0; k < 3; k ++)
+				System.arraycopy(positions, faces[f * 3 + k] * 3, c, k * 3, 3);
+			float t = triangle(c, 0, ox, oy, oz, dx, dy, dz, best);
+			if (t < best) {
+				best = t;
+				found = f;
+			}
+		}
+		if (found < 0)
+			return false;
+		hit.t = best;
+		hit.triangle = found;
+		return true;
+	}
+
+	/* times building the tree of each obj file given on the command line
+	 * (all in the current directory without arguments) and casting rays
+	 * at it from all around, and checks the hits against testing every
+	 * triangle:
+	 *
+	 *   java MeshBVH [-rays N] [model.obj ...]
+	 */
+	public static void main(String[] args) {
+		int rays = 10000;
+		if (args.length >= 2 && args[0].equals("-rays")) {
+			rays = Integer.parseInt(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length == 0) {
+			args = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(args);
+		}
+		System.out.println(String.format("%-22s %8s %8s %6s %8s %9s %9s %9s %9s %6s %9s %6s", "model", "faces", "nodes", "depth",
+				"build", "mean", "p99", "max", "all", "hits", "checked", "wrong"));
+		Random random = new Random(1);
+		Hit hit = new Hit(), check = new Hit();
+		for (String filename : args) {
+			Mesh mesh;
+			try {
+				mesh = Mesh.load(filename);
+			} catch (RuntimeException e) {
+				System.out.println(String.format("%-22s cannot be read: %s", filename, e));
+				continue;
+			}
+			float[] positions = mesh.positions();
+			int[] faces = mesh.faces();
+			long t0 = System.nanoTime();
+			MeshBVH bvh = build(mesh);
+			long build = System.nanoTime() - t0;
+
+			/* rays from a sphere around the model at points inside its box */
+			Bounds b = mesh.bounds;
+			float radius = 2 * b.radius();
+			float[] ray = new float[rays * 6];
+			for (int i = 0; i < rays; i ++) {
+				double theta = 2 * Math.PI * random.nextDouble(), z = 2 * random.nextDouble() - 1;
+				double r = Math.sqrt(1 - z * z);
+				ray[i * 6] = b.centerX() + (float) (radius * r * Math.cos(theta));
+				ray[i * 6 + 1] = b.centerY() + (float) (radius * r * Math.sin(theta));
+				ray[i * 6 + 2] = b.centerZ() + (float) (radius * z);
+				float tx = b.minX + random.nextFloat() * (b.maxX - b.minX);
+				float ty = b.minY + random.nextFloat() * (b.maxY - b.minY);
+				float tz = b.minZ + random.nextFloat() * (b.maxZ - b.minZ);
+				float dx = tx - ray[i * 6], dy = ty - ray[i * 6 + 1], dz = tz - ray[i * 6 + 2];
+				float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+				ray[i * 6 + 3] = dx / length;
+				ray[i * 6 + 4] = dy / length;
+				ray[i * 6 + 5] = dz / length;
+			}
+			for (int i = 0; i < rays; i ++)		// warm up
+				bvh.intersect(ray[i * 6], ray[i * 6 + 1], ray[i * 6 + 2], ray[i * 6 + 3], ray[i * 6 + 4], ray[i * 6 + 5],
+						Float.POSITIVE_INFINITY, hit);
+			long[] times = new long[rays];
+			int hits = 0;
+			for (int i = 0; i < rays; i ++) {
+				long start = System.nanoTime();
+				if (bvh.intersect(ray[i * 6], ray[i * 6 + 1], ray[i * 6 + 2], ray[i * 6 + 3], ray[i * 6 + 4], ray[i * 6 + 5],
+						Float.POSITIVE_INFINITY, hit))
+					hits ++;
+				times[i] = System.nanoTime() - start;
+			}
+
+			/* every triangle for some of the rays */
+			int checked = Math.min(rays, 200), wrong = 0;
+			long all = 0;
+			for (int i = 0; i < checked; i ++) {
+				boolean fast = bvh.intersect(ray[i * 6], ray[i * 6 + 1], ray[i * 6 + 2], ray[i * 6 + 3], ray[i * 6 + 4],
+						ray[i * 6 + 5], Float.POSITIVE_INFINITY, hit);
+				long start = System.nanoTime();
+				boolean slow = intersectAll(positions, faces, mesh.num_faces, ray[i * 6], ray[i * 6 + 1], ray[i * 6 + 2],
+						ray[i * 6 + 3], ray[i * 6 + 4], ray[i * 6 + 5], check);
+				all += System.nanoTime() - start;
+				if (fast != slow || (fast && Math.abs(hit.t - check.t) > 1e-5f * radius))
+					wrong ++;
+			}
+
+			long total = 0;
+			for (long t : times)
+				total += t;
+			Arrays.sort(times);
+			System.out.println(String.format("%-22s %8d %8d %6d %6.1fms %7.2fus %7.2fus %7.2fus %7.0fus %5.1f%% %9d %6d",
+					new File(filename).getName(), mesh.num_faces, bvh.getNodeCount(), bvh.getDepth(), build / 1e6,
+					total / 1e3 / rays, times[rays * 99 / 100] / 1e3, times[rays - 1] / 1e3, all / 1e3 / checked,
+					100.0 * hits / rays, checked, wrong));
+		}
+	}
+}
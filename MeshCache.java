@@ -0,0 +1,528 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+/* This defines the MeshCache class, a registry of loaded meshes keyed
+ * by the canonical path of their obj file. The first acquire of a path
+ * loads the mesh; every later acquire returns the same shared Mesh, so
+ * a model used several times in the scene is parsed and stored once.
+ * Each acquire should be paired with a release; a mesh is dropped from
+ * the cache when its last user releases it, or when evicted explicitly.
+ *
+ * Loads run on a pool of worker threads, one per core unless capped
+ * with setMaxLoads; further loads wait their turn in request order.
+ * acquireAsync returns at once with a Future, so all models of a scene
+ * are parsed in parallel while the window is already up; acquire waits
+ * for it.
+ *
+ * The compact form of a mesh (see Mesh.compact) is cached separately
+ * from the float one, so each model can pick either. It is made from
+ * the float form, which stays cached only while someone else holds it.
+ *
+ * With a budget set, the cache also keeps the direct memory of the
+ * meshes it holds (their vertex, normal and face buffers, levels of
+ * detail included) under that many bytes. Holders touch a mesh each
+ * time they draw it, and once a load takes the total over the budget
+ * the least recently drawn meshes are evicted, even while held. A
+ * holder that finds its handle evicted (isEvicted) drops the mesh and
+ * its buffer objects and acquires it again when it next draws it,
+ * which maps it back from its cache file. Memory built from the meshes
+ * that outlives them, such as the merged copies of a StaticBatch, is
+ * charged to the budget as well; it is not evicted itself, the meshes
+ * make room for it. The budget should hold what one frame draws, or
+ * the same meshes are evicted and loaded over and over; the eviction
+ * and reload counts show when that happens.
+ */
+class MeshCache implements MeshCacheMBean {
+
+	private static final MeshCache shared = new MeshCache();
+
+	public static MeshCache getShared() {
+		return shared;
+	}
+
+	private class Entry extends FutureTask<Mesh> {
+		final String filename;
+		final boolean compact;
+		final long requested = System.nanoTime();
+		long finished;
+		int refs;
+		int earlyHits;		// hits while the mesh was still loading
+		long bytes;			// direct memory of the mesh once loaded
+		volatile long lastUsed;		// nanoTime of the last touch, or of the load
+		volatile boolean evicted;
+
+		Entry(final String filename, final boolean compact) {
+			super(new Callable<Mesh>() {
+				public Mesh call() throws Exception {
+					if (!compact)
+						return Mesh.load(filename);
+					/* the compact form is made from the shared float one, so
+					 * a model used in both forms is parsed, and its cache
+					 * files written, only once. That load runs right here
+					 * unless a loader thread has already started it, so this
+					 * never waits for a load queued behind it.
+					 */
+					Entry base = acquire(filename, false, false);
+					try {
+						base.run();
+						return base.get().compact();
+					} catch (ExecutionException e) {
+						throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					} finally {
+						release(base);
+					}
+				}
+			});
+			this.filename = filename;
+			this.compact = compact;
+		}
+
+		protected void done() {
+			synchronized (MeshCache.this) {
+				finished = lastUsed = System.nanoTime();
+				pending --;
+				Mesh mesh = meshOf(this);
+				if (mesh != null) {
+					bytes = mesh.totalSizeInBytes();
+					bytesSaved += earlyHits * bytes;
+					if (entries.get(keyOf(filename, compact)) == this) {
+						residentBytes += bytes;
+						peakResidentBytes = Math.max(peakResidentBytes, residentBytes);
+						evictOverBudget(this);
+					}
+				}
+			}
+		}
+	}
+
+	private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private final ArrayList<Entry> loads = new ArrayList<Entry>();	// every load started, for the timing report
+	private final ThreadPoolExecutor loader;
+	private long hits, misses, bytesSaved;
+	private int pending;
+
+	private long budget = Long.MAX_VALUE;	// bytes of direct memory
+	private long residentBytes, peakResidentBytes;
+	private long chargedBytes;		// part of residentBytes not held by cached meshes
+	private long evictions, evictedBytes, reloads;
+	private final HashSet<String> evictedKeys = new HashSet<String>();	// to count reloads
+
+	public MeshCache() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		loader = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mesh-loader-" + (++ count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* loads at most max meshes at the same time, so a scene loading
+	 * lazily while it is drawn leaves cores to the drawing
+	 */
+	public void setMaxLoads(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("max loads " + max);
+		if (max > loader.getMaximumPoolSize()) {
+			loader.setMaximumPoolSize(max);
+			loader.setCorePoolSize(max);
+		} else {
+			loader.setCorePoolSize(max);
+			loader.setMaximumPoolSize(max);
+		}
+	}
+
+	public int getMaxLoads() {
+		return loader.getMaximumPoolSize();
+	}
+
+	/* returns the shared mesh for filename, loading it on first use */
+	public Mesh acquire(String filename) {
+		Future<Mesh> future = acquireAsync(filename);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading " + filename, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error loading " + filename, e.getCause());
+		}
+	}
+
+	/* like acquire, but returns at once; the mesh is loaded on a worker
+	 * thread unless it is already cached or being loaded
+	 */
+	public Future<Mesh> acquireAsync(String filename) {
+		return acquireAsync(filename, false);
+	}
+
+	/* the same for the compact form of the mesh when compact is set */
+	public Future<Mesh> acquireAsync(String filename, boolean compact) {
+		return acquire(filename, compact, true);
+	}
+
+	/* takes a reference to the entry of filename, starting its load if
+	 * need be; only counted acquires show in the hits, misses, reloads
+	 * and bytes saved, so the float mesh a compact one is made from does
+	 * not count twice
+	 */
+	private synchronized Entry acquire(String filename, boolean compact, boolean counted) {
+		String key = keyOf(filename, compact);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			if (counted) {
+				misses ++;
+				if (evictedKeys.remove(key))
+					reloads ++;
+			}
+			pending ++;
+			entry = new Entry(filename, compact);
+			entries.put(key, entry);
+			loads.add(entry);
+			loader.execute(entry);
+		} else if (counted) {
+			hits ++;
+			Mesh mesh = meshOf(entry);
+			if (mesh != null)
+				bytesSaved += mesh.totalSizeInBytes();
+			else
+				entry.earlyHits ++;
+		}
+		entry.refs ++;
+		return entry;
+	}
+
+	/* gives up one reference to mesh; the cache forgets the mesh
+	 * once nobody holds it any more
+	 */
+	public synchronized void release(Mesh mesh) {
+		String key = keyOf(mesh.filename, mesh.compact);
+		Entry entry = entries.get(key);
+		if (entry != null && meshOf(entry) == mesh)
+			release(key, entry);
+	}
+
+	/* gives up one reference taken with acquireAsync */
+	public synchronized void release(Future<Mesh> handle) {
+		Entry entry = (Entry) handle;
+		String key = keyOf(entry.filename, entry.compact);
+		if (entries.get(key) == entry)
+			release(key, entry);
+	}
+
+	private void release(String key, Entry entry) {
+		if (-- entry.refs <= 0)
+			remove(key);
+	}
+
+	/* drops filename from the cache whether or not it is still in use.
+	 * Current holders keep their mesh; the next acquire loads it again.
+	 */
+	public synchronized boolean evict(String filename) {
+		boolean evicted = remove(keyOf(filename, false)) != null;
+		return remove(keyOf(filename, true)) != null || evicted;
+	}
+
+	public synchronized void clear() {
+		for (String key : new ArrayList<String>(entries.keySet()))
+			remove(key);
+	}
+
+	private Entry remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null && meshOf(entry) != null)
+			residentBytes -= entry.bytes;
+		return entry;
+	}
+
+	/* marks the mesh of handle as drawn now, which keeps it longest
+	 * under a budget; takes no lock, so it can be called every draw
+	 */
+	public void touch(Future<Mesh> handle) {
+		((Entry) handle).lastUsed = System.nanoTime();
+	}
+
+	/* true once the budget pushed the mesh of handle out: its holder
+	 * should let go of the mesh and acquire it again when it needs it
+	 */
+	public boolean isEvicted(Future<Mesh> handle) {
+		return ((Entry) handle).evicted;
+	}
+
+	/* keeps the direct memory of the cached meshes under bytes, or
+	 * lifts the limit when bytes is Long.MAX_VALUE (the default)
+	 */
+	public synchronized void setBudget(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("budget " + bytes);
+		budget = bytes;
+		evictOverBudget(null);
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/* counts bytes of direct memory built from cached meshes, such as a
+	 * StaticBatch, against the budget, evicting meshes to make room for
+	 * them; a negative count gives them back
+	 */
+	public synchronized void charge(long bytes) {
+		chargedBytes += bytes;
+		residentBytes += bytes;
+		peakResidentBytes = Math.max(peakResidentBytes, residentBytes);
+		evictOverBudget(null);
+	}
+
+	public synchronized long getChargedBytes() {
+		return chargedBytes;
+	}
+
+	/* evicts the least recently drawn loaded meshes, other than keep,
+	 * until the rest fit the budget
+	 */
+	private void evictOverBudget(Entry keep) {
+		while (residentBytes > budget) {
+			Entry oldest = null;
+			for (Entry entry : entries.values())
+				if (entry != keep && meshOf(entry) != null && (oldest == null || entry.lastUsed < oldest.lastUsed))
+					oldest = entry;
+			if (oldest == null)
+				return;		// keep alone is over the budget
+			String key = keyOf(oldest.filename, oldest.compact);
+			remove(key);
+			oldest.evicted = true;
+			evictedKeys.add(key);
+			evictions ++;
+			evictedBytes += oldest.bytes;
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/* number of loads started but not finished yet */
+	public synchronized int getPendingLoads() {
+		return pending;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/* direct memory that would have been allocated without sharing */
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	/* acquires that found the mesh cached or loading, out of all */
+	public synchronized double getHitRate() {
+		return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+	}
+
+	/* direct memory currently held by cached meshes and charged to the cache */
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public synchronized long getPeakResidentBytes() {
+		return peakResidentBytes;
+	}
+
+	/* meshes the budget pushed out, and their bytes */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getEvictedBytes() {
+		return evictedBytes;
+	}
+
+	/* loads of meshes that had been evicted */
+	public synchronized long getReloads() {
+		return reloads;
+	}
+
+	public synchronized String report() {
+		String s = "Mesh cache: " + entries.size() + " meshes, " + hits + " hits, " + misses + " misses, "
+				+ (getResidentBytes() / 1024) + " KB resident (" + (chargedBytes / 1024) + " KB charged), "
+				+ (bytesSaved / 1024) + " KB saved";
+		if (budget == Long.MAX_VALUE)
+			return s + ".";
+		return s + ", " + (budget / 1024) + " KB budget, " + evictions + " evictions (" + (evictedBytes / 1024)
+				+ " KB), " + reloads + " reloads.";
+	}
+
+	/* publishes this as sculpture:type=MeshCache on the platform MBean server */
+	public void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("sculpture:type=MeshCache"));
+		} catch (Exception e) {
+			System.out.println("Could not register the mesh cache MBean: " + e);
+		}
+	}
+
+	/* per model parse (or cache file map), bounding box, cleanup, normal,
+	 * vertex cache ordering, buffer, level of detail and bounding volume
+	 * hierarchy build times of every finished load, plus the wall clock time
+	 * from the first request to the last completion against the sum of
+	 * the individual loads
+	 */
+	public synchronized String loadReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-22s %5s %9s %9s %9s %9s %9s %9s %9s %9s %9s%n", "model", "from", "parse", "bounds", "clean", "normals", "order", "buffers", "lods", "bvh", "total"));
+		long first = Long.MAX_VALUE, last = Long.MIN_VALUE, serial = 0;
+		for (Entry entry : loads) {
+			Mesh mesh = meshOf(entry);
+			if (mesh == null)
+				continue;
+			sb.append(String.format("%-22s %5s %7.1fms %7.1fms %7.1fms %7.1fms %7.1fms %7.1fms %7.1fms %7.1fms %7.1fms%n",
+					new File(entry.filename).getName() + (entry.compact ? " (compact)" : ""),
+					mesh.fromMeshFile ? "mesh" : "obj",
+					mesh.parseNanos / 1e6, mesh.boundsNanos / 1e6, mesh.cleanNanos / 1e6, mesh.normalNanos / 1e6, mesh.orderNanos / 1e6, mesh.bufferNanos / 1e6,
+					mesh.lodNanos / 1e6, mesh.bvhNanos / 1e6, mesh.loadNanos() / 1e6));
+			first = Math.min(first, entry.requested);
+			last = Math.max(last, entry.finished);
+			serial += mesh.loadNanos();
+		}
+		if (serial > 0)
+			sb.append(String.format("%d models on %d threads: %.1fms wall clock, %.1fms serial, %.2fx%n",
+					loads.size(), loader.getMaximumPoolSize(),
+					(last - first) / 1e6, serial / 1e6, (double) serial / (last - first)));
+		return sb.toString();
+	}
+
+	/* loads every obj file given on the command line (all in the
+	 * current directory without arguments) through a cache with a budget
+	 * of MB megabytes, then draws them in turn the way a scene showing
+	 * scenes models at a time would: each frame touches the models of
+	 * the current scene, acquiring again those the budget evicted. Prints
+	 * how many draws found their mesh still loaded, and what the rest
+	 * cost in reloads:
+	 *
+	 *   java MeshCache [-budget MB] [-scenes N] [-frames N] [model.obj ...]
+	 */
+	public static void main(String[] args) {
+		long budget = 8L << 20;
+		int perScene = 4, frames = 1000;
+		int i = 0;
+		for (; i + 1 < args.length && args[i].startsWith("-"); i += 2) {
+			if (args[i].equals("-budget"))
+				budget = (long) (Double.parseDouble(args[i + 1]) * (1 << 20));
+			else if (args[i].equals("-scenes"))
+				perScene = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-frames"))
+				frames = Integer.parseInt(args[i + 1]);
+			else {
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		String[] files = Arrays.copyOfRange(args, i, args.length);
+		if (files.length == 0) {
+			files = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(files);
+		}
+
+		/* load everything once, so the cache files exist and the sizes are known */
+		MeshCache all = new MeshCache();
+		long total = 0;
+		for (String filename : files) {
+			try {
+				total += all.acquire(filename).totalSizeInBytes();
+			} catch (IllegalStateException e) {
+				System.out.println(e.getMessage() + ": " + e.getCause());
+			}
+		}
+		System.out.println(String.format(Locale.ROOT, "%d models, %.1f MB of meshes, budget %.1f MB.",
+				files.length, total / 1048576.0, budget / 1048576.0));
+
+		MeshCache cache = new MeshCache();
+		cache.setBudget(budget);
+		ArrayList<Future<Mesh>> handles = new ArrayList<Future<Mesh>>();
+		for (String filename : files)
+			handles.add(null);
+		long waited = 0, draws = 0, resident = 0;
+		long t0 = System.nanoTime();
+		for (int frame = 0; frame < frames; frame ++) {
+			/* a scene of perScene models that moves on by one every 10 frames */
+			int first = frame / 10 % files.length;
+			for (int j = 0; j < perScene && j < files.length; j ++) {
+				int m = (first + j) % files.length;
+				Future<Mesh> handle = handles.get(m);
+				draws ++;
+				if (handle != null && !cache.isEvicted(handle))
+					resident ++;
+				else {
+					long start = System.nanoTime();
+					handle = cache.acquireAsync(files[m], false);
+					try {
+						handle.get();
+					} catch (Exception e) {
+						continue;
+					}
+					handles.set(m, handle);
+					waited += System.nanoTime() - start;
+				}
+				cache.touch(handle);
+			}
+		}
+		long t1 = System.nanoTime();
+		System.out.println(String.format(Locale.ROOT,
+				"%d frames in %.0fms, %.0fms of it waiting for loads: %.1f%% of draws resident, %d evictions (%.1f MB), %d reloads, peak %.1f MB resident.",
+				frames, (t1 - t0) / 1e6, waited / 1e6, 100.0 * resident / draws, cache.getEvictions(),
+				cache.getEvictedBytes() / 1048576.0, cache.getReloads(), cache.getPeakResidentBytes() / 1048576.0));
+		System.out.println(cache.report());
+	}
+
+	/* the mesh of a finished entry, or null while loading or if it failed */
+	private static Mesh meshOf(Entry entry) {
+		if (!entry.isDone())
+			return null;
+		try {
+			return entry.get();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static String keyOf(String filename, boolean compact) {
+		File file = new File(filename);
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			path = file.getAbsolutePath();
+		}
+		return compact ? path + " (compact)" : path;
+	}
+}
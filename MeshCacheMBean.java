@@ -0,0 +1,39 @@
+/* This defines the MeshCacheMBean interface, the JMX view of the
+ * shared MeshCache: how often acquires find their mesh, the direct
+ * memory the cached meshes hold against the budget, and how many the
+ * budget evicted and had to load again. It is published as
+ * sculpture:type=MeshCache, next to the frame statistics.
+ */
+public interface MeshCacheMBean {
+	long getHits();
+
+	long getMisses();
+
+	double getHitRate();
+
+	int getPendingLoads();
+
+	long getResidentBytes();
+
+	long getPeakResidentBytes();
+
+	/* the part of the resident bytes built from meshes, such as static batches */
+	long getChargedBytes();
+
+	long getBytesSaved();
+
+	/* bytes of direct memory, Long.MAX_VALUE for no limit */
+	long getBudget();
+
+	void setBudget(long bytes);
+
+	long getEvictions();
+
+	long getEvictedBytes();
+
+	long getReloads();
+
+	int getMaxLoads();
+
+	void setMaxLoads(int max);
+}
@@ -0,0 +1,262 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+
+/* This defines the MeshCleaner class, which takes the redundant
+ * geometry out of a mesh as it is read from its obj file, before its
+ * normals are estimated:
+ *
+ * - vertices closer than weldEpsilon to an earlier one are merged into
+ *   it, found through a spatial hash of cells 2 weldEpsilon wide, so the
+ *   seams exporters cut into a model share their vertices and get one
+ *   normal instead of a crease (242 vertices of shoe.obj, 73 of
+ *   camera.obj);
+ * - triangles with an index out of range, two corners on the same
+ *   vertex or no area at all are dropped;
+ * - a triangle that repeats another with the same corners facing the
+ *   same way is dropped (none of the bundled models has one). A pair
+ *   facing opposite ways is kept, as the two sides of a sheet;
+ * - vertices no triangle uses any more are dropped, and the rest are
+ *   renumbered in their old order.
+ *
+ * It works in place on the normalized arrays, so a model keeps the
+ * center and extent it had, and its normals are estimated from the
+ * cleaned triangles as before. Normals the obj file gave are moved
+ * along with their vertices, and only vertices whose normals agree as
+ * well are welded, so the hard edges of such a model stay hard.
+ */
+class MeshCleaner {
+
+	/* set to false to keep meshes as their obj files have them */
+	public static boolean enabled = true;
+
+	/* in units of the normalized model, whose largest side is 1 */
+	public static float weldEpsilon = 1e-5f;
+
+	/* how far apart two unit normals may be for their vertices to weld */
+	private static final float NORMAL_EPSILON = 1e-3f;
+
+	/* what clean removed from one mesh */
+	static class Result {
+		public int num_verts, num_indices;		// before
+		public int new_verts, new_indices;		// after
+		public int welded;			// vertices merged into another
+		public int unreferenced;	// vertices no triangle used, before or after welding
+		public int invalid;			// triangles with an index out of range
+		public int degenerate;		// triangles with no area
+		public int duplicate;		// triangles repeating another
+
+		public String toString() {
+			return String.format("%d -> %d vertices (%d welded, %d unused), %d -> %d triangles (%d degenerate, %d duplicate, %d invalid)",
+					num_verts, new_verts, welded, unreferenced, num_indices / 3, new_indices / 3,
+					degenerate, duplicate, invalid);
+		}
+	}
+
+	/* cleans the num_verts positions of verts and the num_indices
+	 * indices of faces in place, moving what is kept to the front
+	 */
+	public static Result clean(float[] verts, int num_verts, int[] faces, int num_indices) {
+		return clean(verts, null, num_verts, faces, num_indices);
+	}
+
+	/* the same, with the unit normals norms of the vertices when the
+	 * file gave them, or null
+	 */
+	public static Result clean(float[] verts, float[] norms, int num_verts, int[] faces, int num_indices) {
+		Result r = new Result();
+		r.num_verts = num_verts;
+		r.num_indices = num_indices;
+
+		int[] weld = weld(verts, norms, num_verts);
+		int n = 0;
+		for (int i = 0; i + 2 < num_indices; i += 3) {
+			int a = faces[i], b = faces[i+1], c = faces[i+2];
+			if (a < 0 || a >= num_verts || b < 0 || b >= num_verts || c < 0 || c >= num_verts) {
+				r.invalid ++;
+				continue;
+			}
+			a = weld[a];
+			b = weld[b];
+			c = weld[c];
+			if (a == b || b == c || a == c || area2(verts, a, b, c) == 0) {
+				r.degenerate ++;
+				continue;
+			}
+			faces[n] = a;
+			faces[n+1] = b;
+			faces[n+2] = c;
+			n += 3;
+		}
+		n = dropDuplicates(faces, n, num_verts, r);
+
+		/* renumber the vertices still used, in their old order */
+		int[] remap = new int[num_verts];
+		Arrays.fill(remap, -1);
+		for (int i = 0; i < n; i ++)
+			remap[faces[i]] = 0;
+		int kept = 0;
+		for (int v = 0; v < num_verts; v ++) {
+			if (remap[v] < 0) {
+				if (weld[v] == v)
+					r.unreferenced ++;
+				else
+					r.welded ++;
+				continue;
+			}
+			remap[v] = kept;
+			System.arraycopy(verts, v * 3, verts, kept * 3, 3);
+			if (norms != null)
+				System.arraycopy(norms, v * 3, norms, kept * 3, 3);
+			kept ++;
+		}
+		for (int i = 0; i < n; i ++)
+			faces[i] = remap[faces[i]];
+		r.new_verts = kept;
+		r.new_indices = n;
+		return r;
+	}
+
+	/* for every vertex the first one within weldEpsilon of it (with a
+	 * normal within NORMAL_EPSILON of its own, if norms is not null),
+	 * which is itself when there is none. Only vertices that are their
+	 * own are looked for, so welding does not creep along a chain of
+	 * close vertices.
+	 */
+	private static int[] weld(float[] verts, float[] norms, int num_verts) {
+		int[] weld = new int[num_verts];
+		float eps = weldEpsilon, eps2 = eps * eps;
+		if (eps <= 0) {
+			for (int v = 0; v < num_verts; v ++)
+				weld[v] = v;
+			return weld;
+		}
+		/* with cells twice epsilon wide, anything within epsilon of a
+		 * point lies in its cell or the neighbors on the side of each axis
+		 * it is nearer to: 8 cells to look in instead of 27
+		 */
+		float scale = 1 / (2 * eps);
+		LongIntMap cells = new LongIntMap(num_verts);	// cell to the last vertex kept in it
+		int[] next = new int[num_verts];				// the vertex kept in the same cell before
+		for (int v = 0; v < num_verts; v ++) {
+			float x = verts[v*3], y = verts[v*3+1], z = verts[v*3+2];
+			float fx = (float) Math.floor(x * scale), fy = (float) Math.floor(y * scale), fz = (float) Math.floor(z * scale);
+			int cx = (int) fx, cy = (int) fy, cz = (int) fz;
+			int sx = x * scale - fx < 0.5f ? -1 : 1, sy = y * scale - fy < 0.5f ? -1 : 1, sz = z * scale - fz < 0.5f ? -1 : 1;
+			int found = -1;
+			for (int n = 0; n < 8; n ++) {
+				long key = cellKey(cx + (n & 1) * sx, cy + (n >> 1 & 1) * sy, cz + (n >> 2) * sz);
+				for (int u = cells.get(key); u >= 0; u = next[u]) {
+					float ex = verts[u*3] - x, ey = verts[u*3+1] - y, ez = verts[u*3+2] - z;
+					if (ex * ex + ey * ey + ez * ez <= eps2 && (found < 0 || u < found)
+							&& (norms == null || sameNormal(norms, u, v)))
+						found = u;
+				}
+			}
+			if (found >= 0) {
+				weld[v] = found;
+			} else {
+				weld[v] = v;
+				next[v] = cells.put(cellKey(cx, cy, cz), v);
+			}
+		}
+		return weld;
+	}
+
+	private static boolean sameNormal(float[] norms, int u, int v) {
+		float dx = norms[u*3] - norms[v*3], dy = norms[u*3+1] - norms[v*3+1], dz = norms[u*3+2] - norms[v*3+2];
+		return dx * dx + dy * dy + dz * dz <= NORMAL_EPSILON * NORMAL_EPSILON;
+	}
+
+	private static long cellKey(int x, int y, int z) {
+		return ((long) (x & 0x1FFFFF) << 42) | ((long) (y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+	}
+
+	/* the squared length of the cross product of the edges of triangle
+	 * a, b, c, which is four times its squared area
+	 */
+	private static float area2(float[] verts, int a, int b, int c) {
+		a *= 3;
+		b *= 3;
+		c *= 3;
+		float e1x = verts[b] - verts[a], e1y = verts[b+1] - verts[a+1], e1z = verts[b+2] - verts[a+2];
+		float e2x = verts[c] - verts[a], e2y = verts[c+1] - verts[a+1], e2z = verts[c+2] - verts[a+2];
+		float nx = e1y * e2z - e1z * e2y, ny = e1z * e2x - e1x * e2z, nz = e1x * e2y - e1y * e2x;
+		return nx * nx + ny * ny + nz * nz;
+	}
+
+	/* drops the triangles of the n indices of faces that repeat an
+	 * earlier one facing the same way, and returns how many indices are
+	 * left
+	 */
+	private static int dropDuplicates(int[] faces, int n, int num_verts, Result r) {
+		if (num_verts > 1 << 21)
+			return n;		// the corners no longer fit a key
+		LongIntMap seen = new LongIntMap(n / 3);	// corners to the first triangle with them
+		int kept = 0;
+		for (int i = 0; i < n; i += 3) {
+			int a = faces[i], b = faces[i+1], c = faces[i+2];
+			/* the same triangle turned to start at its lowest corner */
+			if (b < a && b < c) {
+				int x = a; a = b; b = c; c = x;
+			} else if (c < a && c < b) {
+				int x = c; c = b; b = a; a = x;
+			}
+			long key = ((long) a << 42) | ((long) b << 21) | c;
+			if (seen.get(key) >= 0) {
+				r.duplicate ++;
+				continue;
+			}
+			seen.put(key, kept / 3);
+			faces[kept] = faces[i];
+			faces[kept+1] = faces[i+1];
+			faces[kept+2] = faces[i+2];
+			kept += 3;
+		}
+		return kept;
+	}
+
+	/* prints what cleaning each obj file given on the command line (all
+	 * in the current directory without arguments) removes, and how long
+	 * it takes:
+	 *
+	 *   java MeshCleaner [-epsilon E] [model.obj ...]
+	 */
+	public static void main(String[] args) {
+		if (args.length >= 2 && args[0].equals("-epsilon")) {
+			weldEpsilon = Float.parseFloat(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		if (args.length == 0) {
+			args = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(args);
+		}
+		System.out.println(String.format("%-22s %9s %9s %7s %7s %9s %9s %7s %7s %7s %9s", "model", "vertices", "after",
+				"welded", "unused", "triangles", "after", "degen", "dupes", "invalid", "time"));
+		for (String filename : args) {
+			ObjParser obj;
+			try {
+				obj = ObjParser.parse(filename);
+			} catch (Exception e) {
+				System.out.println(String.format("%-22s %s", filename, e));
+				continue;
+			}
+			float[] verts = Arrays.copyOf(obj.positions, obj.num_verts * 3);
+			float[] norms = obj.normals != null ? Arrays.copyOf(obj.normals, obj.num_verts * 3) : null;
+			int[] faces = Arrays.copyOf(obj.faces, obj.num_indices);
+			Mesh.normalize(verts, obj.num_verts);
+			if (norms != null)
+				Mesh.unitNormals(norms, obj.num_verts);
+			long t0 = System.nanoTime();
+			Result r = clean(verts, norms, obj.num_verts, faces, obj.num_indices);
+			long t1 = System.nanoTime();
+			System.out.println(String.format("%-22s %9d %9d %7d %7d %9d %9d %7d %7d %7d %7.1fms", filename,
+					r.num_verts, r.new_verts, r.welded, r.unreferenced, r.num_indices / 3, r.new_indices / 3,
+					r.degenerate, r.duplicate, r.invalid, (t1 - t0) / 1e6));
+		}
+	}
+}
@@ -0,0 +1,388 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+
+/* This defines the MeshFile class, which stores a loaded Mesh next to
+ * its obj file (bird.obj -> bird.obj.mesh) so later runs can skip the
+ * parsing, normalization and normal estimation altogether.
+ *
+ * The file is a 96 byte header followed by the normalized positions,
+ * the normals and the face indices, all in native byte order:
+ *
+ *   0  int    magic 'MESH'
+ *   4  int    format version
+ *   8  int    num_verts
+ *  12  int    num_faces
+ *  16  long   size of the obj file
+ *  24  long   CRC32 of the obj file
+ *  32  float  centerX, centerY, centerZ, extent
+ *  48  float  bounds minX, minY, minZ, maxX, maxY, maxZ
+ *  72  int    settings the mesh was built with: 1 MeshCleaner.enabled,
+ *             2 MeshOptimizer.enabled, 4 NormalEstimator.angleWeighted
+ *  76  float  MeshCleaner.weldEpsilon
+ *  80         reserved
+ *
+ * The cleaning, the vertex cache order and the normals are baked into
+ * the file, so one built with other settings than the current ones is
+ * ignored and rewritten like a stale one.
+ *
+ * Reading checks the header with a plain read and only then maps the
+ * file, handing out slices of that mapping as the mesh buffers. A
+ * cache file whose size, version, byte order or source checksum does
+ * not match is ignored and rewritten.
+ *
+ * The mappings are never released explicitly, and on Windows a mapped
+ * file can be neither deleted nor replaced. So a cache file this run
+ * has mapped is never rewritten: a rebuilt cache goes to the other of
+ * two names, bird.obj.mesh and bird.obj.alt.mesh, and reading takes
+ * whichever of them is valid. It is written to a temporary file first
+ * and moved over the old one in one step, so there is always a whole
+ * cache file or none.
+ *
+ * The levels of detail of a mesh are kept the same way in files of
+ * their own, bird.obj.lod1.mesh and so on, checked against the same
+ * obj file.
+ */
+class MeshFile {
+	public static final String SUFFIX = ".mesh";
+
+	/* set to false to always load from the obj files */
+	public static boolean enabled = true;
+
+	private static final int MAGIC = 0x4d455348;
+	private static final int VERSION = 7;
+	private static final int HEADER_SIZE = 96;
+	private static final int SLOTS = 2;
+
+	/* in place of a checksum not computed yet; a CRC32 is never negative */
+	public static final long UNKNOWN = -1;
+
+	/* absolute paths of the cache files this run has mapped */
+	private static final HashSet<String> mapped = new HashSet<String>();
+
+	public static File cacheFileOf(String filename) {
+		return cacheFileOf(filename, 0);
+	}
+
+	public static File cacheFileOf(String filename, int level) {
+		return cacheFileOf(filename, level, 0);
+	}
+
+	private static File cacheFileOf(String filename, int level, int slot) {
+		String name = level == 0 ? filename : filename + ".lod" + level;
+		return new File(slot == 0 ? name + SUFFIX : name + ".alt" + SUFFIX);
+	}
+
+	/* deletes the cache files of a level of filename, as far as they are
+	 * not mapped
+	 */
+	public static void delete(String filename, int level) {
+		for (int slot = 0; slot < SLOTS; slot ++)
+			cacheFileOf(filename, level, slot).delete();
+	}
+
+	/* the cached mesh of filename, or null if there is no usable cache file */
+	public static Mesh read(String filename) {
+		return read(filename, 0);
+	}
+
+	/* the same for a level of detail of it */
+	public static Mesh read(String filename, int level) {
+		return read(filename, level, true, UNKNOWN);
+	}
+
+	/* the same, with the checksum of the obj file already known (see
+	 * checksumOf), so the levels of one mesh read it only once
+	 */
+	public static Mesh read(String filename, int level, long checksum) {
+		return read(filename, level, true, checksum);
+	}
+
+	/* a stand-in for the mesh of filename to show while it loads: its
+	 * coarsest cached level of detail, or else a box the size of the
+	 * cached mesh, both with the bounds of the full mesh. Null without a
+	 * cache file. Only the size of the obj file is checked, since its
+	 * checksum would mean reading all of it; a stale stand-in is soon
+	 * replaced anyway.
+	 */
+	public static Mesh readPlaceholder(String filename) {
+		Mesh full = readHeader(filename);
+		if (full == null)
+			return null;
+		for (int level = MeshSimplifier.MAX_LEVELS - 1; level > 0; level --) {
+			Mesh coarse = read(filename, level, false, UNKNOWN);
+			if (coarse != null)
+				return new Mesh(filename, coarse.getVertexBuffer(), coarse.getNormalBuffer(), coarse.getFaceBuffer(),
+						coarse.num_verts, coarse.num_faces, full.centerX, full.centerY, full.centerZ, full.extent,
+						full.bounds);
+		}
+		return Mesh.box(filename, full.centerX, full.centerY, full.centerZ, full.extent, full.bounds);
+	}
+
+	/* an empty mesh with the frame and bounds from the header of the
+	 * cache file of filename, reading nothing else
+	 */
+	private static Mesh readHeader(String filename) {
+		if (!enabled)
+			return null;
+		long size = new File(filename).length();
+		for (int slot = 0; slot < SLOTS; slot ++) {
+			ByteBuffer header = header(cacheFileOf(filename, 0, slot));
+			if (header != null && header.getLong(16) == size)
+				return new Mesh(filename, null, null, null, 0, 0,
+						header.getFloat(32), header.getFloat(36), header.getFloat(40), header.getFloat(44),
+						new Bounds(header.getFloat(48), header.getFloat(52), header.getFloat(56),
+								header.getFloat(60), header.getFloat(64), header.getFloat(68)));
+		}
+		return null;
+	}
+
+	/* the header of a cache file if it has this format and the length
+	 * its counts call for, or null
+	 */
+	private static ByteBuffer header(File file) {
+		if (!file.isFile())
+			return null;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+		long length;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				length = channel.size();
+				while (header.hasRemaining() && channel.read(header) >= 0)
+					;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+				|| header.getInt(72) != settings() || header.getFloat(76) != MeshCleaner.weldEpsilon)
+			return null;
+		long num_verts = header.getInt(8), num_faces = header.getInt(12);
+		if (num_verts < 0 || num_faces < 0 || length != HEADER_SIZE + 2 * num_verts * 3 * 4 + num_faces * 3 * 4)
+			return null;
+		return header;
+	}
+
+	/* reads a cache file, checking the checksum of the obj file when
+	 * verify is set and only its size otherwise. The checksum is
+	 * computed here if sum is UNKNOWN, and only once a header matches.
+	 */
+	private static Mesh read(String filename, int level, boolean verify, long sum) {
+		if (!enabled)
+			return null;
+		long t0 = System.nanoTime();
+		File source = new File(filename);
+		for (int slot = 0; slot < SLOTS; slot ++) {
+			File file = cacheFileOf(filename, level, slot);
+			ByteBuffer header = header(file);
+			if (header == null || header.getLong(16) != source.length())
+				continue;
+			try {
+				if (verify && sum == UNKNOWN)
+					sum = checksum(source);
+				if (verify && header.getLong(24) != sum)
+					continue;
+				Mesh mesh = map(filename, file);
+				mesh.parseNanos = System.nanoTime() - t0;
+				return mesh;
+			} catch (IOException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/* the mesh in a cache file whose header has been checked */
+	private static Mesh map(String filename, File file) throws IOException {
+		MappedByteBuffer map = map(file);
+		synchronized (mapped) {
+			mapped.add(file.getAbsolutePath());
+		}
+		map.order(ByteOrder.nativeOrder());
+		int num_verts = map.getInt(8);
+		int num_faces = map.getInt(12);
+		long vertexBytes = (long) num_verts * 3 * 4;
+		long faceBytes = (long) num_faces * 3 * 4;
+
+		int offset = HEADER_SIZE;
+		FloatBuffer vertexBuffer = slice(map, offset, vertexBytes).asFloatBuffer();
+		offset += vertexBytes;
+		FloatBuffer normalBuffer = slice(map, offset, vertexBytes).asFloatBuffer();
+		offset += vertexBytes;
+		IntBuffer faceBuffer = slice(map, offset, faceBytes).asIntBuffer();
+
+		Mesh mesh = new Mesh(filename, vertexBuffer, normalBuffer, faceBuffer, num_verts, num_faces,
+				map.getFloat(32), map.getFloat(36), map.getFloat(40), map.getFloat(44),
+				new Bounds(map.getFloat(48), map.getFloat(52), map.getFloat(56),
+						map.getFloat(60), map.getFloat(64), map.getFloat(68)));
+		mesh.fromMeshFile = true;
+		return mesh;
+	}
+
+	/* writes the cache file of mesh; failures only cost the speedup next time */
+	public static void write(Mesh mesh) {
+		write(mesh, 0);
+	}
+
+	public static void write(Mesh mesh, int level) {
+		write(mesh, level, UNKNOWN);
+	}
+
+	/* the same, with the checksum of the obj file already known */
+	public static void write(Mesh mesh, int level, long checksum) {
+		if (!enabled)
+			return;
+		/* the first name this run has not mapped; the other one is stale */
+		File file = null, other = null;
+		synchronized (mapped) {
+			for (int slot = 0; slot < SLOTS; slot ++) {
+				File f = cacheFileOf(mesh.filename, level, slot);
+				if (mapped.contains(f.getAbsolutePath()))
+					continue;
+				if (file == null)
+					file = f;
+				else
+					other = f;
+			}
+		}
+		if (file == null) {
+			System.out.println("Not rewriting mesh cache " + cacheFileOf(mesh.filename, level)
+					+ " while it is in use; it is rebuilt on the next run.");
+			return;
+		}
+		File tmp = null;
+		long vertexBytes = (long) mesh.num_verts * 3 * 4;
+		long faceBytes = (long) mesh.num_faces * 3 * 4;
+		ByteBuffer out = ByteBuffer.allocate((int) (HEADER_SIZE + 2 * vertexBytes + faceBytes));
+		out.order(ByteOrder.nativeOrder());
+		try {
+			File source = new File(mesh.filename);
+			out.putInt(MAGIC).putInt(VERSION).putInt(mesh.num_verts).putInt(mesh.num_faces);
+			out.putLong(source.length()).putLong(checksum != UNKNOWN ? checksum : checksum(source));
+			out.putFloat(mesh.centerX).putFloat(mesh.centerY).putFloat(mesh.centerZ).putFloat(mesh.extent);
+			Bounds b = mesh.bounds;
+			out.putFloat(b.minX).putFloat(b.minY).putFloat(b.minZ).putFloat(b.maxX).putFloat(b.maxY).putFloat(b.maxZ);
+			out.putInt(settings()).putFloat(MeshCleaner.weldEpsilon);
+			out.position(HEADER_SIZE);
+			out.asFloatBuffer().put(mesh.getVertexBuffer());
+			out.position((int) (out.position() + vertexBytes));
+			out.asFloatBuffer().put(mesh.getNormalBuffer());
+			out.position((int) (out.position() + vertexBytes));
+			out.asIntBuffer().put(mesh.getFaceBuffer());
+			out.rewind();
+
+			/* a temporary file of its own, so loads writing the same cache do not clash */
+			tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+			FileOutputStream stream = new FileOutputStream(tmp);
+			try {
+				FileChannel channel = stream.getChannel();
+				while (out.hasRemaining())
+					channel.write(out);
+			} finally {
+				stream.close();
+			}
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (other != null)
+				other.delete();
+		} catch (IOException e) {
+			if (tmp != null)
+				tmp.delete();
+			System.out.println("Could not write mesh cache " + file + ": " + e);
+		}
+	}
+
+	/* the switches that change what loading an obj file builds, as bits */
+	private static int settings() {
+		return (MeshCleaner.enabled ? 1 : 0) | (MeshOptimizer.enabled ? 2 : 0) | (NormalEstimator.angleWeighted ? 4 : 0);
+	}
+
+	/* the checksum of the obj file filename, to hand to the reads and
+	 * writes of all its cache files, or UNKNOWN when caching is off or
+	 * the file cannot be read
+	 */
+	public static long checksumOf(String filename) {
+		if (!enabled)
+			return UNKNOWN;
+		try {
+			return checksum(new File(filename));
+		} catch (IOException e) {
+			return UNKNOWN;
+		}
+	}
+
+	/* CRC32 of the whole file, used to tell whether a cache file is
+	 * stale. Read in chunks rather than mapped, so it leaves no mapping
+	 * of the obj file behind.
+	 */
+	public static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[64 * 1024];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				crc.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer map, long offset, long length) {
+		ByteBuffer b = map.duplicate();
+		b.position((int) offset);
+		b.limit((int) (offset + length));
+		return b.slice().order(ByteOrder.nativeOrder());
+	}
+
+	/* times a cold load (obj file, cache file rebuilt) against a warm
+	 * load (cache file only) for each obj file given on the command line
+	 */
+	public static void main(String[] args) {
+		System.out.println(String.format("%-22s %10s %10s %8s", "model", "cold", "warm", "speedup"));
+		for (String filename : args) {
+			for (int level = 0; level < MeshSimplifier.MAX_LEVELS; level ++)
+				delete(filename, level);
+			long t0 = System.nanoTime();
+			Mesh.load(filename);
+			long t1 = System.nanoTime();
+			Mesh warm = Mesh.load(filename);
+			long t2 = System.nanoTime();
+			if (!warm.fromMeshFile)
+				System.out.println("Cache file of " + filename + " was not used.");
+			System.out.println(String.format("%-22s %8.1fms %8.1fms %7.1fx", filename,
+					(t1 - t0) / 1e6, (t2 - t1) / 1e6, (double) (t1 - t0) / (t2 - t1)));
+		}
+	}
+}
@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+
+/* This defines the MeshOptimizer class, which reorders the triangles
+ * and vertices of a mesh for the GPU. Triangles are put in the order of
+ * Tom Forsyth's "linear speed vertex cache optimisation": each step
+ * emits the triangle whose vertices score best, a vertex scoring high
+ * while it sits near the front of a simulated 32 entry LRU cache and
+ * while few triangles are left that use it. Vertices are then renumbered
+ * in the order the new triangles first use them, so the vertex fetches
+ * walk through memory mostly forwards.
+ *
+ * The scoring is tuned for a cache of CACHE_SIZE (32) entries, and the
+ * new order is checked against the old one with the ACMR of a 32 entry
+ * FIFO cache, as GPUs have. Some exporters already write a good order
+ * (globe.obj and tulip.obj score worse after the pass), so a mesh whose
+ * ACMR does not improve keeps the order of its obj file.
+ *
+ * The drawn result is the same; only the order of faceBuffer and of the
+ * vertex and normal arrays changes.
+ */
+class MeshOptimizer {
+
+	/* set to false to keep meshes in the order of their obj files */
+	public static boolean enabled = true;
+
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRI_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+	private static final int MAX_VALENCE = 64;		// valences above this score as this
+
+	private static final float[] CACHE_SCORE = new float[CACHE_SIZE];
+	private static final float[] VALENCE_SCORE = new float[MAX_VALENCE + 1];
+	static {
+		for (int i = 0; i < CACHE_SIZE; i ++) {
+			if (i < 3)
+				CACHE_SCORE[i] = LAST_TRI_SCORE;	// the triangle just drawn gets no extra bonus
+			else
+				CACHE_SCORE[i] = (float) Math.pow(1 - (i - 3) / (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+		}
+		for (int i = 1; i <= MAX_VALENCE; i ++)
+			VALENCE_SCORE[i] = VALENCE_BOOST_SCALE * (float) Math.pow(i, -VALENCE_BOOST_POWER);
+	}
+
+	/* reorders the num_indices / 3 triangles of faces for the vertex
+	 * cache, then renumbers the num_verts vertices in first use order,
+	 * moving their positions and normals (3 floats each) along. Leaves
+	 * everything as it was, and returns false, when the new order would
+	 * miss the cache as often as the old one or more.
+	 */
+	public static boolean optimize(float[] verts, float[] norms, int num_verts, int[] faces, int num_indices) {
+		int[] ordered = new int[num_indices];
+		orderTriangles(faces, num_indices, num_verts, ordered);
+		if (acmr(ordered, num_indices, num_verts, CACHE_SIZE) >= acmr(faces, num_indices, num_verts, CACHE_SIZE))
+			return false;
+		System.arraycopy(ordered, 0, faces, 0, num_indices);
+		orderVertices(verts, norms, num_verts, faces, num_indices);
+		return true;
+	}
+
+	/* writes the triangles of faces to out in vertex cache order */
+	static void orderTriangles(int[] faces, int num_indices, int num_verts, int[] out) {
+		int num_tris = num_indices / 3;
+
+		/* the triangles of each vertex; the first remaining[v] of them
+		 * are the ones not emitted yet
+		 */
+		int[] remaining = new int[num_verts];
+		for (int i = 0; i < num_tris * 3; i ++)
+			remaining[faces[i]] ++;
+		int[] start = new int[num_verts + 1];
+		for (int v = 0; v < num_verts; v ++)
+			start[v + 1] = start[v] + remaining[v];
+		int[] adjacent = new int[num_tris * 3];
+		int[] fill = new int[num_verts];
+		for (int t = 0; t < num_tris; t ++)
+			for (int j = 0; j < 3; j ++) {
+				int v = faces[t*3+j];
+				adjacent[start[v] + fill[v] ++] = t;
+			}
+
+		int[] cachePos = new int[num_verts];
+		Arrays.fill(cachePos, -1);
+		float[] vertexScore = new float[num_verts];
+		for (int v = 0; v < num_verts; v ++)
+			vertexScore[v] = score(-1, remaining[v]);
+		float[] triScore = new float[num_tris];
+		boolean[] emitted = new boolean[num_tris];
+		for (int t = 0; t < num_tris; t ++)
+			triScore[t] = vertexScore[faces[t*3]] + vertexScore[faces[t*3+1]] + vertexScore[faces[t*3+2]];
+
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] next = new int[CACHE_SIZE + 3];
+		int cached = 0;
+		int best = -1;
+		int scan = 0;		// triangles before this were all emitted
+
+		for (int n = 0; n < num_tris; n ++) {
+			if (best < 0) {
+				/* the cache has nothing left to offer, as at the end of
+				 * each separate part: restart at the first triangle not
+				 * emitted yet, which keeps this linear for meshes made of
+				 * many small parts
+				 */
+				while (emitted[scan])
+					scan ++;
+				best = scan;
+			}
+			int t = best;
+			emitted[t] = true;
+			System.arraycopy(faces, t*3, out, n*3, 3);
+
+			/* the triangle's vertices go to the front of the cache, the
+			 * rest move back in order
+			 */
+			int size = 0;
+			for (int j = 0; j < 3; j ++) {
+				int v = faces[t*3+j];
+				next[size ++] = v;
+				for (int k = start[v]; k < start[v] + remaining[v]; k ++)
+					if (adjacent[k] == t) {
+						adjacent[k] = adjacent[start[v] + remaining[v] - 1];
+						adjacent[start[v] + remaining[v] - 1] = t;
+						remaining[v] --;
+						break;
+					}
+			}
+			for (int i = 0; i < cached; i ++) {
+				int v = cache[i];
+				if (v != faces[t*3] && v != faces[t*3+1] && v != faces[t*3+2])
+					next[size ++] = v;
+			}
+			int[] swap = cache;
+			cache = next;
+			next = swap;
+			cached = size;
+
+			/* rescore the cached vertices and their triangles; the ones
+			 * pushed out of the cache lose their cache bonus
+			 */
+			best = -1;
+			float bestScore = -1;
+			for (int i = 0; i < cached; i ++) {
+				int v = cache[i];
+				cachePos[v] = i < CACHE_SIZE ? i : -1;
+				float score = score(cachePos[v], remaining[v]);
+				float delta = score - vertexScore[v];
+				vertexScore[v] = score;
+				for (int k = start[v]; k < start[v] + remaining[v]; k ++) {
+					int a = adjacent[k];
+					triScore[a] += delta;
+					if (triScore[a] > bestScore) {
+						bestScore = triScore[a];
+						best = a;
+					}
+				}
+			}
+			if (cached > CACHE_SIZE)
+				cached = CACHE_SIZE;
+		}
+	}
+
+	private static float score(int cachePos, int valence) {
+		if (valence == 0)
+			return -1;		// no triangle left to use it
+		float score = cachePos >= 0 ? CACHE_SCORE[cachePos] : 0;
+		return score + VALENCE_SCORE[Math.min(valence, MAX_VALENCE)];
+	}
+
+	/* renumbers the vertices in the order faces first uses them; unused
+	 * vertices keep their relative order at the end
+	 */
+	static void orderVertices(float[] verts, float[] norms, int num_verts, int[] faces, int num_indices) {
+		int[] remap = new int[num_verts];
+		Arrays.fill(remap, -1);
+		int count = 0;
+		for (int i = 0; i < num_indices; i ++) {
+			int v = faces[i];
+			if (remap[v] < 0)
+				remap[v] = count ++;
+			faces[i] = remap[v];
+		}
+		for (int v = 0; v < num_verts; v ++)
+			if (remap[v] < 0)
+				remap[v] = count ++;
+		permute(verts, remap, num_verts);
+		permute(norms, remap, num_verts);
+	}
+
+	private static void permute(float[] a, int[] remap, int num_verts) {
+		float[] copy = Arrays.copyOf(a, num_verts * 3);
+		for (int v = 0; v < num_verts; v ++)
+			System.arraycopy(copy, v * 3, a, remap[v] * 3, 3);
+	}
+
+	/* average cache miss ratio: vertices transformed per triangle drawn
+	 * with a FIFO post-transform cache of cacheSize entries. 3 is the
+	 * worst, about 0.5 the best a closed mesh can get.
+	 */
+	public static float acmr(int[] faces, int num_indices, int num_verts, int cacheSize) {
+		if (num_indices == 0)
+			return 0;
+		int[] added = new int[num_verts];		// miss count when v entered the cache
+		Arrays.fill(added, Integer.MIN_VALUE / 2);
+		int misses = 0;
+		for (int i = 0; i < num_indices; i ++) {
+			int v = faces[i];
+			if (misses - added[v] >= cacheSize) {
+				added[v] = misses;
+				misses ++;
+			}
+		}
+		return misses / (num_indices / 3.f);
+	}
+
+	/* prints the ACMR of each obj file given on the command line (all
+	 * in the current directory without arguments) in file order and
+	 * after optimization, for 16 and 32 entry caches, and whether the
+	 * new order was kept
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			args = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(args);
+		}
+		System.out.println(String.format("%-22s %9s %9s %9s %9s %9s %9s %9s", "model", "triangles",
+				"before16", "after16", "before32", "after32", "time", "order"));
+		for (String filename : args) {
+			ObjParser obj;
+			try {
+				obj = ObjParser.parse(filename);
+			} catch (Exception e) {
+				System.out.println(String.format("%-22s %s", filename, e));
+				continue;
+			}
+			int[] faces = Arrays.copyOf(obj.faces, obj.num_indices);
+			int n = obj.num_indices, nv = obj.num_verts;
+			boolean valid = true;
+			for (int i = 0; i < n; i ++)
+				valid &= faces[i] >= 0 && faces[i] < nv;
+			if (!valid) {
+				System.out.println(String.format("%-22s face indices out of range", filename));
+				continue;
+			}
+			float before16 = acmr(faces, n, nv, 16), before32 = acmr(faces, n, nv, 32);
+			long t0 = System.nanoTime();
+			boolean kept = optimize(new float[nv * 3], new float[nv * 3], nv, faces, n);
+			long t1 = System.nanoTime();
+			System.out.println(String.format("%-22s %9d %9.3f %9.3f %9.3f %9.3f %7.1fms %9s", filename, n / 3,
+					before16, acmr(faces, n, nv, 16), before32, acmr(faces, n, nv, 32), (t1 - t0) / 1e6,
+					kept ? "new" : "file"));
+		}
+	}
+}
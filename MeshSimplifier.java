@@ -0,0 +1,518 @@
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.sun.opengl.util.BufferUtil;
+
+/* This defines the MeshSimplifier class, which builds the coarser
+ * levels of detail of a Mesh by quadric error edge collapse (Garland and
+ * Heckbert). Every vertex keeps the sum of the plane quadrics of the
+ * triangles around it; collapsing an edge moves both ends to the point
+ * of least quadric error and merges their quadrics.
+ *
+ * Instead of a priority queue of edges it follows the threshold scheme
+ * of Forsyth's and Forstmann's fast simplifiers: each pass collapses
+ * every edge whose error is below a threshold that grows from pass to
+ * pass, skipping triangles touched earlier in the same pass, until the
+ * triangle count is reached. Collapses that would flip a triangle are
+ * refused and open borders are kept in place.
+ *
+ * Each level halves the triangle count of the one before and is stored
+ * in its own cache file (bird.obj.lod1.mesh, ...) next to the mesh's.
+ */
+class MeshSimplifier {
+
+	/* set to false to load meshes without levels of detail */
+	public static boolean enabled = true;
+
+	public static final int MAX_LEVELS = 4;			// counting the full mesh
+	public static final int MIN_TRIANGLES = 512;	// no level below this many triangles
+
+	private static final int MAX_PASSES = 100;
+	private static final double AGGRESSIVENESS = 7;
+
+	/* largest quadric error (a sum of squared distances, in the unit
+	 * box of the normalized mesh) a collapse may have; past it a level
+	 * keeps more triangles than asked for rather than losing thin parts
+	 */
+	private static final double MAX_ERROR = 1e-4;
+
+	/* vertices: position, quadric (10 coefficients), border flag and
+	 * the range of refs listing the triangle corners that use it
+	 */
+	private int num_verts;
+	private final double[] pos;
+	private final double[] quadric;
+	private final boolean[] border;
+	private final int[] tstart, tcount;
+
+	/* triangles: corners, error of the edges starting at each corner
+	 * plus their minimum, normal and the deleted and dirty flags
+	 */
+	private int num_tris;
+	private final int[] tv;
+	private final double[] terr;
+	private final double[] tnorm;
+	private final boolean[] deleted, dirty;
+
+	/* triangle corners by vertex: triangle and corner index */
+	private int num_refs;
+	private int[] refTri, refCorner;
+
+	/* scratch */
+	private final double[] q = new double[10];
+	private final double[] point = new double[3];
+	private final double[] unused = new double[3];
+	private boolean[] deleted0 = new boolean[16], deleted1 = new boolean[16];
+	private int[] vids = new int[16], vcount = new int[16];
+
+	public MeshSimplifier(Mesh mesh) {
+		num_verts = mesh.num_verts;
+		num_tris = mesh.num_faces;
+		pos = new double[num_verts * 3];
+		quadric = new double[num_verts * 10];
+		border = new boolean[num_verts];
+		tstart = new int[num_verts];
+		tcount = new int[num_verts];
+		tv = new int[num_tris * 3];
+		terr = new double[num_tris * 4];
+		tnorm = new double[num_tris * 3];
+		deleted = new boolean[num_tris];
+		dirty = new boolean[num_tris];
+		refTri = new int[num_tris * 3];
+		refCorner = new int[num_tris * 3];
+
+		FloatBuffer verts = mesh.getVertexBuffer();
+		for (int i = 0; i < num_verts * 3; i ++)
+			pos[i] = verts.get(i);
+		mesh.getFaceBuffer().get(tv);
+		for (int i = 0; i < num_tris * 3; i ++)
+			if (tv[i] < 0 || tv[i] >= num_verts)
+				throw new IllegalArgumentException("Face index " + tv[i] + " out of range in " + mesh.filename);
+	}
+
+	/* the levels of detail of mesh, the mesh itself first, each read
+	 * from its cache file or else simplified from the previous level
+	 */
+	public static Mesh[] buildLevels(Mesh mesh) {
+		return buildLevels(mesh, MeshFile.checksumOf(mesh.filename));
+	}
+
+	/* the same, with the checksum of the mesh's obj file already known */
+	public static Mesh[] buildLevels(Mesh mesh, long checksum) {
+		ArrayList<Mesh> levels = new ArrayList<Mesh>();
+		levels.add(mesh);
+		Mesh previous = mesh;
+		for (int level = 1; level < MAX_LEVELS; level ++) {
+			int target = mesh.num_faces >> level;
+			if (target < MIN_TRIANGLES)
+				break;
+			Mesh lod = MeshFile.read(mesh.filename, level, checksum);
+			if (lod == null) {
+				MeshSimplifier simplifier = new MeshSimplifier(previous);
+				simplifier.simplify(target);
+				lod = simplifier.toMesh(mesh);
+				MeshFile.write(lod, level, checksum);
+			}
+			if (lod.num_faces >= previous.num_faces)
+				break;		// nothing left to collapse
+			levels.add(lod);
+			previous = lod;
+		}
+		return levels.toArray(new Mesh[levels.size()]);
+	}
+
+	/* collapses edges until at most target triangles are left, or no
+	 * edge can be collapsed without flipping a triangle or going past
+	 * MAX_ERROR
+	 */
+	public void simplify(int target) {
+		int remaining = num_tris;
+		for (int pass = 0; pass < MAX_PASSES && remaining > target; pass ++) {
+			if (pass % 5 == 0)
+				update(pass);
+			Arrays.fill(dirty, 0, num_tris, false);
+
+			/* edges cheaper than this are collapsed in this pass */
+			double threshold = Math.min(1e-9 * Math.pow(pass + 3, AGGRESSIVENESS), MAX_ERROR);
+			int before = remaining;
+
+			for (int i = 0; i < num_tris && remaining > target; i ++) {
+				if (terr[i*4+3] > threshold || deleted[i] || dirty[i])
+					continue;
+				for (int j = 0; j < 3; j ++) {
+					if (terr[i*4+j] >= threshold)
+						continue;
+					int i0 = tv[i*3+j];
+					int i1 = tv[i*3+(j+1)%3];
+					if (border[i0] != border[i1])
+						continue;
+					collapseError(i0, i1, point);
+					if (deleted0.length < tcount[i0])
+						deleted0 = new boolean[tcount[i0] * 2];
+					if (deleted1.length < tcount[i1])
+						deleted1 = new boolean[tcount[i1] * 2];
+					if (flipped(point, i0, i1, deleted0) || flipped(point, i1, i0, deleted1))
+						continue;
+
+					/* move i0 to the new point and let it take over i1's triangles */
+					pos[i0*3] = point[0];
+					pos[i0*3+1] = point[1];
+					pos[i0*3+2] = point[2];
+					for (int k = 0; k < 10; k ++)
+						quadric[i0*10+k] += quadric[i1*10+k];
+					int start = num_refs;
+					remaining -= updateTriangles(i0, i0, deleted0);
+					remaining -= updateTriangles(i0, i1, deleted1);
+					int count = num_refs - start;
+					if (count <= tcount[i0]) {
+						System.arraycopy(refTri, start, refTri, tstart[i0], count);
+						System.arraycopy(refCorner, start, refCorner, tstart[i0], count);
+						num_refs = start;
+					} else {
+						tstart[i0] = start;
+					}
+					tcount[i0] = count;
+					break;
+				}
+			}
+			if (threshold == MAX_ERROR && remaining == before)
+				break;		// nothing below MAX_ERROR is left
+		}
+	}
+
+	/* drops the deleted triangles (after the first pass) and rebuilds the
+	 * corner lists; the first pass also finds the borders and quadrics
+	 */
+	private void update(int pass) {
+		if (pass > 0) {
+			int dst = 0;
+			for (int i = 0; i < num_tris; i ++) {
+				if (deleted[i])
+					continue;
+				System.arraycopy(tv, i*3, tv, dst*3, 3);
+				System.arraycopy(terr, i*4, terr, dst*4, 4);
+				System.arraycopy(tnorm, i*3, tnorm, dst*3, 3);
+				deleted[dst] = false;
+				dst ++;
+			}
+			num_tris = dst;
+		}
+
+		Arrays.fill(tcount, 0, num_verts, 0);
+		for (int i = 0; i < num_tris * 3; i ++)
+			tcount[tv[i]] ++;
+		int start = 0;
+		for (int v = 0; v < num_verts; v ++) {
+			tstart[v] = start;
+			start += tcount[v];
+			tcount[v] = 0;
+		}
+		for (int i = 0; i < num_tris; i ++) {
+			for (int j = 0; j < 3; j ++) {
+				int v = tv[i*3+j];
+				int r = tstart[v] + tcount[v] ++;
+				refTri[r] = i;
+				refCorner[r] = j;
+			}
+		}
+		num_refs = num_tris * 3;
+
+		if (pass > 0)
+			return;
+
+		/* an edge used by only one triangle lies on an open border */
+		for (int v = 0; v < num_verts; v ++) {
+			int n = 0;
+			for (int k = 0; k < tcount[v]; k ++) {
+				int t = refTri[tstart[v] + k];
+				for (int j = 0; j < 3; j ++) {
+					int id = tv[t*3+j];
+					int m = 0;
+					while (m < n && vids[m] != id)
+						m ++;
+					if (m == n) {
+						if (n == vids.length) {
+							vids = Arrays.copyOf(vids, n * 2);
+							vcount = Arrays.copyOf(vcount, n * 2);
+						}
+						vids[n] = id;
+						vcount[n] = 0;
+						n ++;
+					}
+					vcount[m] ++;
+				}
+			}
+			for (int m = 0; m < n; m ++)
+				if (vcount[m] == 1)
+					border[vids[m]] = true;
+		}
+
+		for (int i = 0; i < num_tris; i ++) {
+			int a = tv[i*3] * 3, b = tv[i*3+1] * 3, c = tv[i*3+2] * 3;
+			double e1x = pos[b] - pos[a], e1y = pos[b+1] - pos[a+1], e1z = pos[b+2] - pos[a+2];
+			double e2x = pos[c] - pos[a], e2y = pos[c+1] - pos[a+1], e2z = pos[c+2] - pos[a+2];
+			double nx = e1y * e2z - e1z * e2y;
+			double ny = e1z * e2x - e1x * e2z;
+			double nz = e1x * e2y - e1y * e2x;
+			double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if (len > 0) {
+				nx /= len;
+				ny /= len;
+				nz /= len;
+			}
+			tnorm[i*3] = nx;
+			tnorm[i*3+1] = ny;
+			tnorm[i*3+2] = nz;
+			double d = -(nx * pos[a] + ny * pos[a+1] + nz * pos[a+2]);
+			for (int j = 0; j < 3; j ++) {
+				int o = tv[i*3+j] * 10;
+				quadric[o+0] += nx*nx; quadric[o+1] += nx*ny; quadric[o+2] += nx*nz; quadric[o+3] += nx*d;
+				quadric[o+4] += ny*ny; quadric[o+5] += ny*nz; quadric[o+6] += ny*d;
+				quadric[o+7] += nz*nz; quadric[o+8] += nz*d;
+				quadric[o+9] += d*d;
+			}
+		}
+		for (int i = 0; i < num_tris; i ++)
+			updateErrors(i);
+	}
+
+	private void updateErrors(int t) {
+		double min = Double.MAX_VALUE;
+		for (int j = 0; j < 3; j ++) {
+			terr[t*4+j] = collapseError(tv[t*3+j], tv[t*3+(j+1)%3], unused);
+			min = Math.min(min, terr[t*4+j]);
+		}
+		terr[t*4+3] = min;
+	}
+
+	/* the quadric error of collapsing edge i0-i1, and the point it
+	 * collapses to in result: the minimum of the summed quadric when it
+	 * is unique and the edge is not on a border, otherwise the best of
+	 * the two ends and the middle
+	 */
+	private double collapseError(int i0, int i1, double[] result) {
+		for (int k = 0; k < 10; k ++)
+			q[k] = quadric[i0*10+k] + quadric[i1*10+k];
+		double det = det(0, 1, 2, 1, 4, 5, 2, 5, 7);
+		if (det != 0 && !(border[i0] && border[i1])) {
+			result[0] = -1 / det * det(1, 2, 3, 4, 5, 6, 5, 7, 8);
+			result[1] = 1 / det * det(0, 2, 3, 1, 5, 6, 2, 7, 8);
+			result[2] = -1 / det * det(0, 1, 3, 1, 4, 6, 2, 5, 8);
+			return vertexError(result[0], result[1], result[2]);
+		}
+		double x0 = pos[i0*3], y0 = pos[i0*3+1], z0 = pos[i0*3+2];
+		double x1 = pos[i1*3], y1 = pos[i1*3+1], z1 = pos[i1*3+2];
+		double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2, zm = (z0 + z1) / 2;
+		double e0 = vertexError(x0, y0, z0);
+		double e1 = vertexError(x1, y1, z1);
+		double em = vertexError(xm, ym, zm);
+		double error = Math.min(e0, Math.min(e1, em));
+		if (error == e0) {
+			result[0] = x0; result[1] = y0; result[2] = z0;
+		} else if (error == e1) {
+			result[0] = x1; result[1] = y1; result[2] = z1;
+		} else {
+			result[0] = xm; result[1] = ym; result[2] = zm;
+		}
+		return error;
+	}
+
+	/* determinant of the 3x3 matrix of the given quadric coefficients */
+	private double det(int a11, int a12, int a13, int a21, int a22, int a23, int a31, int a32, int a33) {
+		return q[a11]*q[a22]*q[a33] + q[a13]*q[a21]*q[a32] + q[a12]*q[a23]*q[a31]
+				- q[a13]*q[a22]*q[a31] - q[a11]*q[a23]*q[a32] - q[a12]*q[a21]*q[a33];
+	}
+
+	private double vertexError(double x, double y, double z) {
+		return q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x + q[4]*y*y
+				+ 2*q[5]*y*z + 2*q[6]*y + q[7]*z*z + 2*q[8]*z + q[9];
+	}
+
+	/* whether moving i0 to p would flip or squash one of its triangles
+	 * that does not also use i1; those that do are marked in removed,
+	 * since the collapse deletes them
+	 */
+	private boolean flipped(double[] p, int i0, int i1, boolean[] removed) {
+		for (int k = 0; k < tcount[i0]; k ++) {
+			int r = tstart[i0] + k;
+			int t = refTri[r];
+			if (deleted[t])
+				continue;
+			int s = refCorner[r];
+			int id1 = tv[t*3+(s+1)%3];
+			int id2 = tv[t*3+(s+2)%3];
+			if (id1 == i1 || id2 == i1) {
+				removed[k] = true;
+				continue;
+			}
+			removed[k] = false;
+			double d1x = pos[id1*3] - p[0], d1y = pos[id1*3+1] - p[1], d1z = pos[id1*3+2] - p[2];
+			double d2x = pos[id2*3] - p[0], d2y = pos[id2*3+1] - p[1], d2z = pos[id2*3+2] - p[2];
+			double l1 = Math.sqrt(d1x*d1x + d1y*d1y + d1z*d1z);
+			double l2 = Math.sqrt(d2x*d2x + d2y*d2y + d2z*d2z);
+			if (l1 == 0 || l2 == 0)
+				return true;
+			double dot = (d1x*d2x + d1y*d2y + d1z*d2z) / (l1 * l2);
+			if (Math.abs(dot) > 0.999)
+				return true;
+			double nx = d1y * d2z - d1z * d2y;
+			double ny = d1z * d2x - d1x * d2z;
+			double nz = d1x * d2y - d1y * d2x;
+			double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+			if ((nx * tnorm[t*3] + ny * tnorm[t*3+1] + nz * tnorm[t*3+2]) < 0.2 * len)
+				return true;
+		}
+		return false;
+	}
+
+	/* points the triangles of v at i0 after a collapse, deleting those
+	 * marked in removed; returns how many were deleted
+	 */
+	private int updateTriangles(int i0, int v, boolean[] removed) {
+		int count = 0;
+		for (int k = 0; k < tcount[v]; k ++) {
+			int r = tstart[v] + k;
+			int t = refTri[r];
+			if (deleted[t])
+				continue;
+			if (removed[k]) {
+				deleted[t] = true;
+				count ++;
+				continue;
+			}
+			int corner = refCorner[r];
+			tv[t*3+corner] = i0;
+			dirty[t] = true;
+			updateErrors(t);
+			addRef(t, corner);
+		}
+		return count;
+	}
+
+	private void addRef(int t, int corner) {
+		if (num_refs == refTri.length) {
+			refTri = Arrays.copyOf(refTri, num_refs * 2);
+			refCorner = Arrays.copyOf(refCorner, num_refs * 2);
+		}
+		refTri[num_refs] = t;
+		refCorner[num_refs] = corner;
+		num_refs ++;
+	}
+
+	public int getTriangleCount() {
+		int count = 0;
+		for (int i = 0; i < num_tris; i ++)
+			if (!deleted[i])
+				count ++;
+		return count;
+	}
+
+	/* the simplified mesh, with the vertices no triangle uses any more
+	 * dropped and fresh average normals; it keeps the placement (center
+	 * and extent) of source, the mesh it is a level of
+	 */
+	public Mesh toMesh(Mesh source) {
+		/* triangles squashed to a line, and pairs of the same triangle
+		 * facing both ways (a thin part collapsed flat), add nothing but
+		 * could leave a vertex without any normal
+		 */
+		HashMap<Long, Integer> seen = new HashMap<Long, Integer>();
+		for (int i = 0; i < num_tris; i ++) {
+			if (deleted[i])
+				continue;
+			int a = tv[i*3] * 3, b = tv[i*3+1] * 3, c = tv[i*3+2] * 3;
+			float e1x = (float) pos[b] - (float) pos[a], e1y = (float) pos[b+1] - (float) pos[a+1], e1z = (float) pos[b+2] - (float) pos[a+2];
+			float e2x = (float) pos[c] - (float) pos[a], e2y = (float) pos[c+1] - (float) pos[a+1], e2z = (float) pos[c+2] - (float) pos[a+2];
+			if (e1y * e2z - e1z * e2y == 0 && e1z * e2x - e1x * e2z == 0 && e1x * e2y - e1y * e2x == 0) {
+				deleted[i] = true;
+				continue;
+			}
+			Integer other = seen.put(triangleKey(i), i);
+			if (other != null) {
+				deleted[i] = true;
+				if (!sameWinding(i, other))
+					deleted[other] = true;
+			}
+		}
+		int[] remap = new int[num_verts];
+		Arrays.fill(remap, -1);
+		int faces = getTriangleCount();
+		int[] indices = new int[faces * 3];
+		int verts = 0, f = 0;
+		for (int i = 0; i < num_tris; i ++) {
+			if (deleted[i])
+				continue;
+			for (int j = 0; j < 3; j ++) {
+				int v = tv[i*3+j];
+				if (remap[v] < 0)
+					remap[v] = verts ++;
+				indices[f ++] = remap[v];
+			}
+		}
+		float[] positions = new float[verts * 3];
+		Bounds bounds = new Bounds();
+		for (int v = 0; v < num_verts; v ++) {
+			int o = remap[v] * 3;
+			if (o < 0)
+				continue;
+			positions[o] = (float) pos[v*3];
+			positions[o+1] = (float) pos[v*3+1];
+			positions[o+2] = (float) pos[v*3+2];
+			bounds.include(positions[o], positions[o+1], positions[o+2]);
+		}
+		float[] normals = NormalEstimator.compute(positions, verts, indices, faces * 3);
+		if (MeshOptimizer.enabled)
+			MeshOptimizer.optimize(positions, normals, verts, indices, faces * 3);
+
+		FloatBuffer vertexBuffer = BufferUtil.newFloatBuffer(verts * 3);
+		FloatBuffer normalBuffer = BufferUtil.newFloatBuffer(verts * 3);
+		IntBuffer faceBuffer = BufferUtil.newIntBuffer(faces * 3);
+		vertexBuffer.put(positions).rewind();
+		normalBuffer.put(normals).rewind();
+		faceBuffer.put(indices).rewind();
+		return new Mesh(source.filename, vertexBuffer, normalBuffer, faceBuffer, verts, faces,
+				source.centerX, source.centerY, source.centerZ, source.extent, bounds);
+	}
+
+	/* the corners of triangle t in ascending order, packed in a long */
+	private long triangleKey(int t) {
+		long a = tv[t*3], b = tv[t*3+1], c = tv[t*3+2], x;
+		if (a > b) { x = a; a = b; b = x; }
+		if (b > c) { x = b; b = c; c = x; }
+		if (a > b) { x = a; a = b; b = x; }
+		return (a << 42) | (b << 21) | c;
+	}
+
+	/* whether triangles s and t, with the same corners, face the same way */
+	private boolean sameWinding(int s, int t) {
+		for (int j = 0; j < 3; j ++)
+			if (tv[t*3+j] == tv[s*3])
+				return tv[t*3+(j+1)%3] == tv[s*3+1];
+		return false;
+	}
+
+	/* prints the triangle and vertex counts of the levels of detail of
+	 * each obj file given on the command line and how long building them
+	 * took, with the cache files of the levels rebuilt
+	 */
+	public static void main(String[] args) {
+		System.out.println(String.format("%-22s %5s %9s %9s %7s", "model", "level", "triangles", "vertices", "ratio"));
+		for (String filename : args) {
+			Mesh mesh = Mesh.loadObj(filename);
+			for (int level = 1; level < MAX_LEVELS; level ++)
+				MeshFile.delete(filename, level);
+			long t0 = System.nanoTime();
+			Mesh[] levels = buildLevels(mesh);
+			long t1 = System.nanoTime();
+			String name = new File(filename).getName();
+			for (int level = 0; level < levels.length; level ++)
+				System.out.println(String.format("%-22s %5d %9d %9d %6.1f%%", name, level,
+						levels[level].num_faces, levels[level].num_verts, 100.0 * levels[level].num_faces / mesh.num_faces));
+			System.out.println(String.format("%-22s built %d levels in %.1fms", name, levels.length - 1, (t1 - t0) / 1e6));
+		}
+	}
+}
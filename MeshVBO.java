@@ -0,0 +1,89 @@
+import javax.media.opengl.GL;
+
+/* This defines the MeshVBO class, which keeps a copy of a Mesh in
+ * OpenGL buffer objects: one array buffer with all positions followed
+ * by all normals, and one element buffer with the face indices. The
+ * data is uploaded once and every draw afterwards only binds it, so the
+ * driver no longer copies the client arrays each frame.
+ *
+ * Buffer objects are core in OpenGL 1.5, which covers every hardware
+ * driver as well as Mesa's software renderer. The buffers keep the
+ * mesh's own formats, so a compact mesh stays compact on the GPU.
+ */
+class MeshVBO {
+	public final Mesh mesh;
+	private final int[] ids = new int[2];	// array buffer, element buffer
+	private final int normalOffset;
+
+	/* true when the current context has buffer objects */
+	public static boolean isSupported(GL gl) {
+		return gl.isFunctionAvailable("glGenBuffers") && gl.isFunctionAvailable("glBindBuffer")
+				&& gl.isFunctionAvailable("glBufferData");
+	}
+
+	/* uploads mesh into new buffer objects of the current context */
+	public MeshVBO(GL gl, Mesh mesh) {
+		this.mesh = mesh;
+		int vertexBytes = mesh.vertexBytes();
+		normalOffset = (vertexBytes + 3) & ~3;		// keep the normals 4 byte aligned
+
+		gl.glGenBuffers(2, ids, 0);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, ids[0]);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, normalOffset + mesh.normalBytes(), null, GL.GL_STATIC_DRAW);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, vertexBytes, mesh.getVertexData());
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, normalOffset, mesh.normalBytes(), mesh.getNormalData());
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, ids[1]);
+		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, mesh.faceBytes(), mesh.getFaceData(), GL.GL_STATIC_DRAW);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+		FrameStats.getShared().upload(vertexBytes + mesh.normalBytes() + mesh.faceBytes());
+	}
+
+	/* bytes of buffer object storage held by this mesh */
+	public long sizeInBytes() {
+		return mesh.sizeInBytes();
+	}
+
+	public void Draw(GL gl) {
+		bind(gl);
+		drawElements(gl);
+		unbind(gl);
+	}
+
+	/* makes this mesh the source of the vertex and normal arrays */
+	public void bind(GL gl) {
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, ids[0]);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, ids[1]);
+		gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL.GL_NORMAL_ARRAY);
+
+		gl.glVertexPointer(3, mesh.vertexType(), 0, 0);
+		gl.glNormalPointer(mesh.normalType(), mesh.normalStride(), normalOffset);
+	}
+
+	/* draws the bound mesh once with the current matrix and material */
+	public void drawElements(GL gl) {
+		if (mesh.compact) {
+			gl.glPushMatrix();
+			gl.glScalef(mesh.positionScale, mesh.positionScale, mesh.positionScale);
+		}
+		gl.glDrawElements(GL.GL_TRIANGLES, mesh.num_faces*3, mesh.faceType(), 0);
+		FrameStats.getShared().draw(mesh.num_faces, 0);
+		if (mesh.compact)
+			gl.glPopMatrix();
+	}
+
+	public void unbind(GL gl) {
+		gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+		gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
+		/* unbind so client array drawing (glut and fallback) keeps working */
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	/* frees the buffer objects; must run with the owning context current */
+	public void delete(GL gl) {
+		gl.glDeleteBuffers(2, ids, 0);
+	}
+}
@@ -0,0 +1,439 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.media.opengl.GL;
+import javax.vecmath.Matrix4f;
+
+/* This defines the MicroBenchmark program, which times each CPU stage
+ * of loading a mesh on its own: parsing the obj file, normalizing the
+ * positions into the unit box, cleaning out redundant geometry,
+ * estimating the normals, ordering for the vertex cache and copying
+ * into direct buffers. It also times the work display() does every
+ * frame before drawing: animating and updating the world matrices of a
+ * scene graph shaped like the sculpture's, testing its boxes against
+ * the view frustum and collecting the shapes inside into a sorted
+ * RenderQueue. The pipeline stage times whole frames of
+ * ever larger scenes, prepared and submitted on one thread and then
+ * through a FramePipeline, and prints how many times the frame rate
+ * the pipeline reaches.
+ *
+ * It is run the way JMH runs a benchmark, on a smaller scale: warmup
+ * iterations for the JIT, then measured iterations of at least
+ * ITERATION_NANOS each, reported as the mean and deviation per
+ * operation. Alongside, like JMH's gc profiler, it reports the bytes the
+ * benchmark thread allocated per operation and the allocation rate,
+ * and the collections that ran while measuring.
+ *
+ *   java MicroBenchmark [stage ...] [model.obj ...]
+ *
+ * Stages are parse, bounds, clean, normals, order, buffers, frame and pipeline;
+ * without any all of them run. Models default to bunny, bird, buddha and the
+ * aspen tree. The frame stage must not allocate once warmed up; when it
+ * does the program says so and exits with status 1.
+ */
+class MicroBenchmark {
+
+	private static final String[] STAGES = { "parse", "bounds", "clean", "normals", "order", "buffers", "frame", "pipeline" };
+	private static final String[] MODELS = { "bunny.obj", "bird.obj", "buddha.obj", "tree_aspen.obj" };
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+	private static final long ITERATION_NANOS = 200000000L;
+
+	/* hierarchies in the scenes of the pipeline stage, and the time a
+	 * shape's draw call keeps the submitting thread busy, standing in
+	 * for the driver since no GL is drawn to
+	 */
+	private static final int[] PIPELINE_HIERARCHIES = { 5, 50, 500, 2000 };
+	private static final long DRAW_NANOS = 1000;
+
+	/* results are folded in here so the JIT cannot drop the work */
+	static volatile int sink;
+
+	/* one benchmarked operation; setup runs before every operation,
+	 * outside the timing, to restore the input run changes in place
+	 */
+	private static abstract class Operation {
+		void setup() { }
+
+		abstract int run();
+
+		/* runs once after the last operation */
+		void finish() { }
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> stages = new ArrayList<String>();
+		List<String> models = new ArrayList<String>();
+		for (String arg : args) {
+			if (Arrays.asList(STAGES).contains(arg))
+				stages.add(arg);
+			else
+				models.add(arg);
+		}
+		if (stages.isEmpty())
+			stages.addAll(Arrays.asList(STAGES));
+		if (models.isEmpty())
+			models.addAll(Arrays.asList(MODELS));
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean allocation = threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+		if (allocation)
+			((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+		else
+			System.out.println("This JVM cannot count allocated bytes; allocation columns are left empty.");
+
+		System.out.println(String.format("%-8s %-16s %12s %10s %12s %10s %5s %8s", "stage", "model",
+				"time/op", "error", "bytes/op", "MB/s", "gcs", "gc time"));
+		for (String stage : stages) {
+			if (stage.equals("frame")) {
+				long bytes = (long) measure(stage, "sculpture", frameOperation(), allocation)[1];
+				if (bytes > 0) {
+					System.out.println("The frame loop allocated " + bytes + " bytes per frame; it should allocate none.");
+					System.exit(1);
+				}
+				continue;
+			}
+			if (stage.equals("pipeline")) {
+				System.out.println("(" + Runtime.getRuntime().availableProcessors()
+						+ " processors; the pipeline can only gain with two or more)");
+				for (int hierarchies : PIPELINE_HIERARCHIES) {
+					double serial = measure(stage, "serial-" + hierarchies, pipelineOperation(hierarchies, false), allocation)[0];
+					double pipelined = measure(stage, "pipelined-" + hierarchies, pipelineOperation(hierarchies, true), allocation)[0];
+					System.out.println(String.format(Locale.ROOT, "%-8s %-16s %11.2fx frames per second", stage,
+							"gain-" + hierarchies, serial / pipelined));
+				}
+				continue;
+			}
+			for (String model : models) {
+				Operation op;
+				try {
+					op = loaderOperation(stage, model);
+				} catch (Exception e) {
+					System.out.println(String.format("%-8s %-16s %s", stage, model, e));
+					continue;
+				}
+				measure(stage, model, op, allocation);
+			}
+		}
+	}
+
+	/* one stage of Mesh.loadObj on filename; every stage after parse
+	 * starts from the output of the stages before it, restored before
+	 * each operation when the stage changes it in place
+	 */
+	private static Operation loaderOperation(String stage, final String filename) throws Exception {
+		if (stage.equals("parse")) {
+			return new Operation() {
+				int run() {
+					try {
+						return ObjParser.parse(filename).num_indices;
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		ObjParser obj = ObjParser.parse(filename);
+		final int read_verts = obj.num_verts, read_indices = obj.num_indices;
+		final float[] positions = Arrays.copyOf(obj.positions, read_verts * 3);
+		final int[] indices = Arrays.copyOf(obj.faces, read_indices);
+		for (int i = 0; i < read_indices; i ++)
+			if (indices[i] < 0 || indices[i] >= read_verts)
+				throw new IllegalArgumentException("face indices out of range");
+		if (stage.equals("bounds")) {
+			return new Operation() {
+				final float[] verts = new float[read_verts * 3];
+
+				void setup() {
+					System.arraycopy(positions, 0, verts, 0, verts.length);
+				}
+
+				int run() {
+					return Float.floatToIntBits(Mesh.normalize(verts, read_verts)[3]);
+				}
+			};
+		}
+		final float[] frame = Mesh.normalize(positions, read_verts);
+		if (stage.equals("clean")) {
+			return new Operation() {
+				final float[] verts = new float[read_verts * 3];
+				final int[] faces = new int[read_indices];
+
+				void setup() {
+					System.arraycopy(positions, 0, verts, 0, verts.length);
+					System.arraycopy(indices, 0, faces, 0, faces.length);
+				}
+
+				int run() {
+					return MeshCleaner.clean(verts, read_verts, faces, read_indices).new_indices;
+				}
+			};
+		}
+		/* the later stages work on the cleaned mesh, as Mesh.loadObj does */
+		MeshCleaner.Result cleaned = MeshCleaner.clean(positions, read_verts, indices, read_indices);
+		final int num_verts = cleaned.new_verts, num_indices = cleaned.new_indices;
+		if (stage.equals("normals")) {
+			return new Operation() {
+				int run() {
+					return Float.floatToIntBits(NormalEstimator.compute(positions, num_verts, indices, num_indices)[0]);
+				}
+			};
+		}
+		final float[] norms = NormalEstimator.compute(positions, num_verts, indices, num_indices);
+		if (stage.equals("order")) {
+			return new Operation() {
+				final float[] verts = new float[num_verts * 3];
+				final float[] normals = new float[num_verts * 3];
+				final int[] faces = new int[num_indices];
+
+				void setup() {
+					System.arraycopy(positions, 0, verts, 0, verts.length);
+					System.arraycopy(norms, 0, normals, 0, normals.length);
+					System.arraycopy(indices, 0, faces, 0, faces.length);
+				}
+
+				int run() {
+					MeshOptimizer.optimize(verts, normals, num_verts, faces, num_indices);
+					return faces[0];
+				}
+			};
+		}
+		return new Operation() {
+			int run() {
+				return Mesh.build(filename, positions, norms, num_verts, indices, num_indices, frame).num_faces;
+			}
+		};
+	}
+
+	/* the per frame work of display() before anything is drawn, on a
+	 * scene graph with the sculpture's shape: five spinning hierarchies
+	 * carrying eighteen shapes in a handful of materials. SceneNode.Draw
+	 * needs no GL when it only fills a queue; submitting the queue is
+	 * left to the pipeline stage.
+	 */
+	private static Operation frameOperation() {
+		final SceneNode scene = scene(5, 0);
+		final Frustum frustum = new Frustum();
+		final CullStats stats = new CullStats();
+		final RenderQueue queue = new RenderQueue();
+		final Matrix4f view = new Matrix4f();
+		final Matrix4f step = new Matrix4f();
+		return new Operation() {
+			float roth;
+
+			int run() {
+				scene.animate(1);
+				int changed = scene.update();
+				roth += 1;
+				view.setIdentity();
+				view.m23 = -4.4f;
+				step.rotY((float) Math.toRadians(360 - roth));
+				view.mul(step);
+				frustum.set(45.f, 1.25f, 0.01f, 1000.f, view);
+				stats.reset();
+				queue.clear();
+				scene.Draw(null, frustum, stats, queue);
+				queue.sort();
+				return changed + queue.size() + stats.draws;
+			}
+		};
+	}
+
+	/* whole frames of a scene of hierarchies hierarchies: preparing the
+	 * queue as the frame stage does, then submitting it to a GL that
+	 * does nothing, with every shape drawn taking DRAW_NANOS. Pipelined,
+	 * each frame is prepared on the pipeline's thread while the one
+	 * before is submitted.
+	 */
+	private static Operation pipelineOperation(int hierarchies, final boolean pipelined) {
+		final SceneNode scene = scene(hierarchies, DRAW_NANOS);
+		final FramePipeline.Preparer<RenderQueue> preparer = new FramePipeline.Preparer<RenderQueue>() {
+			final Frustum frustum = new Frustum();
+			final Matrix4f view = new Matrix4f();
+			final Matrix4f step = new Matrix4f();
+
+			public void prepare(RenderQueue queue, float[] camera) {
+				scene.animate(1);
+				scene.update();
+				view.setIdentity();
+				view.m23 = -4.4f;
+				step.rotY((float) Math.toRadians(360 - camera[0]));
+				view.mul(step);
+				frustum.set(45.f, 1.25f, 0.01f, 1000.f, view);
+				queue.clear();
+				scene.Draw(null, frustum, null, queue);
+				queue.sort();
+			}
+		};
+		final GL gl = (GL) Proxy.newProxyInstance(GL.class.getClassLoader(), new Class<?>[] { GL.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+		final RenderQueue queue = new RenderQueue();
+		final FramePipeline<RenderQueue> pipeline = new FramePipeline<RenderQueue>(new RenderQueue(), new RenderQueue(),
+				new RenderQueue(), 1, preparer);
+		return new Operation() {
+			final float[] camera = new float[1];
+
+			int run() {
+				camera[0] += 1;
+				RenderQueue drawn = queue;
+				if (!pipelined)
+					preparer.prepare(queue, camera);
+				else {
+					if (!pipeline.isRunning())
+						pipeline.start(camera);
+					drawn = pipeline.take(camera);
+				}
+				drawn.submit(gl);
+				return drawn.size();
+			}
+
+			void finish() {
+				pipeline.stop();
+			}
+		};
+	}
+
+	/* hierarchies spinning hierarchies in rows of five, each with a shape
+	 * and up to four children with shapes, in a handful of materials;
+	 * the first row has the sculpture's shape
+	 */
+	private static SceneNode scene(int hierarchies, long drawNanos) {
+		SceneNode scene = new SceneNode("scene");
+		int[] children = { 2, 4, 2, 2, 0 };
+		float[] speeds = { 1.0f, 1.3f, 1.6f, 1.9f, 2.1f };
+		Material[] materials = {
+			new Material("red", new float[] { 1, 0, 0 }, new float[] { 0.5f, 0.5f, 0 }),
+			new Material("green", new float[] { 0, 1, 0 }, new float[] { 0.5f, 0.5f, 0 }),
+			new Material("blue", new float[] { 0, 0, 1 }, new float[] { 0.5f, 0.5f, 0 }),
+		};
+		int shapes = 0;
+		for (int h = 0; h < hierarchies; h ++) {
+			int column = h % 5, row = h / 5;
+			SceneNode hierarchy = new SceneNode("hierarchy " + h)
+					.translate(column * 0.4f - 0.8f, 0.3f * column - 0.5f, -0.2f - row * 0.5f).scale(0.5f)
+					.spin(speeds[column], 0, 1, 0)
+					.shape(new BoxShape(drawNanos)).material(materials[shapes ++ % materials.length]);
+			for (int c = 0; c < children[column]; c ++)
+				hierarchy.add(new SceneNode("child " + c)
+						.translate(c - 1.0f, 0.6f, c * 0.5f - 0.5f).scale(1.2f).rotate(30 * c, 0, 1, 0)
+						.shape(new BoxShape(drawNanos)).material(materials[shapes ++ % materials.length]));
+			scene.add(hierarchy);
+		}
+		return scene;
+	}
+
+	private static class BoxShape implements SceneNode.Shape {
+		private final Bounds bounds = new Bounds(-0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f);
+
+		private final long drawNanos;
+
+		BoxShape(long drawNanos) {
+			this.drawNanos = drawNanos;
+		}
+
+		public void Draw() {
+			long end = System.nanoTime() + drawNanos;
+			while (drawNanos > 0 && System.nanoTime() < end)
+				;
+		}
+
+		public Bounds getBounds() {
+			return bounds;
+		}
+
+		public int getTriangleCount() {
+			return 12;
+		}
+	}
+
+	/* runs the warmup and measured iterations of op and prints a row;
+	 * returns the mean nanoseconds per operation and the bytes allocated
+	 * per operation, -1 when not counted
+	 */
+	private static double[] measure(String stage, String model, Operation op, boolean allocation) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i ++)
+			iteration(op);
+
+		com.sun.management.ThreadMXBean threads = allocation
+				? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+		long thread = Thread.currentThread().getId();
+		long gcs0 = gcCount(), gcMillis0 = gcMillis();
+		double[] nanosPerOp = new double[ITERATIONS];
+		long ops = 0, nanos = 0, bytes = 0;
+		for (int i = 0; i < ITERATIONS; i ++) {
+			long bytes0 = allocation ? threads.getThreadAllocatedBytes(thread) : 0;
+			long[] result = iteration(op);
+			if (allocation)
+				bytes += threads.getThreadAllocatedBytes(thread) - bytes0;
+			nanosPerOp[i] = result[1] / (double) result[0];
+			ops += result[0];
+			nanos += result[1];
+		}
+		long gcs = gcCount() - gcs0, gcMillis = gcMillis() - gcMillis0;
+
+		double mean = 0;
+		for (double t : nanosPerOp)
+			mean += t / ITERATIONS;
+		double variance = 0;
+		for (double t : nanosPerOp)
+			variance += (t - mean) * (t - mean) / (ITERATIONS - 1);
+		/* 99.9% confidence half width, as JMH prints it */
+		double error = 3.25 * Math.sqrt(variance / ITERATIONS);
+		System.out.println(String.format("%-8s %-16s %12s %10s %12s %10s %5d %6dms", stage, model,
+				time(mean), time(error), allocation ? String.valueOf(bytes / ops) : "",
+				allocation ? String.format("%.1f", bytes / 1e6 / (nanos / 1e9)) : "", gcs, gcMillis));
+		op.finish();
+		return new double[] { mean, allocation ? bytes / ops : -1 };
+	}
+
+	/* runs op for ITERATION_NANOS after setup; returns the operations
+	 * and nanoseconds it took, not counting setup
+	 */
+	private static long[] iteration(Operation op) {
+		long ops = 0, nanos = 0;
+		int hash = 0;
+		while (nanos < ITERATION_NANOS) {
+			op.setup();
+			long t0 = System.nanoTime();
+			hash += op.run();
+			nanos += System.nanoTime() - t0;
+			ops ++;
+		}
+		sink += hash;
+		return new long[] { ops, nanos };
+	}
+
+	private static String time(double nanos) {
+		if (nanos >= 1e6)
+			return String.format("%.3fms", nanos / 1e6);
+		return String.format("%.3fus", nanos / 1e3);
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0);
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(gc.getCollectionTime(), 0);
+		return millis;
+	}
+}
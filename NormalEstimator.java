@@ -0,0 +1,308 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* This defines the NormalEstimator class, which estimates the per
+ * vertex normals of a mesh from its flat position and index arrays.
+ *
+ * It works in two passes split across the common fork/join pool. The
+ * first computes the cross product of every triangle, which is twice its
+ * area times its unit normal. The second gathers for every vertex the
+ * triangles around it, listed in a vertex to corner adjacency in
+ * compressed rows, and normalizes their sum. Each pass writes only its
+ * own triangles or vertices, so no thread ever adds into another's sums
+ * and the result is the same for any number of threads. Small meshes,
+ * and any mesh on a single core, skip the adjacency and add each triangle
+ * straight into its vertices, which gives the same bits.
+ *
+ * The default weights each triangle by its area, as the serial loop did
+ * (see serial). With angleWeighted each triangle is weighted by the angle
+ * of its corner at the vertex instead (Thuermer and Wuethrich), which keeps
+ * long thin triangles from pulling the normal over.
+ */
+class NormalEstimator {
+
+	/* set to false to compute the normals in the calling thread */
+	public static boolean parallel = true;
+
+	/* set to true to weight the triangles by corner angle instead of area */
+	public static boolean angleWeighted = false;
+
+	private static final int GRAIN = 8192;		// triangles or vertices per task
+
+	/* the unit normals (3 floats each) of the num_verts vertices of the
+	 * num_indices / 3 triangles of faces
+	 */
+	public static float[] compute(float[] verts, int num_verts, int[] faces, int num_indices) {
+		boolean split = parallel && num_indices / 3 > GRAIN && ForkJoinPool.getCommonPoolParallelism() > 1;
+		return compute(verts, num_verts, faces, num_indices, split);
+	}
+
+	/* on the fork/join pool if split, otherwise in one pass over the
+	 * triangles adding each one into its three vertices. Both add the
+	 * triangles of a vertex in the same order, so they give the same
+	 * bits; one thread just skips building the adjacency.
+	 */
+	static float[] compute(float[] verts, int num_verts, int[] faces, int num_indices, boolean split) {
+		int num_tris = num_indices / 3;
+		float[] norms = new float[num_verts * 3];
+		if (!split) {
+			boolean byAngle = angleWeighted;
+			for (int t = 0; t < num_tris; t ++) {
+				int a = faces[t*3] * 3, b = faces[t*3+1] * 3, c = faces[t*3+2] * 3;
+				float e1x = verts[b] - verts[a], e1y = verts[b+1] - verts[a+1], e1z = verts[b+2] - verts[a+2];
+				float e2x = verts[c] - verts[a], e2y = verts[c+1] - verts[a+1], e2z = verts[c+2] - verts[a+2];
+				float fx = e1y * e2z - e1z * e2y;
+				float fy = e2x * e1z - e2z * e1x;
+				float fz = e1x * e2y - e1y * e2x;
+				for (int j = 0; j < 3; j ++) {
+					float weight = byAngle ? angleWeight(verts, faces, t*3+j, fx, fy, fz) : 1;
+					int v = faces[t*3+j] * 3;
+					norms[v+0] += fx * weight;
+					norms[v+1] += fy * weight;
+					norms[v+2] += fz * weight;
+				}
+			}
+			for (int v = 0; v < num_verts * 3; v += 3)
+				normalize(norms, v, norms[v], norms[v+1], norms[v+2]);
+			return norms;
+		}
+
+		/* the corners of each vertex, in triangle order: corner k of
+		 * vertex v is corners[start[v] + k]
+		 */
+		int[] start = new int[num_verts + 1];
+		for (int i = 0; i < num_tris * 3; i ++)
+			start[faces[i] + 1] ++;
+		for (int v = 0; v < num_verts; v ++)
+			start[v + 1] += start[v];
+		int[] fill = Arrays.copyOf(start, num_verts);
+		int[] corners = new int[num_tris * 3];
+		for (int i = 0; i < num_tris * 3; i ++)
+			corners[fill[faces[i]] ++] = i;
+
+		float[] faceNormals = new float[num_tris * 3];
+		ForkJoinPool.commonPool().invoke(new FaceTask(verts, faces, faceNormals, 0, num_tris));
+		ForkJoinPool.commonPool().invoke(new VertexTask(verts, faces, faceNormals, start, corners, norms, 0, num_verts));
+		return norms;
+	}
+
+	/* stores the unit vector along (nx, ny, nz) at norms[i] */
+	private static void normalize(float[] norms, int i, float nx, float ny, float nz) {
+		float norm = (float) (1.0 / Math.sqrt(nx*nx + ny*ny + nz*nz));
+		norms[i+0] = nx * norm;
+		norms[i+1] = ny * norm;
+		norms[i+2] = nz * norm;
+	}
+
+	/* the angle of corner divided by the length (fx, fy, fz) of its
+	 * triangle's cross product, which turns the cross product into the
+	 * unit normal times the angle; 0 for triangles without area
+	 */
+	private static float angleWeight(float[] verts, int[] faces, int corner, float fx, float fy, float fz) {
+		int base = corner - corner % 3;
+		int a = faces[corner] * 3;
+		int b = faces[base + (corner + 1) % 3] * 3;
+		int c = faces[base + (corner + 2) % 3] * 3;
+		float e1x = verts[b] - verts[a], e1y = verts[b+1] - verts[a+1], e1z = verts[b+2] - verts[a+2];
+		float e2x = verts[c] - verts[a], e2y = verts[c+1] - verts[a+1], e2z = verts[c+2] - verts[a+2];
+		double cross = Math.sqrt(fx*fx + fy*fy + fz*fz);
+		if (cross == 0)
+			return 0;
+		return (float) (Math.atan2(cross, e1x*e2x + e1y*e2y + e1z*e2z) / cross);
+	}
+
+	/* computes the cross products of triangles from to to */
+	private static class FaceTask extends RecursiveAction {
+		private final float[] verts, faceNormals;
+		private final int[] faces;
+		private final int from, to;
+
+		FaceTask(float[] verts, int[] faces, float[] faceNormals, int from, int to) {
+			this.verts = verts;
+			this.faces = faces;
+			this.faceNormals = faceNormals;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > GRAIN) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new FaceTask(verts, faces, faceNormals, from, mid),
+						new FaceTask(verts, faces, faceNormals, mid, to));
+				return;
+			}
+			for (int t = from; t < to; t ++) {
+				int a = faces[t*3] * 3, b = faces[t*3+1] * 3, c = faces[t*3+2] * 3;
+				float e1x = verts[b] - verts[a], e1y = verts[b+1] - verts[a+1], e1z = verts[b+2] - verts[a+2];
+				float e2x = verts[c] - verts[a], e2y = verts[c+1] - verts[a+1], e2z = verts[c+2] - verts[a+2];
+				faceNormals[t*3+0] = e1y * e2z - e1z * e2y;
+				faceNormals[t*3+1] = e2x * e1z - e2z * e1x;
+				faceNormals[t*3+2] = e1x * e2y - e1y * e2x;
+			}
+		}
+	}
+
+	/* sums the weighted cross products around vertices from to to and
+	 * normalizes them
+	 */
+	private static class VertexTask extends RecursiveAction {
+		private final float[] verts, faceNormals, norms;
+		private final int[] faces, start, corners;
+		private final int from, to;
+
+		VertexTask(float[] verts, int[] faces, float[] faceNormals, int[] start, int[] corners, float[] norms,
+				int from, int to) {
+			this.verts = verts;
+			this.faces = faces;
+			this.faceNormals = faceNormals;
+			this.start = start;
+			this.corners = corners;
+			this.norms = norms;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > GRAIN) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new VertexTask(verts, faces, faceNormals, start, corners, norms, from, mid),
+						new VertexTask(verts, faces, faceNormals, start, corners, norms, mid, to));
+				return;
+			}
+			boolean byAngle = angleWeighted;
+			for (int v = from; v < to; v ++) {
+				float nx = 0, ny = 0, nz = 0;
+				for (int k = start[v]; k < start[v+1]; k ++) {
+					int corner = corners[k];
+					int t = corner / 3;
+					float fx = faceNormals[t*3], fy = faceNormals[t*3+1], fz = faceNormals[t*3+2];
+					float weight = byAngle ? angleWeight(verts, faces, corner, fx, fy, fz) : 1;
+					nx += fx * weight;
+					ny += fy * weight;
+					nz += fz * weight;
+				}
+				normalize(norms, v*3, nx, ny, nz);
+			}
+		}
+	}
+
+	/* estimate per vertex average normal: every corner adds the
+	 * cross product of its two edges, then the sums are normalized.
+	 * This is the single threaded loop compute replaced, kept to check
+	 * it against.
+	 */
+	static float[] serial(float[] verts, int num_verts, int[] faces, int num_indices) {
+		float[] norms = new float[num_verts * 3];
+		int i;
+		for (i = 0; i < num_indices; i += 3) {
+			int v1 = faces[i+0] * 3;
+			int v2 = faces[i+1] * 3;
+			int v3 = faces[i+2] * 3;
+			addCornerNormal(verts, norms, v1, v2, v3);
+			addCornerNormal(verts, norms, v2, v3, v1);
+			addCornerNormal(verts, norms, v3, v1, v2);
+		}
+		for (i = 0; i < num_verts * 3; i += 3) {
+			float nx = norms[i], ny = norms[i+1], nz = norms[i+2];
+			float norm = (float) (1.0 / Math.sqrt(nx*nx + ny*ny + nz*nz));
+			norms[i+0] = nx * norm;
+			norms[i+1] = ny * norm;
+			norms[i+2] = nz * norm;
+		}
+		return norms;
+	}
+
+	/* adds to the normal of corner a the cross product of the
+	 * edges (b - a) and (c - a), in the same float arithmetic as
+	 * Vector3f.sub and Vector3f.cross
+	 */
+	private static void addCornerNormal(float[] verts, float[] norms, int a, int b, int c) {
+		float e1x = verts[b] - verts[a], e1y = verts[b+1] - verts[a+1], e1z = verts[b+2] - verts[a+2];
+		float e2x = verts[c] - verts[a], e2y = verts[c+1] - verts[a+1], e2z = verts[c+2] - verts[a+2];
+		norms[a+0] += e1y * e2z - e1z * e2y;
+		norms[a+1] += e2x * e1z - e2z * e1x;
+		norms[a+2] += e1x * e2y - e1y * e2x;
+	}
+
+	/* largest angle in degrees between the normals of a and b; normals
+	 * that are not numbers in both count as equal
+	 */
+	static double maxAngle(float[] a, float[] b, int num_verts) {
+		double max = 0;
+		for (int i = 0; i < num_verts * 3; i += 3) {
+			double dot = (double) a[i]*b[i] + (double) a[i+1]*b[i+1] + (double) a[i+2]*b[i+2];
+			if (Double.isNaN(dot))
+				continue;
+			max = Math.max(max, Math.toDegrees(Math.acos(Math.min(1, dot))));
+		}
+		return max;
+	}
+
+	/* times the serial loop, compute on one thread and on the common
+	 * pool, and angle weighting for each obj file given on the command
+	 * line (all in the current directory without arguments), and prints
+	 * how far the area weighted normals are from the serial ones
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			args = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(args);
+		}
+		System.out.println("Fork/join parallelism " + ForkJoinPool.commonPool().getParallelism());
+		System.out.println(String.format("%-22s %9s %9s %9s %9s %9s %9s %9s", "model", "triangles",
+				"serial", "1 thread", "parallel", "angle", "degrees", "by angle"));
+		for (String filename : args) {
+			ObjParser obj;
+			try {
+				obj = ObjParser.parse(filename);
+			} catch (Exception e) {
+				System.out.println(String.format("%-22s %s", filename, e));
+				continue;
+			}
+			float[] verts = obj.positions;
+			int[] faces = obj.faces;
+			int nv = obj.num_verts, n = obj.num_indices;
+			boolean valid = true;
+			for (int i = 0; i < n; i ++)
+				valid &= faces[i] >= 0 && faces[i] < nv;
+			if (!valid) {
+				System.out.println(String.format("%-22s face indices out of range", filename));
+				continue;
+			}
+
+			float[] reference = null, single = null, forked = null, byAngle = null;
+			long serialNanos = Long.MAX_VALUE, singleNanos = Long.MAX_VALUE;
+			long forkedNanos = Long.MAX_VALUE, angleNanos = Long.MAX_VALUE;
+			for (int run = 0; run < 5; run ++) {		// best of five, the first ones warm up
+				long t0 = System.nanoTime();
+				reference = serial(verts, nv, faces, n);
+				long t1 = System.nanoTime();
+				single = compute(verts, nv, faces, n, false);
+				long t2 = System.nanoTime();
+				forked = compute(verts, nv, faces, n, true);
+				long t3 = System.nanoTime();
+				angleWeighted = true;
+				byAngle = compute(verts, nv, faces, n);
+				angleWeighted = false;
+				long t4 = System.nanoTime();
+				serialNanos = Math.min(serialNanos, t1 - t0);
+				singleNanos = Math.min(singleNanos, t2 - t1);
+				forkedNanos = Math.min(forkedNanos, t3 - t2);
+				angleNanos = Math.min(angleNanos, t4 - t3);
+			}
+			if (!Arrays.equals(single, forked))
+				System.out.println(filename + ": the parallel normals differ from the single threaded ones");
+			System.out.println(String.format("%-22s %9d %7.2fms %7.2fms %7.2fms %7.2fms %9.4f %9.2f", filename, n / 3,
+					serialNanos / 1e6, singleNanos / 1e6, forkedNanos / 1e6, angleNanos / 1e6,
+					maxAngle(reference, forked, nv), maxAngle(reference, byAngle, nv)));
+		}
+	}
+}
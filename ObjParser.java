@@ -0,0 +1,615 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/* This defines the ObjParser class, which reads the vertices and
+ * triangle faces of an obj file. The file is memory mapped and scanned
+ * byte by byte; numbers are parsed in place and stored straight into
+ * growable float[] and int[] arrays, so nothing is allocated per line.
+ *
+ * It reads positions (v), normals (vn) and texture coordinates (vt),
+ * which are counted but not kept since nothing is textured. A face (f)
+ * may have any number of corners, each written v, v/vt, v//vn or
+ * v/vt/vn, with 1-based indices or negative ones counting back from
+ * the last line of their kind read so far. Convex polygons are cut into
+ * a fan, concave ones are ear clipped in the plane of their Newell
+ * normal. Every other line (o, g, s, usemtl, mtllib, comments) is
+ * skipped.
+ *
+ * When every face corner names a normal, each distinct position and
+ * normal pair becomes one vertex and normals holds the file's normals,
+ * so they need not be estimated. Otherwise normals is null and the
+ * vertices are the positions as the file lists them.
+ */
+class ObjParser {
+	public float[] positions = new float[3 * 1024];
+	public float[] normals;		// as the file has them, null when not every corner has one
+	public int[] faces = new int[3 * 1024];
+	public int num_verts;		// number of vertices
+	public int num_indices;		// number of face indices read, three per triangle
+
+	/* what the file held, for the conformance check in main */
+	public int num_positions, num_normals, num_texcoords;	// v, vn and vt lines
+	public int num_face_lines;		// f lines
+	public int num_polygons;		// faces of more than three corners
+	public int num_concave;			// of those, the ones ear clipped
+	public int num_short_faces;		// faces of fewer than three corners, which are skipped
+
+	private static final float[] POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private MappedByteBuffer buf;
+	private int pos, end;
+
+	private float[] fileNormals = new float[0];
+	private int[] cornerNormals = new int[0];	// normal index of each face index
+	private boolean missingNormals;				// some corner has no normal (or a bad one)
+
+	/* the corners of the face being read, and scratch for clipping it */
+	private int[] polygonPositions = new int[16], polygonNormals = new int[16], ring = new int[16];
+
+	public static ObjParser parse(String filename) throws IOException {
+		ObjParser parser = new ObjParser();
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			parser.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			parser.end = (int) channel.size();
+			parser.run();
+		} finally {
+			file.close();
+		}
+		parser.buf = null;
+		parser.pairNormals();
+		return parser;
+	}
+
+	private void run() {
+		while (pos < end) {
+			while (pos < end && isBlank(buf.get(pos)))
+				pos ++;
+			byte c = pos < end ? buf.get(pos) : 0;
+			byte next = pos + 1 < end ? buf.get(pos + 1) : (byte) '\n';
+			if (c == 'v' && isSeparator(next)) {
+				skipToken();
+				float x = parseFloat();
+				float y = parseFloat();
+				float z = parseFloat();
+				addVertex(x, y, z);
+			} else if (c == 'v' && next == 'n' && (pos + 2 >= end || isSeparator(buf.get(pos + 2)))) {
+				skipToken();
+				float x = parseFloat();
+				float y = parseFloat();
+				float z = parseFloat();
+				addNormal(x, y, z);
+			} else if (c == 'v' && next == 't' && (pos + 2 >= end || isSeparator(buf.get(pos + 2)))) {
+				num_texcoords ++;
+			} else if (c == 'f' && isSeparator(next)) {
+				skipToken();
+				parseFace();
+			}
+			skipLine();
+		}
+		num_positions = num_verts;
+	}
+
+	private void addVertex(float x, float y, float z) {
+		if (num_verts * 3 + 3 > positions.length)
+			positions = Arrays.copyOf(positions, positions.length * 2);
+		positions[num_verts * 3 + 0] = x;
+		positions[num_verts * 3 + 1] = y;
+		positions[num_verts * 3 + 2] = z;
+		num_verts ++;
+	}
+
+	private void addNormal(float x, float y, float z) {
+		if (num_normals * 3 + 3 > fileNormals.length)
+			fileNormals = Arrays.copyOf(fileNormals, Math.max(3 * 1024, fileNormals.length * 2));
+		fileNormals[num_normals * 3 + 0] = x;
+		fileNormals[num_normals * 3 + 1] = y;
+		fileNormals[num_normals * 3 + 2] = z;
+		num_normals ++;
+	}
+
+	/* reads the corners of an f line and adds its triangles */
+	private void parseFace() {
+		num_face_lines ++;
+		int n = 0;
+		while (pos < end && !isEol(buf.get(pos))) {
+			if (n == polygonPositions.length) {
+				polygonPositions = Arrays.copyOf(polygonPositions, n * 2);
+				polygonNormals = Arrays.copyOf(polygonNormals, n * 2);
+				ring = new int[n * 2];
+			}
+			polygonPositions[n] = index(parseInt(), num_verts);
+			polygonNormals[n] = -1;
+			if (pos < end && buf.get(pos) == '/') {
+				pos ++;
+				if (pos < end && buf.get(pos) != '/')
+					index(parseInt(), num_texcoords);
+				if (pos < end && buf.get(pos) == '/') {
+					pos ++;
+					polygonNormals[n] = index(parseInt(), num_normals);
+				}
+			}
+			if (pos < end && !isBlank(buf.get(pos)) && !isEol(buf.get(pos)))
+				throw malformed();
+			while (pos < end && isBlank(buf.get(pos)))
+				pos ++;
+			n ++;
+		}
+		if (n < 3) {
+			num_short_faces ++;
+			return;
+		}
+		if (n == 3) {
+			addFace(0, 1, 2);
+			return;
+		}
+		num_polygons ++;
+		triangulate(n);
+	}
+
+	/* the 0-based index of a 1-based or negative (relative) index, when
+	 * count of its kind have been read
+	 */
+	private int index(int i, int count) {
+		if (i == 0)
+			throw malformed();
+		return i > 0 ? i - 1 : count + i;
+	}
+
+	/* adds the triangle of corners a, b and c of the face being read */
+	private void addFace(int a, int b, int c) {
+		if (num_indices + 3 > faces.length)
+			faces = Arrays.copyOf(faces, faces.length * 2);
+		addCorner(a);
+		addCorner(b);
+		addCorner(c);
+	}
+
+	private void addCorner(int corner) {
+		int normal = polygonNormals[corner];
+		if (normal < 0 || normal >= num_normals)
+			missingNormals = true;
+		if (!missingNormals) {
+			if (num_indices >= cornerNormals.length)
+				cornerNormals = Arrays.copyOf(cornerNormals, faces.length);
+			cornerNormals[num_indices] = normal;
+		}
+		faces[num_indices ++] = polygonPositions[corner];
+	}
+
+	/* cuts the polygon of the n corners just read into triangles: a fan
+	 * when it is convex, and otherwise by clipping one ear (a corner
+	 * whose triangle holds no other corner) at a time
+	 */
+	private void triangulate(int n) {
+		float nx = 0, ny = 0, nz = 0;	// Newell's normal, to tell convex corners from reflex ones
+		for (int i = 0; i < n; i ++) {
+			int a = polygonPositions[i], b = polygonPositions[(i + 1) % n];
+			if (a < 0 || a >= num_verts || b < 0 || b >= num_verts) {
+				fan(n);		// the cleanup drops these anyway
+				return;
+			}
+			a *= 3;
+			b *= 3;
+			nx += (positions[a+1] - positions[b+1]) * (positions[a+2] + positions[b+2]);
+			ny += (positions[a+2] - positions[b+2]) * (positions[a] + positions[b]);
+			nz += (positions[a] - positions[b]) * (positions[a+1] + positions[b+1]);
+		}
+		int m = n;
+		for (int i = 0; i < n; i ++)
+			ring[i] = i;
+		boolean convex = true;
+		for (int i = 0; i < n && convex; i ++)
+			convex = turn(ring[(i + n - 1) % n], ring[i], ring[(i + 1) % n], nx, ny, nz) >= 0;
+		if (convex) {
+			fan(n);
+			return;
+		}
+		num_concave ++;
+		while (m > 3) {
+			int ear = -1;
+			for (int i = 0; i < m && ear < 0; i ++) {
+				int a = ring[(i + m - 1) % m], b = ring[i], c = ring[(i + 1) % m];
+				if (turn(a, b, c, nx, ny, nz) <= 0)
+					continue;
+				boolean empty = true;
+				for (int j = 0; j < m && empty; j ++) {
+					int d = ring[j];
+					if (d != a && d != b && d != c && polygonPositions[d] != polygonPositions[a]
+							&& polygonPositions[d] != polygonPositions[b] && polygonPositions[d] != polygonPositions[c])
+						empty = !(turn(a, b, d, nx, ny, nz) >= 0 && turn(b, c, d, nx, ny, nz) >= 0
+								&& turn(c, a, d, nx, ny, nz) >= 0);
+				}
+				if (empty)
+					ear = i;
+			}
+			if (ear < 0)
+				break;		// no ear left (the polygon crosses itself); fan the rest
+			addFace(ring[(ear + m - 1) % m], ring[ear], ring[(ear + 1) % m]);
+			System.arraycopy(ring, ear + 1, ring, ear, m - ear - 1);
+			m --;
+		}
+		for (int i = 1; i + 1 < m; i ++)
+			addFace(ring[0], ring[i], ring[i + 1]);
+	}
+
+	private void fan(int n) {
+		for (int i = 1; i + 1 < n; i ++)
+			addFace(0, i, i + 1);
+	}
+
+	/* which way the path through corners a, b and c turns at b, seen
+	 * from the side normal (nx, ny, nz) points to: positive when it turns
+	 * left (counterclockwise), negative when right, 0 when straight
+	 */
+	private float turn(int a, int b, int c, float nx, float ny, float nz) {
+		a = polygonPositions[a] * 3;
+		b = polygonPositions[b] * 3;
+		c = polygonPositions[c] * 3;
+		float e1x = positions[b] - positions[a], e1y = positions[b+1] - positions[a+1], e1z = positions[b+2] - positions[a+2];
+		float e2x = positions[c] - positions[b], e2y = positions[c+1] - positions[b+1], e2z = positions[c+2] - positions[b+2];
+		return (e1y * e2z - e1z * e2y) * nx + (e1z * e2x - e1x * e2z) * ny + (e1x * e2y - e1y * e2x) * nz;
+	}
+
+	/* when every corner has a normal, makes one vertex of each distinct
+	 * position and normal pair, numbered in the order the faces first
+	 * use them. A corner whose position is out of range keeps an index
+	 * out of range, for the cleanup to drop.
+	 */
+	private void pairNormals() {
+		if (missingNormals || num_indices == 0) {
+			fileNormals = null;
+			cornerNormals = null;
+			return;
+		}
+		LongIntMap pairs = new LongIntMap(num_indices);
+		float[] pairedPositions = new float[num_indices * 3];
+		float[] pairedNormals = new float[num_indices * 3];
+		int count = 0;
+		for (int i = 0; i < num_indices; i ++) {
+			int p = faces[i], n = cornerNormals[i];
+			if (p < 0 || p >= num_verts) {
+				faces[i] = -1;
+				continue;
+			}
+			long key = (long) p << 32 | n;
+			int vertex = pairs.get(key);
+			if (vertex < 0) {
+				vertex = count ++;
+				pairs.put(key, vertex);
+				System.arraycopy(positions, p * 3, pairedPositions, vertex * 3, 3);
+				System.arraycopy(fileNormals, n * 3, pairedNormals, vertex * 3, 3);
+			}
+			faces[i] = vertex;
+		}
+		positions = pairedPositions;
+		normals = pairedNormals;
+		num_verts = count;
+		fileNormals = null;
+		cornerNormals = null;
+	}
+
+	private static boolean isSeparator(byte c) {
+		return isBlank(c) || isEol(c);
+	}
+
+	private static boolean isBlank(byte c) {
+		return c == ' ' || c == '\t';
+	}
+
+	private static boolean isEol(byte c) {
+		return c == '\n' || c == '\r';
+	}
+
+	private void skipLine() {
+		while (pos < end && !isEol(buf.get(pos)))
+			pos ++;
+		while (pos < end && isEol(buf.get(pos)))
+			pos ++;
+	}
+
+	/* skips the current token and the blanks after it, stopping at the end of line */
+	private void skipToken() {
+		while (pos < end && !isBlank(buf.get(pos)) && !isEol(buf.get(pos)))
+			pos ++;
+		while (pos < end && isBlank(buf.get(pos)))
+			pos ++;
+	}
+
+	private RuntimeException malformed() {
+		int line = 1;
+		for (int i = 0; i < pos; i ++)
+			if (buf.get(i) == '\n')
+				line ++;
+		return new NumberFormatException("Malformed number on line " + line);
+	}
+
+	private int parseInt() {
+		boolean negative = false;
+		if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+			negative = buf.get(pos ++) == '-';
+		int start = pos;
+		int value = 0;
+		while (pos < end && buf.get(pos) >= '0' && buf.get(pos) <= '9')
+			value = value * 10 + (buf.get(pos ++) - '0');
+		if (pos == start)
+			throw malformed();
+		return negative ? -value : value;
+	}
+
+	/* Parses a decimal float. When the significant digits fit in 24 bits
+	 * and the decimal exponent is at most 10, both the significand and
+	 * the power of ten are exact floats, so a single float multiply or
+	 * divide gives the correctly rounded result, bit for bit the same as
+	 * Float.valueOf. Anything else falls back to Float.parseFloat.
+	 */
+	private float parseFloat() {
+		int start = pos;
+		boolean negative = false;
+		if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+			negative = buf.get(pos ++) == '-';
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean any = false;
+		byte c;
+		while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0)
+					digits ++;
+			} else {
+				exponent ++;
+			}
+			pos ++;
+			any = true;
+		}
+		if (pos < end && buf.get(pos) == '.') {
+			pos ++;
+			while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0)
+						digits ++;
+					exponent --;
+				}
+				pos ++;
+				any = true;
+			}
+		}
+		if (any && pos < end && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+			pos ++;
+			boolean negativeExp = false;
+			if (pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+				negativeExp = buf.get(pos ++) == '-';
+			int e = 0;
+			boolean expDigits = false;
+			while (pos < end && (c = buf.get(pos)) >= '0' && c <= '9') {
+				if (e < 10000)
+					e = e * 10 + (c - '0');
+				pos ++;
+				expDigits = true;
+			}
+			if (!expDigits)
+				return slowParseFloat(start);	// "1e" or "1e+", which it rejects
+			exponent += negativeExp ? -e : e;
+		}
+		if (!any || (pos < end && !isBlank(buf.get(pos)) && !isEol(buf.get(pos))))
+			return slowParseFloat(start);
+
+		while (mantissa != 0 && mantissa % 10 == 0) {
+			mantissa /= 10;
+			exponent ++;
+		}
+		if (mantissa >= (1 << 24) || exponent < -10 || exponent > 10)
+			return slowParseFloat(start);
+
+		float value = (float) mantissa;
+		if (exponent < 0)
+			value /= POW10[-exponent];
+		else
+			value *= POW10[exponent];
+		skipToken();
+		return negative ? -value : value;
+	}
+
+	private float slowParseFloat(int start) {
+		pos = start;
+		while (pos < end && !isBlank(buf.get(pos)) && !isEol(buf.get(pos)))
+			pos ++;
+		byte[] token = new byte[pos - start];
+		for (int i = 0; i < token.length; i ++)
+			token[i] = buf.get(start + i);
+		skipToken();
+		return Float.parseFloat(new String(token, ASCII));
+	}
+
+	/* checks the parser against the dialect cases below and against a
+	 * plain line by line reading of each obj file given on the command
+	 * line (all in the current directory without arguments): the same
+	 * number of v, vn, vt and f lines, n - 2 triangles for a face of n
+	 * corners, each made of that face's corners with the same position
+	 * and normal bits, and every index in range. Prints a line per case
+	 * and file, and exits with status 1 if any fails.
+	 *
+	 *   java ObjParser [model.obj ...]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			args = new File(".").list(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".obj");
+				}
+			});
+			Arrays.sort(args);
+		}
+		int failures = 0;
+		for (String[] c : CASES) {
+			File file = File.createTempFile("case", ".obj");
+			file.deleteOnExit();
+			FileWriter out = new FileWriter(file);
+			out.write(c[1]);
+			out.close();
+			String error = conform(file.getPath(), c[2]);
+			failures += error != null ? 1 : 0;
+			System.out.println(String.format("%-22s %s", c[0], error != null ? "FAIL " + error : "ok"));
+		}
+		System.out.println(String.format("%-22s %8s %8s %8s %8s %8s %8s %9s %8s %8s %s", "model", "v", "vn", "vt",
+				"f", "polygons", "concave", "triangles", "vertices", "time", ""));
+		for (String filename : args) {
+			long t0 = System.nanoTime();
+			ObjParser obj;
+			try {
+				obj = parse(filename);
+			} catch (Exception e) {
+				failures ++;
+				System.out.println(String.format("%-22s FAIL %s", filename, e));
+				continue;
+			}
+			long t1 = System.nanoTime();
+			String error = conform(filename, null);
+			failures += error != null ? 1 : 0;
+			System.out.println(String.format("%-22s %8d %8d %8d %8d %8d %8d %9d %8d %6.1fms %s", filename,
+					obj.num_positions, obj.num_normals, obj.num_texcoords, obj.num_face_lines, obj.num_polygons,
+					obj.num_concave, obj.num_indices / 3, obj.num_verts, (t1 - t0) / 1e6,
+					error != null ? "FAIL " + error : obj.normals != null ? "ok, file normals" : "ok"));
+		}
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+	}
+
+	/* name, obj text, and what else to expect of it: vertices and
+	 * triangles, "normals" when it must keep the file's normals, and
+	 * "area" followed by the total area its triangles must cover (all
+	 * facing the same way) for a polygon that must be cut without
+	 * spilling outside itself
+	 */
+	private static final String[][] CASES = {
+		{ "triangle", "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n", "3 1" },
+		{ "negative indices", "v 0 0 0\nv 1 0 0\nv 0 1 0\nf -3 -2 -1\nv 1 1 0\nf -3 -2 -1\n", "4 2" },
+		{ "quad", "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 0\nf 1 2 3 4\n", "4 2 area 1" },
+		{ "concave polygon", "v 0 0 0\nv 3 0 0\nv 3 2 0\nv 2 2 0\nv 2 1 0\nv 1 1 0\nv 1 2 0\nv 0 2 0\n"
+				+ "f 5 6 7 8 1 2 3 4\n", "8 6 area 5" },
+		{ "v/vt/vn", "v 0 0 0\nv 1 0 0\nv 0 1 0\nvt 0 0\nvt 1 0\nvt 0 1\nvn 0 0 1\n"
+				+ "f 1/1/1 2/2/1 3/3/1\n", "3 1 normals" },
+		{ "v//vn split", "v 0 0 0\nv 1 0 0\nv 1 1 0\nv 0 1 1\nvn 0 0 1\nvn 0 -1 1\n"
+				+ "f 1//1 2//1 3//1\nf 1//2 3//2 4//2\n", "6 2 normals" },
+		{ "v/vt", "v 0 0 0\nv 1 0 0\nv 0 1 0\nvt 0 0 0\nvt 1 0\nvt 0 1\nf 1/1 2/2 3/3\n", "3 1" },
+		{ "mixed normals", "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\nvn 0 0 1\n"
+				+ "f 1//1 2//1 3//1\nf 2 4 3\n", "4 2" },
+		{ "layout", "# comment\r\nmtllib x.mtl\r\no thing\r\n  v\t0 0 0 1\r\nv 1e0 0 0\r\n"
+				+ "v 0 1.0E+0 -0\r\ng part\r\ns off\r\nusemtl red\r\nvp 0.5\r\nf\t1  2 3 \r\nf 1 2\r\n", "3 1" },
+	};
+
+	/* null if filename parses like a plain reading of it says it should,
+	 * and as expect (see CASES) says when given, otherwise what is wrong
+	 */
+	private static String conform(String filename, String expect) throws IOException {
+		ObjParser obj;
+		try {
+			obj = parse(filename);
+		} catch (RuntimeException e) {
+			return e.toString();
+		}
+		ArrayList<float[]> v = new ArrayList<float[]>(), vn = new ArrayList<float[]>();
+		ArrayList<int[]> f = new ArrayList<int[]>();	// position and normal index pairs per face
+		int vt = 0, triangles = 0;
+		boolean allNormals = true;
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			for (String line; (line = in.readLine()) != null;) {
+				String[] t = line.trim().split("\\s+");
+				if (t[0].equals("v") || t[0].equals("vn")) {
+					float[] xyz = { Float.parseFloat(t[1]), Float.parseFloat(t[2]), Float.parseFloat(t[3]) };
+					(t[0].equals("v") ? v : vn).add(xyz);
+				} else if (t[0].equals("vt")) {
+					vt ++;
+				} else if (t[0].equals("f")) {
+					int[] corners = new int[(t.length - 1) * 2];
+					for (int i = 1; i < t.length; i ++) {
+						String[] parts = t[i].split("/");
+						int p = Integer.parseInt(parts[0]), n = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+						corners[(i - 1) * 2] = p > 0 ? p - 1 : v.size() + p;
+						corners[(i - 1) * 2 + 1] = n > 0 ? n - 1 : n < 0 ? vn.size() + n : -1;
+						allNormals &= n != 0;
+					}
+					f.add(corners);
+					triangles += Math.max(0, t.length - 3);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (obj.num_positions != v.size() || obj.num_normals != vn.size() || obj.num_texcoords != vt
+				|| obj.num_face_lines != f.size())
+			return String.format("read %d v, %d vn, %d vt, %d f lines, expected %d, %d, %d, %d", obj.num_positions,
+					obj.num_normals, obj.num_texcoords, obj.num_face_lines, v.size(), vn.size(), vt, f.size());
+		if (obj.num_indices != triangles * 3)
+			return String.format("%d triangles, expected %d", obj.num_indices / 3, triangles);
+		boolean normals = allNormals && !f.isEmpty();
+		if ((obj.normals != null) != normals)
+			return normals ? "dropped the file's normals" : "kept normals not every corner has";
+		for (int i = 0; i < obj.num_indices; i ++)
+			if (obj.faces[i] < 0 || obj.faces[i] >= obj.num_verts)
+				return "index " + obj.faces[i] + " out of range";
+
+		/* the triangles of each face are made of its corners */
+		int next = 0;
+		for (int[] corners : f) {
+			for (int k = 0; k < corners.length / 2 - 2; k ++, next ++) {
+				for (int j = 0; j < 3; j ++) {
+					int vertex = obj.faces[next * 3 + j];
+					boolean found = false;
+					for (int c = 0; c < corners.length && !found; c += 2)
+						found = sameBits(obj.positions, vertex, v.get(corners[c]))
+								&& (!normals || sameBits(obj.normals, vertex, vn.get(corners[c + 1])));
+					if (!found)
+						return "triangle " + next + " is not made of its face's corners";
+				}
+			}
+		}
+
+		if (expect == null)
+			return null;
+		String[] e = expect.split(" ");
+		if (obj.num_verts != Integer.parseInt(e[0]) || obj.num_indices / 3 != Integer.parseInt(e[1]))
+			return String.format("%d vertices and %d triangles, expected %s and %s", obj.num_verts,
+					obj.num_indices / 3, e[0], e[1]);
+		if (e.length > 2 && e[2].equals("normals") && obj.normals == null)
+			return "dropped the file's normals";
+		if (e.length > 3 && e[2].equals("area")) {
+			double area = 0;
+			for (int i = 0; i < obj.num_indices; i += 3) {
+				float[] p = obj.positions;
+				int a = obj.faces[i] * 3, b = obj.faces[i+1] * 3, c = obj.faces[i+2] * 3;
+				double z = (p[b] - p[a]) * (p[c+1] - p[a+1]) - (p[b+1] - p[a+1]) * (p[c] - p[a]);
+				if (z <= 0)
+					return "triangle " + i / 3 + " faces the wrong way";
+				area += z / 2;
+			}
+			if (Math.abs(area - Double.parseDouble(e[3])) > 1e-6)
+				return "triangles cover " + area + ", expected " + e[3];
+		}
+		return null;
+	}
+
+	private static boolean sameBits(float[] a, int vertex, float[] xyz) {
+		for (int i = 0; i < 3; i ++)
+			if (Float.floatToIntBits(a[vertex * 3 + i]) != Float.floatToIntBits(xyz[i]))
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,214 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.vecmath.Matrix4f;
+
+/* This defines the Picker class, which finds the part of the sculpture
+ * under the mouse: the nearest triangle a ray from the eye hits, and the
+ * scene node it belongs to.
+ *
+ * The ray is first tested against the world box every node keeps of its
+ * subtree, skipping a whole hierarchy it misses or only reaches beyond
+ * the nearest hit so far, then against the box of each shape, and only
+ * then, turned into the shape's model coordinates, against the MeshBVH
+ * of its mesh. Hidden nodes are tested too, since a StaticBatch still
+ * shows their shapes.
+ *
+ * A Picker keeps scratch matrices, so each thread needs its own.
+ */
+class Picker {
+
+	/* a shape whose triangles can be picked */
+	interface Pickable extends SceneNode.Shape {
+		/* in model coordinates, or null while unknown */
+		MeshBVH getBVH();
+	}
+
+	/* what a ray hit, if anything */
+	static class Hit {
+		public SceneNode node;			// the node whose shape was hit, or null
+		public SceneNode hierarchy;		// the child of the root it hangs from
+		public int triangle;			// face index in the node's mesh
+		public float t;					// distance along the ray
+		public int shapesTested;		// shapes whose mesh the ray was cast at
+
+		void clear() {
+			node = hierarchy = null;
+			triangle = -1;
+			t = Float.POSITIVE_INFINITY;
+			shapesTested = 0;
+		}
+	}
+
+	private final Matrix4f inverse = new Matrix4f();
+	private final MeshBVH.Hit meshHit = new MeshBVH.Hit();
+	private final float[] ray = new float[6];	// origin, unit direction
+
+	/* casts the ray from the eye of view through the point (x, y) of the
+	 * window, in normalized device coordinates, of a perspective of fovy
+	 * degrees and aspect
+	 */
+	public boolean pick(SceneNode root, Matrix4f view, float fovy, float aspect, float x, float y, Hit hit) {
+		float h = (float) Math.tan(Math.toRadians(fovy / 2));
+		float ex = x * h * aspect, ey = y * h, ez = -1;
+		inverse.invert(view);
+		float dx = inverse.m00 * ex + inverse.m01 * ey + inverse.m02 * ez;
+		float dy = inverse.m10 * ex + inverse.m11 * ey + inverse.m12 * ez;
+		float dz = inverse.m20 * ex + inverse.m21 * ey + inverse.m22 * ez;
+		float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		return pick(root, inverse.m03, inverse.m13, inverse.m23, dx / length, dy / length, dz / length, hit);
+	}
+
+	/* casts the ray o + t d, d of unit length, in world coordinates */
+	public boolean pick(SceneNode root, float ox, float oy, float oz, float dx, float dy, float dz, Hit hit) {
+		hit.clear();
+		ray[0] = ox;
+		ray[1] = oy;
+		ray[2] = oz;
+		ray[3] = dx;
+		ray[4] = dy;
+		ray[5] = dz;
+		for (int i = 0; i < root.children.size(); i ++)
+			pick(root.children.get(i), root.children.get(i), hit);
+		if (root.shape != null)
+			pickShape(root, root, hit);
+		return hit.node != null;
+	}
+
+	private void pick(SceneNode node, SceneNode hierarchy, Hit hit) {
+		if (enter(node.getBounds(), hit.t) == Float.POSITIVE_INFINITY)
+			return;
+		pickShape(node, hierarchy, hit);
+		for (int i = 0; i < node.children.size(); i ++)
+			pick(node.children.get(i), hierarchy, hit);
+	}
+
+	private void pickShape(SceneNode node, SceneNode hierarchy, Hit hit) {
+		if (node.shape instanceof Pickable && enter(node.getShapeBounds(), hit.t) != Float.POSITIVE_INFINITY)
+			cast(node, hierarchy, hit);
+	}
+
+	/* casts the ray at the mesh of node's shape, which must be Pickable */
+	private void cast(SceneNode node, SceneNode hierarchy, Hit hit) {
+		MeshBVH bvh = ((Pickable) node.shape).getBVH();
+		if (bvh == null)
+			return;
+		/* the ray in model coordinates keeps its t, as the transform is affine */
+		inverse.invert(node.getWorld());
+		float ox = ray[0], oy = ray[1], oz = ray[2], dx = ray[3], dy = ray[4], dz = ray[5];
+		float mox = inverse.m00 * ox + inverse.m01 * oy + inverse.m02 * oz + inverse.m03;
+		float moy = inverse.m10 * ox + inverse.m11 * oy + inverse.m12 * oz + inverse.m13;
+		float moz = inverse.m20 * ox + inverse.m21 * oy + inverse.m22 * oz + inverse.m23;
+		float mdx = inverse.m00 * dx + inverse.m01 * dy + inverse.m02 * dz;
+		float mdy = inverse.m10 * dx + inverse.m11 * dy + inverse.m12 * dz;
+		float mdz = inverse.m20 * dx + inverse.m21 * dy + inverse.m22 * dz;
+		hit.shapesTested ++;
+		if (bvh.intersect(mox, moy, moz, mdx, mdy, mdz, hit.t, meshHit)) {
+			hit.node = node;
+			hit.hierarchy = hierarchy;
+			hit.triangle = meshHit.triangle;
+			hit.t = meshHit.t;
+		}
+	}
+
+	/* where the ray enters b, or infinity if it misses it or enters it
+	 * no nearer than maxT
+	 */
+	private float enter(Bounds b, float maxT) {
+		if (b.isEmpty())
+			return Float.POSITIVE_INFINITY;
+		float near = 0, far = maxT;
+		for (int axis = 0; axis < 3; axis ++) {
+			float o = ray[axis], d = ray[3 + axis];
+			float min = axis == 0 ? b.minX : axis == 1 ? b.minY : b.minZ;
+			float max = axis == 0 ? b.maxX : axis == 1 ? b.maxY : b.maxZ;
+			if (d == 0) {
+				if (o < min || o > max)
+					return Float.POSITIVE_INFINITY;
+				continue;
+			}
+			float t0 = (min - o) / d, t1 = (max - o) / d;
+			near = Math.max(near, Math.min(t0, t1));
+			far = Math.min(far, Math.max(t0, t1));
+			if (near > far)
+				return Float.POSITIVE_INFINITY;
+		}
+		return near;
+	}
+
+	/* casts the last ray picked at every mesh below node, without
+	 * testing any box, to check the pick against
+	 */
+	private void castAll(SceneNode node, SceneNode hierarchy, Hit hit) {
+		if (node.shape instanceof Pickable)
+			cast(node, hierarchy, hit);
+		for (int i = 0; i < node.children.size(); i ++)
+			castAll(node.children.get(i), hierarchy, hit);
+	}
+
+	/* times picking random points of a 1000x800 window on the sculpture
+	 * as it turns and the camera orbits it, loaded without a window
+	 * through SoftwareRenderer's shapes, and checks every pick against
+	 * casting the same ray at every mesh:
+	 *
+	 *   java Picker [-clicks N]
+	 */
+	public static void main(String[] args) {
+		int clicks = 10000;
+		if (args.length >= 2 && args[0].equals("-clicks"))
+			clicks = Integer.parseInt(args[1]);
+
+		long t0 = System.nanoTime();
+		SoftwareRenderer.Shapes shapes = new SoftwareRenderer.Shapes();
+		SceneNode scene = Hierarchical.buildScene(shapes);
+		shapes.load();
+		System.out.println(String.format(Locale.ROOT, "Loaded the sculpture in %.0fms.", (System.nanoTime() - t0) / 1e6));
+
+		/* the starting view of Hierarchical.initViewParameters, as SoftwareRenderer.main has it */
+		float ball = (float) Math.sqrt(12) * 0.707f;
+		float zpos = ball / (float) Math.sin(Math.toRadians(45));
+		CameraPath path = CameraPath.orbit(0, 0, zpos, zpos);
+		float[] camera = new float[CameraPath.FIELDS];
+		Matrix4f view = new Matrix4f(), step = new Matrix4f();
+
+		Picker picker = new Picker();
+		Hit hit = new Hit(), check = new Hit();
+		Random random = new Random(1);
+		int warmup = Math.min(clicks, 2000);
+		long[] times = new long[clicks];
+		long tested = 0;
+		int hits = 0, wrong = 0;
+		for (int i = -warmup; i < clicks; i ++) {
+			path.sample(Math.floorMod(i, 360), 360, camera);
+			scene.animate(1);
+			scene.update();
+			Hierarchical.viewOf(camera, 0, 0, 0, view, step);
+			float x = 2 * random.nextFloat() - 1, y = 2 * random.nextFloat() - 1;
+			long start = System.nanoTime();
+			picker.pick(scene, view, 45.f, 1000.f / 800.f, x, y, hit);
+			long time = System.nanoTime() - start;
+
+			check.clear();
+			for (int j = 0; j < scene.children.size(); j ++)
+				picker.castAll(scene.children.get(j), scene.children.get(j), check);
+			if (i < 0)
+				continue;
+			times[i] = time;
+			tested += hit.shapesTested;
+			if (hit.node != null)
+				hits ++;
+			if ((hit.node == null) != (check.node == null)
+					|| hit.node != null && Math.abs(hit.t - check.t) > 1e-5f * check.t)
+				wrong ++;
+		}
+		Arrays.sort(times);
+		long total = 0;
+		for (long t : times)
+			total += t;
+		System.out.println(String.format(Locale.ROOT,
+				"%d picks, %d hits: mean %.1fus, p99 %.1fus, max %.1fus, %.1f meshes tested per pick of %d; %d differ from testing every mesh.",
+				clicks, hits, total / 1e3 / clicks, times[Math.min(clicks - 1, clicks * 99 / 100)] / 1e3,
+				times[clicks - 1] / 1e3, (double) tested / clicks, check.shapesTested, wrong));
+	}
+}
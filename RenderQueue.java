@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+
+/* This defines the RenderQueue class, which collects the lights and
+ * shapes a frame draws (shape, material and world matrix) instead of
+ * drawing them as the scene graph is walked. It then sorts the shapes
+ * by material, and by shape within a material, and submits them in
+ * that order after setting the lights, calling glMaterialfv only when
+ * the material actually changes.
+ *
+ * The world matrices are copied in, so filling a queue makes no GL
+ * calls and the queue stays as it was while the scene moves on; a
+ * FramePipeline fills one on another thread while the last is drawn.
+ *
+ * The items are kept from frame to frame and only ever grow, and the
+ * sort is an insertion sort in place, so a frame with no more shapes
+ * than the one before allocates nothing. Each item also remembers the
+ * FrameStats block it was collected in, so the time spent drawing it
+ * is still counted against its hierarchy.
+ */
+class RenderQueue {
+
+	private static class Item {
+		SceneNode.Shape shape;
+		Material material;
+		final float[] world = new float[16];		// column major
+		long key;
+		int block;
+	}
+
+	private Item[] items = new Item[0];
+	private int count;
+	private Light[] lights = new Light[0];
+	private float[] lightWorlds = new float[0];
+	private int lightCount;
+	private int block;
+	private int materialChanges;
+
+	public void clear() {
+		for (int i = 0; i < count; i ++) {
+			items[i].shape = null;
+			items[i].material = null;
+		}
+		for (int i = 0; i < lightCount; i ++)
+			lights[i] = null;
+		count = lightCount = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/* the FrameStats block the shapes added from now on belong to */
+	public void setBlock(int block) {
+		this.block = block;
+	}
+
+	/* a light set with the node transform world, before any shape */
+	public void addLight(Light light, float[] world) {
+		if (lightCount == lights.length) {
+			lights = Arrays.copyOf(lights, Math.max(4, lightCount * 2));
+			lightWorlds = Arrays.copyOf(lightWorlds, lights.length * 16);
+		}
+		lights[lightCount] = light;
+		System.arraycopy(world, 0, lightWorlds, lightCount * 16, 16);
+		lightCount ++;
+	}
+
+	public void add(SceneNode.Shape shape, Material material, float[] world) {
+		if (count == items.length) {
+			Item[] grown = new Item[Math.max(16, count * 2)];
+			System.arraycopy(items, 0, grown, 0, count);
+			for (int i = count; i < grown.length; i ++)
+				grown[i] = new Item();
+			items = grown;
+		}
+		Item item = items[count ++];
+		item.shape = shape;
+		item.material = material;
+		System.arraycopy(world, 0, item.world, 0, 16);
+		item.block = block;
+		/* shapes without a material keep the one before them, so they go
+		 * first, before any material is set
+		 */
+		long materialKey = material == null ? 0 : material.key + 1;
+		item.key = materialKey << 32 | (System.identityHashCode(shape) & 0xffffffffL);
+	}
+
+	/* orders the items by key; stable, so equal keys keep the order of
+	 * the scene graph
+	 */
+	public void sort() {
+		for (int i = 1; i < count; i ++) {
+			Item item = items[i];
+			int j = i - 1;
+			while (j >= 0 && items[j].key > item.key) {
+				items[j + 1] = items[j];
+				j --;
+			}
+			items[j + 1] = item;
+		}
+	}
+
+	/* sets the lights, then draws the items in order, each with its
+	 * world matrix multiplied onto the current modelview matrix
+	 */
+	public void submit(GL gl) {
+		for (int i = 0; i < lightCount; i ++) {
+			gl.glPushMatrix();
+			gl.glMultMatrixf(lightWorlds, i * 16);
+			lights[i].apply(gl);
+			gl.glPopMatrix();
+		}
+		FrameStats stats = FrameStats.getShared();
+		Material current = null;
+		materialChanges = 0;
+		for (int i = 0; i < count; i ++) {
+			Item item = items[i];
+			long start = stats.blockStart();
+			if (item.material != null && (current == null || current.key != item.material.key)) {
+				item.material.apply(gl);
+				current = item.material;
+				materialChanges ++;
+			}
+			gl.glPushMatrix();
+			gl.glMultMatrixf(item.world, 0);
+			item.shape.Draw();
+			gl.glPopMatrix();
+			stats.blockEnd(item.block, start);
+		}
+	}
+
+	/* the items in the order submit draws them, for drawing them some
+	 * other way, as SoftwareRenderer does
+	 */
+	public SceneNode.Shape getShape(int i) {
+		return items[i].shape;
+	}
+
+	public Material getMaterial(int i) {
+		return items[i].material;
+	}
+
+	/* column major; must not be modified */
+	public float[] getWorld(int i) {
+		return items[i].world;
+	}
+
+	public int getLightCount() {
+		return lightCount;
+	}
+
+	public Light getLight(int i) {
+		return lights[i];
+	}
+
+	/* the world matrix of light i, column major, starts at i * 16; must
+	 * not be modified
+	 */
+	public float[] getLightWorlds() {
+		return lightWorlds;
+	}
+
+	/* the materials the last submit set */
+	public int getMaterialChanges() {
+		return materialChanges;
+	}
+}
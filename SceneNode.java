@@ -0,0 +1,356 @@
+import java.util.ArrayList;
+
+import javax.media.opengl.GL;
+import javax.vecmath.AxisAngle4f;
+import javax.vecmath.Matrix4f;
+
+/* This defines the SceneNode class, one node of the sculpture's scene
+ * graph. A node has a local transform, an optional shape drawn with an
+ * optional material, optional lights and any number of children.
+ *
+ * The local transform is a fixed part, built from translate, scale and
+ * rotate calls in the order glTranslatef/glScalef/glRotatef would apply
+ * them, followed by an animated rotation (spin) about a fixed axis.
+ * Spins advance in whole animation steps (animate) and can be shown
+ * part of the way through the last step (interpolate).
+ * World matrices are cached: update only recomputes the nodes whose
+ * spin or transform changed, and the subtrees below them.
+ *
+ * Along with the world matrix each node keeps the world space bounding
+ * box of its shape and of its whole subtree, so Draw can skip a subtree
+ * that lies outside the view frustum with a single test.
+ */
+class SceneNode {
+
+	/* something a node can draw, such as an objModel */
+	interface Shape {
+		void Draw();
+
+		/* the bounding box in model coordinates, or null while unknown */
+		Bounds getBounds();
+
+		int getTriangleCount();
+	}
+
+	public final String name;
+	public final ArrayList<SceneNode> children = new ArrayList<SceneNode>();
+	public final ArrayList<Light> lights = new ArrayList<Light>();
+	public Shape shape;
+	public Material material;
+	public boolean instanced;	// shape is drawn by an InstancedMesh instead of by Draw
+	public boolean hidden;		// shape is not drawn, such as when a StaticBatch draws it
+	public boolean culled;		// shape was outside the frustum in the last Draw
+
+	private final Matrix4f fixed = new Matrix4f();
+	private final Matrix4f local = new Matrix4f();
+	private final Matrix4f world = new Matrix4f();
+	private final float[] worldGL = new float[16];	// world in column major order for glMultMatrixf
+	private boolean dirty = true;
+
+	private final Bounds shapeBounds = new Bounds();	// world box of the shape
+	private final Bounds bounds = new Bounds();			// world box of the subtree
+	private boolean boundsPending;		// the shape did not know its bounds yet
+	private boolean boundsChanged;
+
+	private final AxisAngle4f spinAxis = new AxisAngle4f(0, 1, 0, 0);
+	private final Matrix4f spinMatrix = new Matrix4f();
+	private float spinSpeed;		// degrees per animation step
+	private float spinAngle;		// degrees, after the last animation step
+	private float lastSpinAngle;	// degrees, before the last animation step
+	private float drawnSpinAngle;	// degrees, as the world matrix has it
+
+	/* scratch for building the fixed transform */
+	private final Matrix4f op = new Matrix4f();
+
+	public SceneNode(String name) {
+		this.name = name;
+		fixed.setIdentity();
+	}
+
+	public SceneNode add(SceneNode child) {
+		children.add(child);
+		child.dirty = true;
+		return this;
+	}
+
+	public SceneNode shape(Shape shape) {
+		this.shape = shape;
+		return this;
+	}
+
+	public SceneNode material(Material material) {
+		this.material = material;
+		return this;
+	}
+
+	public SceneNode light(Light light) {
+		lights.add(light);
+		return this;
+	}
+
+	public SceneNode translate(float x, float y, float z) {
+		op.setIdentity();
+		op.m03 = x;
+		op.m13 = y;
+		op.m23 = z;
+		return append(op);
+	}
+
+	public SceneNode scale(float s) {
+		return scale(s, s, s);
+	}
+
+	public SceneNode scale(float x, float y, float z) {
+		op.setIdentity();
+		op.m00 = x;
+		op.m11 = y;
+		op.m22 = z;
+		return append(op);
+	}
+
+	/* a fixed rotation of angle degrees about (x, y, z) */
+	public SceneNode rotate(float angle, float x, float y, float z) {
+		op.set(new AxisAngle4f(x, y, z, (float) Math.toRadians(angle)));
+		return append(op);
+	}
+
+	/* an animated rotation about (x, y, z), applied after the fixed
+	 * transform, that turns by speed degrees every animation step
+	 */
+	public SceneNode spin(float speed, float x, float y, float z) {
+		spinAxis.x = x;
+		spinAxis.y = y;
+		spinAxis.z = z;
+		spinSpeed = speed;
+		dirty = true;
+		return this;
+	}
+
+	private SceneNode append(Matrix4f m) {
+		fixed.mul(m);
+		dirty = true;
+		return this;
+	}
+
+	/* true when this node never moves relative to its parent */
+	public boolean isRigid() {
+		return spinSpeed == 0 && spinAngle == 0 && drawnSpinAngle == 0;
+	}
+
+	/* the fixed part of the local transform; must not be modified */
+	public Matrix4f getFixed() {
+		return fixed;
+	}
+
+	public float getSpinAngle() {
+		return spinAngle;
+	}
+
+	public void setSpinAngle(float angle) {
+		spinAngle = lastSpinAngle = angle;
+		showSpinAngle(angle);
+	}
+
+	private void showSpinAngle(float angle) {
+		if (angle != drawnSpinAngle) {
+			drawnSpinAngle = angle;
+			dirty = true;
+		}
+	}
+
+	/* puts this node and all nodes below it back at the same spin angle */
+	public void setSpinAngles(float angle) {
+		setSpinAngle(angle);
+		for (int i = 0; i < children.size(); i ++)
+			children.get(i).setSpinAngles(angle);
+	}
+
+	/* advances the spin of this node and all nodes below it by steps
+	 * animation steps, and shows them at the new angle
+	 */
+	public void animate(float steps) {
+		if (spinSpeed != 0) {
+			lastSpinAngle = spinAngle;
+			spinAngle += spinSpeed * steps;
+			showSpinAngle(spinAngle);
+		}
+		for (int i = 0; i < children.size(); i ++)
+			children.get(i).animate(steps);
+	}
+
+	/* shows this node and all nodes below it alpha of the way from
+	 * their angle before the last animation step to the one after it
+	 */
+	public void interpolate(float alpha) {
+		if (spinSpeed != 0)
+			showSpinAngle(lastSpinAngle + (spinAngle - lastSpinAngle) * alpha);
+		for (int i = 0; i < children.size(); i ++)
+			children.get(i).interpolate(alpha);
+	}
+
+	/* brings the cached world matrices of this tree up to date and
+	 * returns how many of them had to be recomputed
+	 */
+	public int update() {
+		return update(null, false);
+	}
+
+	private int update(Matrix4f parentWorld, boolean parentChanged) {
+		boolean changed = dirty || parentChanged;
+		int updated = 0;
+		if (changed) {
+			local.set(fixed);
+			if (drawnSpinAngle != 0) {
+				spinAxis.angle = (float) Math.toRadians(drawnSpinAngle);
+				spinMatrix.set(spinAxis);
+				local.mul(spinMatrix);
+			}
+			if (parentWorld == null)
+				world.set(local);
+			else
+				world.mul(parentWorld, local);
+			toGL(world, worldGL);
+			dirty = false;
+			updated ++;
+		}
+		boolean recompute = changed || boundsPending;
+		for (int i = 0; i < children.size(); i ++) {
+			SceneNode child = children.get(i);
+			updated += child.update(world, changed);
+			recompute |= child.boundsChanged;
+		}
+		if (recompute)
+			updateBounds();
+		boundsChanged = recompute;
+		return updated;
+	}
+
+	private void updateBounds() {
+		Bounds model = shape != null ? shape.getBounds() : null;
+		boundsPending = shape != null && model == null;
+		if (model != null)
+			shapeBounds.setTransformed(model, world);
+		else
+			shapeBounds.setEmpty();
+		bounds.set(shapeBounds);
+		for (int i = 0; i < children.size(); i ++)
+			bounds.include(children.get(i).bounds);
+	}
+
+	/* the world box of this node's own shape as of the last update */
+	public Bounds getShapeBounds() {
+		return shapeBounds;
+	}
+
+	/* the world box of this node's subtree as of the last update */
+	public Bounds getBounds() {
+		return bounds;
+	}
+
+	/* the world matrix of this node as of the last update */
+	public Matrix4f getWorld() {
+		return world;
+	}
+
+	/* the same, column major for glMultMatrixf; must not be modified */
+	public float[] getWorldGL() {
+		return worldGL;
+	}
+
+	/* draws this tree in depth first order; each node is drawn with its
+	 * cached world matrix multiplied onto the current modelview matrix
+	 */
+	public void Draw(GL gl) {
+		Draw(gl, null, null, null);
+	}
+
+	public void Draw(GL gl, Frustum frustum, CullStats stats) {
+		Draw(gl, frustum, stats, null);
+	}
+
+	/* the same, skipping the shapes outside frustum (when not null) and
+	 * counting drawn and culled shapes in stats (when not null). Lights
+	 * are always set, since they shine on the rest of the scene. With a
+	 * queue the lights and shapes are added to it instead, to be drawn
+	 * sorted by material once every light is set; gl is not used then,
+	 * so the queue can be filled away from the GL thread.
+	 */
+	public void Draw(GL gl, Frustum frustum, CullStats stats, RenderQueue queue) {
+		int side = frustum == null || bounds.isEmpty() ? Frustum.INSIDE : frustum.test(bounds);
+		if (side == Frustum.OUTSIDE) {
+			cull(gl, stats, queue);
+			return;
+		}
+		if (side == Frustum.INSIDE)
+			frustum = null;		// so is everything below
+
+		culled = shape != null && frustum != null && !shapeBounds.isEmpty()
+				&& frustum.test(shapeBounds) == Frustum.OUTSIDE;
+		if (shape != null && !hidden && stats != null)
+			count(stats);
+		boolean drawShape = shape != null && !instanced && !hidden && !culled;
+		if (queue != null) {
+			for (int i = 0; i < lights.size(); i ++)
+				queue.addLight(lights.get(i), worldGL);
+			if (drawShape)
+				queue.add(shape, material, worldGL);
+		} else if (drawShape || !lights.isEmpty()) {
+			gl.glPushMatrix();
+			gl.glMultMatrixf(worldGL, 0);
+			for (int i = 0; i < lights.size(); i ++)
+				lights.get(i).apply(gl);
+			if (drawShape) {
+				if (material != null)
+					material.apply(gl);
+				shape.Draw();
+			}
+			gl.glPopMatrix();
+		}
+		for (int i = 0; i < children.size(); i ++)
+			children.get(i).Draw(gl, frustum, stats, queue);
+	}
+
+	/* has every light of this tree set its colors again on its next apply */
+	public void invalidateLights() {
+		for (int i = 0; i < lights.size(); i ++)
+			lights.get(i).invalidate();
+		for (int i = 0; i < children.size(); i ++)
+			children.get(i).invalidateLights();
+	}
+
+	/* marks the whole subtree culled, setting only its lights */
+	private void cull(GL gl, CullStats stats, RenderQueue queue) {
+		if (queue != null) {
+			for (int i = 0; i < lights.size(); i ++)
+				queue.addLight(lights.get(i), worldGL);
+		} else if (!lights.isEmpty()) {
+			gl.glPushMatrix();
+			gl.glMultMatrixf(worldGL, 0);
+			for (int i = 0; i < lights.size(); i ++)
+				lights.get(i).apply(gl);
+			gl.glPopMatrix();
+		}
+		culled = true;
+		if (shape != null && !hidden && stats != null)
+			count(stats);
+		for (int i = 0; i < children.size(); i ++)
+			children.get(i).cull(gl, stats, queue);
+	}
+
+	private void count(CullStats stats) {
+		if (culled) {
+			stats.culledDraws ++;
+			stats.culledTriangles += shape.getTriangleCount();
+		} else {
+			stats.draws ++;
+			stats.triangles += shape.getTriangleCount();
+		}
+	}
+
+	private static void toGL(Matrix4f m, float[] a) {
+		a[0] = m.m00; a[4] = m.m01; a[8] = m.m02; a[12] = m.m03;
+		a[1] = m.m10; a[5] = m.m11; a[9] = m.m12; a[13] = m.m13;
+		a[2] = m.m20; a[6] = m.m21; a[10] = m.m22; a[14] = m.m23;
+		a[3] = m.m30; a[7] = m.m31; a[11] = m.m32; a[15] = m.m33;
+	}
+}
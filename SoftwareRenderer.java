@@ -0,0 +1,832 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.media.opengl.GL;
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+
+/* This defines the SoftwareRenderer class, which draws the sculpture
+ * without GL, for rendering turntable sequences on machines with no
+ * display and no graphics card. It lights the vertices the way the fixed
+ * function pipeline does with Hierarchical's setup (directional lights
+ * with diffuse colors only, two sided, normals normalized) and fills the
+ * triangles smooth (Gouraud) or flat shaded, with a depth test.
+ *
+ * A frame is drawn in three passes over a pool of threads, each pass
+ * starting once the one before has finished:
+ *
+ *   vertices   transformed and lit, a chunk of one shape's vertices a task
+ *   triangles  clipped to the near plane, culled when facing away and
+ *              binned into the screen tiles their box touches, a chunk
+ *              of one shape's triangles a task
+ *   tiles      cleared and filled from the bins, TILE x TILE pixels a
+ *              task, each with a depth buffer of its own
+ *
+ * Tiles never share a pixel, so the last pass needs no locks. The bins
+ * are kept per chunk and read in chunk order, so a frame comes out the
+ * same whatever the number of threads.
+ */
+class SoftwareRenderer {
+
+	public static final int TILE = 64;
+	private static final int VERTEX_CHUNK = 4096;
+	private static final int FACE_CHUNK = 4096;
+
+	/* the projection of Hierarchical.reshape */
+	private static final float FOVY = 45.f, ZNEAR = 0.01f, ZFAR = 1000.f;
+
+	/* GL_LIGHT2 as Hierarchical.init sets it: fixed to the eye, since
+	 * the modelview matrix is the identity there
+	 */
+	private static final Light[] EYE_LIGHTS = {
+		new Light(GL.GL_LIGHT2, new float[] { .1f, .1f, 0, 0 },
+				new float[] { .05f, .05f, .6f, 1 }, new float[] { .05f, .05f, .6f, 1 }),
+	};
+	private static final int MAX_LIGHTS = 8;
+
+	/* the clear color of Hierarchical.init */
+	private static final int CLEAR = pack(.1f, .1f, .1f);
+
+	/* a mesh the renderer can draw; there is no GL, so Draw does nothing */
+	static class MeshShape implements Picker.Pickable {
+		private Future<Mesh> pending;
+		private Mesh mesh;
+		private float[] positions, normals;
+		private int[] faces;
+
+		MeshShape(Future<Mesh> pending) {
+			this.pending = pending;
+		}
+
+		MeshShape(Mesh mesh) {
+			this.mesh = mesh;
+		}
+
+		/* waits for the mesh and copies it into arrays, once */
+		synchronized void load() {
+			if (positions != null)
+				return;
+			if (mesh == null) {
+				try {
+					mesh = pending.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while loading", e);
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Error loading mesh", e.getCause());
+				}
+			}
+			positions = mesh.positions();
+			normals = mesh.normals();
+			faces = mesh.faces();
+		}
+
+		public void Draw() {
+		}
+
+		public Bounds getBounds() {
+			return mesh != null ? mesh.bounds : null;
+		}
+
+		public int getTriangleCount() {
+			return mesh != null ? mesh.num_faces : 0;
+		}
+
+		public MeshBVH getBVH() {
+			return mesh != null ? mesh.getBVH() : null;
+		}
+	}
+
+	/* the shapes of the sculpture for the renderer; the models of one obj
+	 * file share a shape, and the meshes load in the background
+	 */
+	static class Shapes implements Hierarchical.Shapes {
+		private final HashMap<String, MeshShape> models = new HashMap<String, MeshShape>();
+		private final ArrayList<MeshShape> all = new ArrayList<MeshShape>();
+
+		public SceneNode.Shape model(String filename) {
+			MeshShape shape = models.get(filename);
+			if (shape == null) {
+				shape = new MeshShape(MeshCache.getShared().acquireAsync(filename));
+				models.put(filename, shape);
+				all.add(shape);
+			}
+			return shape;
+		}
+
+		public SceneNode.Shape sphere(float radius, int slices, int stacks) {
+			MeshShape shape = new MeshShape(Mesh.sphere("sphere", radius, slices, stacks));
+			all.add(shape);
+			return shape;
+		}
+
+		/* waits for every mesh */
+		void load() {
+			for (MeshShape shape : all)
+				shape.load();
+		}
+	}
+
+	/* one queued shape with its vertices transformed and lit */
+	private static class Item {
+		MeshShape shape;
+		final Matrix4f modelview = new Matrix4f();
+		final Matrix3f normalMatrix = new Matrix3f();
+		float[] frontDiffuse, backDiffuse;
+		float[] clip = new float[0];		// x, y, z, w per vertex
+		float[] front = new float[0];		// r, g, b per vertex
+		float[] back = new float[0];		// the same for back faces, when they are drawn
+	}
+
+	private class VertexTask implements Callable<Void> {
+		Item item;
+		int start, end;
+
+		public Void call() {
+			transform(item, start, end);
+			return null;
+		}
+	}
+
+	/* a run of one item's faces, with the triangles they set up and the
+	 * tiles each of them touches
+	 */
+	private class FaceTask implements Callable<Void> {
+		Item item;
+		int start, end;
+		float[] tris = new float[FACE_CHUNK * TRI_FLOATS];
+		int count;
+		int[][] bins;
+		int[] binSizes;
+
+		public Void call() {
+			if (bins == null || bins.length != tileCount) {
+				bins = new int[tileCount][];
+				binSizes = new int[tileCount];
+			}
+			Arrays.fill(binSizes, 0);
+			count = 0;
+			setup(this);
+			return null;
+		}
+
+		void bin(int tile, int tri) {
+			int[] bin = bins[tile];
+			if (bin == null)
+				bin = bins[tile] = new int[16];
+			else if (binSizes[tile] == bin.length)
+				bin = bins[tile] = Arrays.copyOf(bin, bin.length * 2);
+			bin[binSizes[tile] ++] = tri;
+		}
+	}
+
+	private class TileTask implements Callable<Void> {
+		final int x0, y0, x1, y1;
+		final float[] depth;
+
+		TileTask(int x0, int y0, int x1, int y1) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			depth = new float[(x1 - x0) * (y1 - y0)];
+		}
+
+		public Void call() {
+			fill(this);
+			return null;
+		}
+	}
+
+	/* a set up triangle: x, y, z, 1/w, r/w, g/w, b/w for each corner */
+	private static final int TRI_FLOATS = 21;
+
+	public final int width, height;
+	public final int threads;
+	public boolean smooth = true;			// Gouraud shading, or flat from the last corner as GL_FLAT
+	public boolean cullBackFaces = true;	// like GL_CULL_FACE, otherwise back faces are lit with the back color
+
+	private final ExecutorService pool;
+	private final BufferedImage image;
+	private final int[] pixels;
+	private final int tilesX, tilesY, tileCount;
+	private final ArrayList<TileTask> tiles = new ArrayList<TileTask>();
+	private final ArrayList<Item> items = new ArrayList<Item>();
+	private final ArrayList<VertexTask> vertexTasks = new ArrayList<VertexTask>();
+	private final ArrayList<FaceTask> faceTasks = new ArrayList<FaceTask>();
+	private int itemCount, vertexTaskCount, faceTaskCount;
+
+	private final RenderQueue queue = new RenderQueue();
+	private final Frustum frustum = new Frustum();
+	private final Matrix4f view = new Matrix4f(), step = new Matrix4f(), world = new Matrix4f();
+	private final float[] center = new float[3];
+	private final float[] lightWorld = new float[16];
+
+	/* the lights by id, in eye coordinates: direction (or position), whether it is positional, diffuse */
+	private final float[] lightVectors = new float[MAX_LIGHTS * 3];
+	private final boolean[] lightPositional = new boolean[MAX_LIGHTS];
+	private final float[] lightDiffuse = new float[MAX_LIGHTS * 3];
+	private final boolean[] lightOn = new boolean[MAX_LIGHTS];
+
+	private final float f, a, b;		// the projection: cot(fovy/2), and z' = a z + b
+	private final float aspect;
+
+	public SoftwareRenderer(int width, int height, int threads) {
+		this.width = width;
+		this.height = height;
+		this.threads = threads;
+		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		tilesX = (width + TILE - 1) / TILE;
+		tilesY = (height + TILE - 1) / TILE;
+		tileCount = tilesX * tilesY;
+		for (int ty = 0; ty < tilesY; ty ++)
+			for (int tx = 0; tx < tilesX; tx ++)
+				tiles.add(new TileTask(tx * TILE, ty * TILE, Math.min(width, (tx + 1) * TILE), Math.min(height, (ty + 1) * TILE)));
+		aspect = (float) width / height;
+		f = 1 / (float) Math.tan(Math.toRadians(FOVY / 2));
+		a = (ZFAR + ZNEAR) / (ZNEAR - ZFAR);
+		b = 2 * ZFAR * ZNEAR / (ZNEAR - ZFAR);
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "software-renderer-" + (++ count));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* the point the camera turns about, as Hierarchical's centerx, centery, centerz */
+	public void setCenter(float x, float y, float z) {
+		center[0] = x;
+		center[1] = y;
+		center[2] = z;
+	}
+
+	/* draws scene, whose shapes must be MeshShapes (see Shapes), from
+	 * camera (roth, rotv, xpos, ypos, zpos) into the image
+	 */
+	public void render(SceneNode scene, float[] camera) {
+		scene.update();
+		Hierarchical.viewOf(camera, center[0], center[1], center[2], view, step);
+		frustum.set(FOVY, aspect, ZNEAR, ZFAR, view);
+		queue.clear();
+		scene.Draw(null, frustum, null, queue);
+		setLights();
+
+		itemCount = vertexTaskCount = faceTaskCount = 0;
+		for (int i = 0; i < queue.size(); i ++)
+			addItem(queue.getShape(i), queue.getMaterial(i), queue.getWorld(i));
+		run(vertexTasks, vertexTaskCount);
+		run(faceTasks, faceTaskCount);
+		run(tiles, tiles.size());
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	public void writePng(File file) throws IOException {
+		if (!ImageIO.write(image, "png", file))
+			throw new IOException("no PNG writer");
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/* the lights of the scene in eye coordinates, over the eye lights */
+	private void setLights() {
+		Arrays.fill(lightOn, false);
+		for (Light light : EYE_LIGHTS)
+			setLight(light, null);
+		float[] worlds = queue.getLightWorlds();
+		for (int i = 0; i < queue.getLightCount(); i ++) {
+			System.arraycopy(worlds, i * 16, lightWorld, 0, 16);
+			world.set(lightWorld);
+			world.transpose();		// column major
+			setLight(queue.getLight(i), world);
+		}
+	}
+
+	private void setLight(Light light, Matrix4f world) {
+		int id = light.id - GL.GL_LIGHT0;
+		if (id < 0 || id >= MAX_LIGHTS)
+			return;
+		float[] p = light.position;
+		float x = p[0], y = p[1], z = p[2], w = p[3];
+		if (world != null) {
+			step.mul(view, world);
+			float tx = step.m00 * x + step.m01 * y + step.m02 * z + step.m03 * w;
+			float ty = step.m10 * x + step.m11 * y + step.m12 * z + step.m13 * w;
+			float tz = step.m20 * x + step.m21 * y + step.m22 * z + step.m23 * w;
+			x = tx;
+			y = ty;
+			z = tz;
+		}
+		lightPositional[id] = w != 0;
+		if (w != 0) {
+			x /= w;
+			y /= w;
+			z /= w;
+		} else {
+			float length = (float) Math.sqrt(x * x + y * y + z * z);
+			if (length > 0) {
+				x /= length;
+				y /= length;
+				z /= length;
+			}
+		}
+		lightVectors[id * 3] = x;
+		lightVectors[id * 3 + 1] = y;
+		lightVectors[id * 3 + 2] = z;
+		for (int i = 0; i < 3; i ++)
+			lightDiffuse[id * 3 + i] = light.diffuse[i];
+		lightOn[id] = true;
+	}
+
+	/* a queued shape, with the vertex and face tasks for it */
+	private void addItem(SceneNode.Shape shape, Material material, float[] worldGL) {
+		if (!(shape instanceof MeshShape))
+			throw new IllegalArgumentException("SoftwareRenderer cannot draw " + shape);
+		MeshShape meshShape = (MeshShape) shape;
+		meshShape.load();
+		if (itemCount == items.size())
+			items.add(new Item());
+		Item item = items.get(itemCount ++);
+		item.shape = meshShape;
+		world.set(worldGL);
+		world.transpose();
+		item.modelview.mul(view, world);
+		item.modelview.getRotationScale(item.normalMatrix);
+		item.normalMatrix.invert();
+		item.normalMatrix.transpose();
+		item.frontDiffuse = material != null ? material.frontDiffuse : new float[] { .8f, .8f, .8f, 1 };	// the GL default
+		item.backDiffuse = material != null ? material.backDiffuse : item.frontDiffuse;
+		int num_verts = meshShape.mesh.num_verts;
+		if (item.clip.length < num_verts * 4) {
+			item.clip = new float[num_verts * 4];
+			item.front = new float[num_verts * 3];
+		}
+		if (!cullBackFaces && item.back.length < num_verts * 3)
+			item.back = new float[num_verts * 3];
+
+		for (int start = 0; start < num_verts; start += VERTEX_CHUNK) {
+			if (vertexTaskCount == vertexTasks.size())
+				vertexTasks.add(new VertexTask());
+			VertexTask task = vertexTasks.get(vertexTaskCount ++);
+			task.item = item;
+			task.start = start;
+			task.end = Math.min(num_verts, start + VERTEX_CHUNK);
+		}
+		int num_faces = meshShape.mesh.num_faces;
+		for (int start = 0; start < num_faces; start += FACE_CHUNK) {
+			if (faceTaskCount == faceTasks.size())
+				faceTasks.add(new FaceTask());
+			FaceTask task = faceTasks.get(faceTaskCount ++);
+			task.item = item;
+			task.start = start;
+			task.end = Math.min(num_faces, start + FACE_CHUNK);
+		}
+	}
+
+	/* runs the first count tasks on the pool and waits for all of them */
+	private void run(ArrayList<? extends Callable<Void>> tasks, int count) {
+		try {
+			for (Future<Void> done : pool.invokeAll(tasks.subList(0, count)))
+				done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while rendering", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error rendering", e.getCause());
+		}
+	}
+
+	/* the clip coordinates and lit colors of vertices start to end */
+	private void transform(Item item, int start, int end) {
+		float[] positions = item.shape.positions, normals = item.shape.normals;
+		Matrix4f m = item.modelview;
+		Matrix3f n = item.normalMatrix;
+		float[] fd = item.frontDiffuse, bd = item.backDiffuse;
+		boolean backs = !cullBackFaces;
+		for (int v = start; v < end; v ++) {
+			float px = positions[v * 3], py = positions[v * 3 + 1], pz = positions[v * 3 + 2];
+			float ex = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03;
+			float ey = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13;
+			float ez = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23;
+			item.clip[v * 4] = f / aspect * ex;
+			item.clip[v * 4 + 1] = f * ey;
+			item.clip[v * 4 + 2] = a * ez + b;
+			item.clip[v * 4 + 3] = -ez;
+
+			float qx = normals[v * 3], qy = normals[v * 3 + 1], qz = normals[v * 3 + 2];
+			float nx = n.m00 * qx + n.m01 * qy + n.m02 * qz;
+			float ny = n.m10 * qx + n.m11 * qy + n.m12 * qz;
+			float nz = n.m20 * qx + n.m21 * qy + n.m22 * qz;
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (length > 0) {
+				nx /= length;
+				ny /= length;
+				nz /= length;
+			}
+
+			float fr = 0, fg = 0, fb = 0, br = 0, bg = 0, bb = 0;
+			for (int l = 0; l < MAX_LIGHTS; l ++) {
+				if (!lightOn[l])
+					continue;
+				float lx = lightVectors[l * 3], ly = lightVectors[l * 3 + 1], lz = lightVectors[l * 3 + 2];
+				if (lightPositional[l]) {
+					lx -= ex;
+					ly -= ey;
+					lz -= ez;
+					float d = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+					if (d > 0) {
+						lx /= d;
+						ly /= d;
+						lz /= d;
+					}
+				}
+				float dot = nx * lx + ny * ly + nz * lz;
+				if (dot > 0) {
+					fr += dot * lightDiffuse[l * 3];
+					fg += dot * lightDiffuse[l * 3 + 1];
+					fb += dot * lightDiffuse[l * 3 + 2];
+				} else if (backs && dot < 0) {
+					br -= dot * lightDiffuse[l * 3];
+					bg -= dot * lightDiffuse[l * 3 + 1];
+					bb -= dot * lightDiffuse[l * 3 + 2];
+				}
+			}
+			item.front[v * 3] = Math.min(1, fr * fd[0]);
+			item.front[v * 3 + 1] = Math.min(1, fg * fd[1]);
+			item.front[v * 3 + 2] = Math.min(1, fb * fd[2]);
+			if (backs) {
+				item.back[v * 3] = Math.min(1, br * bd[0]);
+				item.back[v * 3 + 1] = Math.min(1, bg * bd[1]);
+				item.back[v * 3 + 2] = Math.min(1, bb * bd[2]);
+			}
+		}
+	}
+
+	/* clips, culls and bins the faces of task */
+	private void setup(FaceTask task) {
+		Item item = task.item;
+		int[] faces = item.shape.faces;
+		float[] clip = item.clip;
+		float[] polygon = new float[4 * 7];		// up to four corners of x, y, z, w, r, g, b after clipping
+		float[] corners = new float[3 * 7];
+		for (int face = task.start; face < task.end; face ++) {
+			int i0 = faces[face * 3], i1 = faces[face * 3 + 1], i2 = faces[face * 3 + 2];
+			/* whole faces beyond one side of the view volume are dropped here */
+			int outside = ~0;
+			for (int k = 0; k < 3; k ++) {
+				int v = k == 0 ? i0 : k == 1 ? i1 : i2;
+				float x = clip[v * 4], y = clip[v * 4 + 1], z = clip[v * 4 + 2], w = clip[v * 4 + 3];
+				int code = 0;
+				if (x < -w) code |= 1;
+				if (x > w) code |= 2;
+				if (y < -w) code |= 4;
+				if (y > w) code |= 8;
+				if (z < -w) code |= 16;
+				if (z > w) code |= 32;
+				outside &= code;
+			}
+			if (outside != 0)
+				continue;
+
+			/* the face is front facing if its corners run counterclockwise
+			 * in window coordinates; w > 0 for every corner that matters
+			 */
+			float[] colors = item.front;
+			boolean back = facesBack(clip, i0, i1, i2);
+			if (back) {
+				if (cullBackFaces)
+					continue;
+				colors = item.back;
+			}
+			for (int k = 0; k < 3; k ++) {
+				int v = k == 0 ? i0 : k == 1 ? i1 : i2;
+				int c = smooth ? v : i2;		// flat shading takes the last corner's color
+				System.arraycopy(clip, v * 4, corners, k * 7, 4);
+				System.arraycopy(colors, c * 3, corners, k * 7 + 4, 3);
+			}
+			int n = clipNear(corners, polygon);
+			for (int k = 1; k + 1 < n; k ++)
+				emit(task, polygon, 0, k, k + 1);
+		}
+	}
+
+	/* whether the face of clip corners i0, i1, i2 turns away from the
+	 * eye; in eye space, so corners behind it do not flip the answer
+	 */
+	private static boolean facesBack(float[] clip, int i0, int i1, int i2) {
+		/* the sign of the window area is that of the determinant of the
+		 * corners' (x, y, w), which is the same before the divide
+		 */
+		float x0 = clip[i0 * 4], y0 = clip[i0 * 4 + 1], w0 = clip[i0 * 4 + 3];
+		float x1 = clip[i1 * 4], y1 = clip[i1 * 4 + 1], w1 = clip[i1 * 4 + 3];
+		float x2 = clip[i2 * 4], y2 = clip[i2 * 4 + 1], w2 = clip[i2 * 4 + 3];
+		float det = x0 * (y1 * w2 - y2 * w1) - y0 * (x1 * w2 - x2 * w1) + w0 * (x1 * y2 - x2 * y1);
+		return det <= 0;
+	}
+
+	/* clips the triangle in corners against the near plane (z >= -w)
+	 * into polygon and returns its number of corners, 0, 3 or 4
+	 */
+	private static int clipNear(float[] corners, float[] polygon) {
+		int n = 0;
+		for (int k = 0; k < 3; k ++) {
+			int p = k * 7, q = (k + 1) % 3 * 7;
+			float dp = corners[p + 2] + corners[p + 3], dq = corners[q + 2] + corners[q + 3];
+			if (dp >= 0) {
+				System.arraycopy(corners, p, polygon, n * 7, 7);
+				n ++;
+			}
+			if ((dp >= 0) != (dq >= 0)) {
+				float t = dp / (dp - dq);
+				for (int i = 0; i < 7; i ++)
+					polygon[n * 7 + i] = corners[p + i] + t * (corners[q + i] - corners[p + i]);
+				n ++;
+			}
+		}
+		return n;
+	}
+
+	/* sets up the triangle of polygon corners c0, c1, c2 in window
+	 * coordinates and bins it into every tile its box touches
+	 */
+	private void emit(FaceTask task, float[] polygon, int c0, int c1, int c2) {
+		if ((task.count + 1) * TRI_FLOATS > task.tris.length)
+			task.tris = Arrays.copyOf(task.tris, task.tris.length * 2);
+		float[] tris = task.tris;
+		int t = task.count * TRI_FLOATS;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for (int k = 0; k < 3; k ++) {
+			int p = (k == 0 ? c0 : k == 1 ? c1 : c2) * 7;
+			float iw = 1 / polygon[p + 3];
+			float x = (polygon[p] * iw * 0.5f + 0.5f) * width;
+			float y = (0.5f - polygon[p + 1] * iw * 0.5f) * height;		// rows go down
+			tris[t] = x;
+			tris[t + 1] = y;
+			tris[t + 2] = polygon[p + 2] * iw * 0.5f + 0.5f;
+			tris[t + 3] = iw;
+			tris[t + 4] = polygon[p + 4] * iw;
+			tris[t + 5] = polygon[p + 5] * iw;
+			tris[t + 6] = polygon[p + 6] * iw;
+			t += 7;
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+		/* pixels are filled where their centers fall inside */
+		int tx0 = Math.max(0, (int) Math.floor(minX - 0.5f) / TILE), tx1 = Math.min(tilesX - 1, (int) Math.floor(maxX - 0.5f) / TILE);
+		int ty0 = Math.max(0, (int) Math.floor(minY - 0.5f) / TILE), ty1 = Math.min(tilesY - 1, (int) Math.floor(maxY - 0.5f) / TILE);
+		if (maxX < 0.5f || maxY < 0.5f || tx0 > tx1 || ty0 > ty1)
+			return;
+		int tri = task.count ++;
+		for (int ty = ty0; ty <= ty1; ty ++)
+			for (int tx = tx0; tx <= tx1; tx ++)
+				task.bin(ty * tilesX + tx, tri);
+	}
+
+	/* clears tile and fills in the triangles binned into it, in the
+	 * order they were queued
+	 */
+	private void fill(TileTask tile) {
+		int tileWidth = tile.x1 - tile.x0;
+		Arrays.fill(tile.depth, 1);
+		for (int y = tile.y0; y < tile.y1; y ++)
+			Arrays.fill(pixels, y * width + tile.x0, y * width + tile.x1, CLEAR);
+		int index = (tile.y0 / TILE) * tilesX + tile.x0 / TILE;
+		for (int c = 0; c < faceTaskCount; c ++) {
+			FaceTask task = faceTasks.get(c);
+			int[] bin = task.bins[index];
+			for (int i = 0; i < task.binSizes[index]; i ++)
+				rasterize(tile, tileWidth, task.tris, bin[i] * TRI_FLOATS);
+		}
+	}
+
+	private void rasterize(TileTask tile, int tileWidth, float[] tris, int t) {
+		float x0 = tris[t], y0 = tris[t + 1];
+		float x1 = tris[t + 7], y1 = tris[t + 8];
+		float x2 = tris[t + 14], y2 = tris[t + 15];
+		float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+		if (area == 0 || Float.isNaN(area))
+			return;
+
+		int minX = Math.max(tile.x0, (int) Math.ceil(Math.min(x0, Math.min(x1, x2)) - 0.5f));
+		int maxX = Math.min(tile.x1 - 1, (int) Math.floor(Math.max(x0, Math.max(x1, x2)) - 0.5f));
+		int minY = Math.max(tile.y0, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+		int maxY = Math.min(tile.y1 - 1, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+		if (minX > maxX || minY > maxY)
+			return;
+
+		/* edge functions, each >= 0 inside whichever way the corners run */
+		float sign = area > 0 ? 1 : -1;
+		float e0x = -(y2 - y1) * sign, e0y = (x2 - x1) * sign;		// opposite corner 0
+		float e1x = -(y0 - y2) * sign, e1y = (x0 - x2) * sign;
+		float e2x = -(y1 - y0) * sign, e2y = (x1 - x0) * sign;
+		float px = minX + 0.5f, py = minY + 0.5f;
+		float e0 = e0x * (px - x1) + e0y * (py - y1);
+		float e1 = e1x * (px - x2) + e1y * (py - y2);
+		float e2 = e2x * (px - x0) + e2y * (py - y0);
+
+		/* every attribute is a plane over the window, a + dx x + dy y */
+		float inv = 1 / area;
+		float[] plane = PLANES.get();
+		for (int i = 2; i < 7; i ++) {
+			float a0 = tris[t + i], a1 = tris[t + 7 + i], a2 = tris[t + 14 + i];
+			float dx = ((a1 - a0) * (y2 - y0) - (a2 - a0) * (y1 - y0)) * inv;
+			float dy = ((a2 - a0) * (x1 - x0) - (a1 - a0) * (x2 - x0)) * inv;
+			plane[i * 3] = a0 + dx * (px - x0) + dy * (py - y0);
+			plane[i * 3 + 1] = dx;
+			plane[i * 3 + 2] = dy;
+		}
+
+		float[] depth = tile.depth;
+		for (int y = minY; y <= maxY; y ++) {
+			float w0 = e0, w1 = e1, w2 = e2;
+			int row = y - minY;
+			float z = plane[6] + plane[8] * row;
+			float iw = plane[9] + plane[11] * row;
+			float r = plane[12] + plane[14] * row;
+			float g = plane[15] + plane[17] * row;
+			float b = plane[18] + plane[20] * row;
+			int d = (y - tile.y0) * tileWidth + minX - tile.x0;
+			int p = y * width + minX;
+			for (int x = minX; x <= maxX; x ++, d ++, p ++) {
+				if (w0 >= 0 && w1 >= 0 && w2 >= 0 && z < depth[d] && z <= 1) {
+					depth[d] = z;
+					float w = 1 / iw;
+					pixels[p] = pack(r * w, g * w, b * w);
+				}
+				w0 += e0x;
+				w1 += e1x;
+				w2 += e2x;
+				z += plane[7];
+				iw += plane[10];
+				r += plane[13];
+				g += plane[16];
+				b += plane[19];
+			}
+			e0 += e0y;
+			e1 += e1y;
+			e2 += e2y;
+		}
+	}
+
+	/* scratch for the attribute planes of one triangle, per thread */
+	private static final ThreadLocal<float[]> PLANES = new ThreadLocal<float[]>() {
+		protected float[] initialValue() {
+			return new float[7 * 3];
+		}
+	};
+
+	private static int pack(float r, float g, float b) {
+		return channel(r) << 16 | channel(g) << 8 | channel(b);
+	}
+
+	private static int channel(float c) {
+		return c <= 0 ? 0 : c >= 1 ? 255 : (int) (c * 255 + 0.5f);
+	}
+
+	/* Renders a turntable sequence of the sculpture without a display:
+	 *
+	 *   java SoftwareRenderer [-frames N] [-size WxH] [-threads N]
+	 *        [-out directory] [-flat] [-nocull] [-scaling]
+	 *
+	 * The camera orbits the sculpture once over the frames, as in
+	 * Hierarchical's benchmark, and the hierarchies advance one animation
+	 * step per frame. Each frame is written to frame0000.png and so on in
+	 * the output directory (frames by default). With -scaling nothing is
+	 * written; the sequence is rendered on 1, 2, 4 ... threads up to
+	 * -threads (every core by default) and the frame rate of each is
+	 * printed against the one on a single thread.
+	 */
+	public static void main(String[] args) {
+		int frames = 72, width = 1000, height = 800;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String out = "frames";
+		boolean flat = false, nocull = false, scaling = false;
+		for (int i = 0; i < args.length; i ++) {
+			String arg = args[i];
+			String value = i + 1 < args.length ? args[i + 1] : "";
+			if (arg.equals("-frames"))
+				frames = Integer.parseInt(value);
+			else if (arg.equals("-size")) {
+				String[] size = value.split("x");
+				width = Integer.parseInt(size[0]);
+				height = Integer.parseInt(size[1]);
+			} else if (arg.equals("-threads"))
+				threads = Integer.parseInt(value);
+			else if (arg.equals("-out"))
+				out = value;
+			else if (arg.equals("-flat")) {
+				flat = true;
+				continue;
+			} else if (arg.equals("-nocull")) {
+				nocull = true;
+				continue;
+			} else if (arg.equals("-scaling")) {
+				scaling = true;
+				continue;
+			} else {
+				System.out.println("Unknown option " + arg);
+				System.exit(1);
+			}
+			i ++;
+		}
+
+		long t0 = System.nanoTime();
+		Shapes shapes = new Shapes();
+		SceneNode scene = Hierarchical.buildScene(shapes);
+		shapes.load();
+		System.out.println(String.format(Locale.ROOT, "Loaded the sculpture in %.0fms.", (System.nanoTime() - t0) / 1e6));
+
+		/* the starting view of Hierarchical.initViewParameters for its -1..1 box */
+		float ball = (float) Math.sqrt(12) * 0.707f;
+		float zpos = ball / (float) Math.sin(Math.toRadians(45));
+		CameraPath path = CameraPath.orbit(0, 0, zpos, zpos);
+
+		if (!scaling) {
+			File dir = new File(out);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				System.out.println("Could not create " + dir);
+				System.exit(1);
+			}
+			SoftwareRenderer renderer = new SoftwareRenderer(width, height, threads);
+			renderer.smooth = !flat;
+			renderer.cullBackFaces = !nocull;
+			long rendering = 0, writing = 0;
+			float[] camera = new float[CameraPath.FIELDS];
+			for (int i = 0; i < frames; i ++) {
+				path.sample(i, frames, camera);
+				scene.animate(1);
+				long start = System.nanoTime();
+				renderer.render(scene, camera);
+				long rendered = System.nanoTime();
+				File file = new File(dir, String.format(Locale.ROOT, "frame%04d.png", i));
+				try {
+					renderer.writePng(file);
+				} catch (IOException e) {
+					System.out.println("Could not write " + file + ": " + e.getMessage());
+					System.exit(1);
+				}
+				rendering += rendered - start;
+				writing += System.nanoTime() - rendered;
+			}
+			renderer.shutdown();
+			System.out.println(String.format(Locale.ROOT,
+					"Rendered %d %dx%d frames into %s on %d threads: %.1f fps, %.1f fps with writing (%.1fms a frame, %.1fms to write it).",
+					frames, width, height, dir, threads, frames / (rendering / 1e9), frames / ((rendering + writing) / 1e9),
+					rendering / 1e6 / frames, writing / 1e6 / frames));
+			return;
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%d %dx%d frames on %d processors:", frames, width, height,
+				Runtime.getRuntime().availableProcessors()));
+		System.out.println(String.format("%8s %10s %10s %8s", "threads", "fps", "ms/frame", "speedup"));
+		double single = 0;
+		for (int n = 1; ; n = Math.min(n * 2, threads)) {
+			SoftwareRenderer renderer = new SoftwareRenderer(width, height, n);
+			renderer.smooth = !flat;
+			renderer.cullBackFaces = !nocull;
+			float[] camera = new float[CameraPath.FIELDS];
+			for (int i = 0; i < Math.max(frames, 30); i ++) {		// warm up
+				path.sample(i, frames, camera);
+				renderer.render(scene, camera);
+			}
+			scene.setSpinAngles(0);
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i ++) {
+				path.sample(i, frames, camera);
+				scene.animate(1);
+				renderer.render(scene, camera);
+			}
+			double fps = frames / ((System.nanoTime() - start) / 1e9);
+			renderer.shutdown();
+			if (n == 1)
+				single = fps;
+			System.out.println(String.format(Locale.ROOT, "%8d %10.1f %10.1f %7.2fx", n, fps, 1000 / fps, fps / single));
+			if (n >= threads)
+				break;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+import javax.media.opengl.GL;
+import javax.vecmath.Matrix3f;
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
+
+import com.sun.opengl.util.BufferUtil;
+
+/* This defines the StaticBatch class, several meshes that never move
+ * relative to each other merged into one, so they are drawn with one
+ * glDrawElements instead of one each. Each member mesh is copied with
+ * its transform applied, and with its front color as a per vertex
+ * color that glColorMaterial feeds into the front diffuse material;
+ * the back faces of a batch share one color, set as usual.
+ *
+ * A batch has as many levels of detail as its most detailed member;
+ * level i merges level i of every member (or its coarsest).
+ *
+ * Like Mesh, a batch is drawn from client arrays or from buffer
+ * objects, which it uploads on first use.
+ */
+class StaticBatch {
+
+	private static class Member {
+		final Mesh mesh;
+		final Matrix4f transform;
+		final byte[] color;
+
+		Member(Mesh mesh, Matrix4f transform, float[] color) {
+			this.mesh = mesh;
+			this.transform = new Matrix4f(transform);
+			this.color = new byte[4];
+			for (int i = 0; i < 4; i ++)
+				this.color[i] = (byte) Math.round(Math.max(0, Math.min(1, i < color.length ? color[i] : 1)) * 255);
+		}
+	}
+
+	/* one level of detail of the merged meshes */
+	private static class Level {
+		FloatBuffer positions, normals;
+		ByteBuffer colors;
+		IntBuffer faces;
+		int num_verts, num_faces;
+		int[] ids;			// array buffer, element buffer; null until uploaded
+	}
+
+	public final String name;
+	private final ArrayList<Member> members = new ArrayList<Member>();
+	private int memberCount;
+	private volatile Level[] levels;
+	private final Bounds bounds = new Bounds();
+
+	public StaticBatch(String name) {
+		this.name = name;
+	}
+
+	/* adds mesh with transform applied and front color (rgb or rgba) */
+	public void add(Mesh mesh, Matrix4f transform, float[] color) {
+		members.add(new Member(mesh, transform, color));
+		memberCount ++;
+	}
+
+	public int getMemberCount() {
+		return memberCount;
+	}
+
+	/* merges the members, and lets go of their meshes; must run once,
+	 * before drawing, on any thread
+	 */
+	public void build() {
+		int count = 1;
+		for (Member m : members)
+			count = Math.max(count, m.mesh.getLevelCount());
+		Level[] built = new Level[count];
+		for (int i = 0; i < count; i ++)
+			built[i] = merge(i);
+		bounds.setEmpty();
+		Point3f p = new Point3f();
+		for (Member m : members) {
+			float[] positions = m.mesh.positions();
+			for (int v = 0; v < m.mesh.num_verts; v ++) {
+				p.set(positions[v*3], positions[v*3+1], positions[v*3+2]);
+				m.transform.transform(p);
+				bounds.include(p.x, p.y, p.z);
+			}
+		}
+		members.clear();
+		levels = built;
+	}
+
+	private Level merge(int level) {
+		Level l = new Level();
+		for (Member m : members) {
+			Mesh mesh = m.mesh.getLevel(level);
+			l.num_verts += mesh.num_verts;
+			l.num_faces += mesh.num_faces;
+		}
+		l.positions = BufferUtil.newFloatBuffer(l.num_verts * 3);
+		l.normals = BufferUtil.newFloatBuffer(l.num_verts * 3);
+		l.colors = BufferUtil.newByteBuffer(l.num_verts * 4);
+		l.faces = BufferUtil.newIntBuffer(l.num_faces * 3);
+
+		Matrix3f normalMatrix = new Matrix3f();
+		Point3f p = new Point3f();
+		Vector3f n = new Vector3f();
+		int base = 0;
+		for (Member m : members) {
+			Mesh mesh = m.mesh.getLevel(level);
+			/* normals go through the inverse transpose, so non-uniform
+			 * scales such as the aspen's keep them perpendicular
+			 */
+			m.transform.getRotationScale(normalMatrix);
+			normalMatrix.invert();
+			normalMatrix.transpose();
+			float[] positions = mesh.positions();
+			float[] normals = mesh.normals();
+			for (int v = 0; v < mesh.num_verts; v ++) {
+				p.set(positions[v*3], positions[v*3+1], positions[v*3+2]);
+				m.transform.transform(p);
+				l.positions.put(p.x).put(p.y).put(p.z);
+				n.set(normals[v*3], normals[v*3+1], normals[v*3+2]);
+				normalMatrix.transform(n);
+				if (n.lengthSquared() > 0)
+					n.normalize();
+				l.normals.put(n.x).put(n.y).put(n.z);
+				l.colors.put(m.color);
+			}
+			int[] faces = mesh.faces();
+			for (int i = 0; i < faces.length; i ++)
+				l.faces.put(faces[i] + base);
+			base += mesh.num_verts;
+		}
+		l.positions.rewind();
+		l.normals.rewind();
+		l.colors.rewind();
+		l.faces.rewind();
+		return l;
+	}
+
+	public boolean isBuilt() {
+		return levels != null;
+	}
+
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/* the box of the merged positions */
+	public Bounds getBounds() {
+		return bounds;
+	}
+
+	public int getTriangleCount(int level) {
+		return levels[Math.min(level, levels.length - 1)].num_faces;
+	}
+
+	/* bytes of direct memory held by all levels */
+	public long sizeInBytes() {
+		long bytes = 0;
+		for (Level l : levels)
+			bytes += (long) l.num_verts * (3 * 4 + 3 * 4 + 4) + (long) l.num_faces * 3 * 4;
+		return bytes;
+	}
+
+	/* draws level of the batch with the current matrix and back
+	 * material, from buffer objects when bufferObjects is set
+	 */
+	public void Draw(GL gl, int level, boolean bufferObjects) {
+		Level l = levels[Math.min(level, levels.length - 1)];
+		gl.glPushAttrib(GL.GL_LIGHTING_BIT | GL.GL_ENABLE_BIT);
+		gl.glColorMaterial(GL.GL_FRONT, GL.GL_DIFFUSE);
+		gl.glEnable(GL.GL_COLOR_MATERIAL);
+		gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL.GL_NORMAL_ARRAY);
+		gl.glEnableClientState(GL.GL_COLOR_ARRAY);
+		if (bufferObjects) {
+			if (l.ids == null)
+				upload(gl, l);
+			int vertexBytes = l.num_verts * 3 * BufferUtil.SIZEOF_FLOAT;
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, l.ids[0]);
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, l.ids[1]);
+			gl.glVertexPointer(3, GL.GL_FLOAT, 0, 0);
+			gl.glNormalPointer(GL.GL_FLOAT, 0, vertexBytes);
+			gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, 0, vertexBytes * 2);
+			gl.glDrawElements(GL.GL_TRIANGLES, l.num_faces * 3, GL.GL_UNSIGNED_INT, 0);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+			FrameStats.getShared().draw(l.num_faces, 0);
+		} else {
+			gl.glVertexPointer(3, GL.GL_FLOAT, 0, l.positions);
+			gl.glNormalPointer(GL.GL_FLOAT, 0, l.normals);
+			gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, 0, l.colors);
+			gl.glDrawElements(GL.GL_TRIANGLES, l.num_faces * 3, GL.GL_UNSIGNED_INT, l.faces);
+			FrameStats.getShared().draw(l.num_faces, (long) l.num_verts * (3 * 4 + 3 * 4 + 4) + l.num_faces * 3 * 4);
+		}
+		gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+		gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
+		gl.glDisableClientState(GL.GL_COLOR_ARRAY);
+		gl.glPopAttrib();		// color material off, and the front material as it was
+	}
+
+	private static void upload(GL gl, Level l) {
+		int vertexBytes = l.num_verts * 3 * BufferUtil.SIZEOF_FLOAT;
+		l.ids = new int[2];
+		gl.glGenBuffers(2, l.ids, 0);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, l.ids[0]);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertexBytes * 2 + l.num_verts * 4, null, GL.GL_STATIC_DRAW);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, vertexBytes, l.positions.duplicate());
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, vertexBytes, vertexBytes, l.normals.duplicate());
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, vertexBytes * 2, l.num_verts * 4, l.colors.duplicate());
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, l.ids[1]);
+		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, l.num_faces * 3 * BufferUtil.SIZEOF_INT, l.faces.duplicate(),
+				GL.GL_STATIC_DRAW);
+		FrameStats.getShared().upload(vertexBytes * 2 + l.num_verts * 4 + l.num_faces * 3 * BufferUtil.SIZEOF_INT);
+	}
+
+	/* drops the buffer objects of a context that is gone; they are
+	 * uploaded again on next use
+	 */
+	public void forgetBuffers() {
+		if (levels != null)
+			for (Level l : levels)
+				l.ids = null;
+	}
+
+	/* frees the buffer objects; must run with the owning context current */
+	public void delete(GL gl) {
+		if (levels == null)
+			return;
+		for (Level l : levels) {
+			if (l.ids != null)
+				gl.glDeleteBuffers(2, l.ids, 0);
+			l.ids = null;
+		}
+	}
+}